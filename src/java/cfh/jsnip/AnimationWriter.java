@@ -0,0 +1,54 @@
+/*
+ * Copyright: Carlos F. Heuberger. All rights reserved.
+ *
+ */
+package cfh.jsnip;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Writes an animation frame by frame, without keeping the frames in memory.
+ * <p>
+ * A frame is shown until the time of the next frame; the delay of the last frame is set
+ * by {@link #finish(long)}, or is {@link #LAST_DELAY} if just closed.
+ *
+ * @author Carlos F. Heuberger
+ *
+ */
+interface AnimationWriter extends Closeable {
+
+    /** Delay of the last frame if not finished, in milliseconds. */
+    static final int LAST_DELAY = 1_000;
+
+    /**
+     * Adds a frame; only the {@code bounds} part of the image is changed.
+     * The first frame is always written complete.
+     *
+     * @param bounds changed part of the image, {@code null} for the whole image
+     * @param time   time of the frame, in milliseconds
+     */
+    void write(BufferedImage image, Rectangle bounds, long time) throws IOException;
+
+    /** Writes the pending frame, shown until {@code time}, and closes the file. */
+    void finish(long time) throws IOException;
+
+    /** Number of frames written, or pending. */
+    int getFrames();
+
+    /**
+     * Creates an animated GIF writer if the file name ends in {@code .gif}, an animated PNG writer otherwise.
+     *
+     * @param compression used for animated PNG
+     */
+    static AnimationWriter create(File file, int width, int height, PngEncoder.Compression compression) 
+    throws IOException {
+        if (file.getName().toLowerCase().endsWith(".gif"))
+            return new GifWriter(file, width, height);
+        else
+            return new ApngWriter(file, width, height, compression);
+    }
+}
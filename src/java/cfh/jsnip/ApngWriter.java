@@ -0,0 +1,164 @@
+/*
+ * Copyright: Carlos F. Heuberger. All rights reserved.
+ *
+ */
+package cfh.jsnip;
+
+import static java.lang.Math.*;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.zip.CRC32;
+
+/**
+ * Writes an animated PNG (APNG) frame by frame, 8 bit RGB, repeating forever.
+ * <p>
+ * Each frame is compressed by the {@link PngEncoder} and written as soon as the next frame arrives,
+ * since its delay is only known then; only one compressed frame is kept in memory.
+ * Frames after the first can be limited to the changed rectangle, they replace that part of the
+ * previous frame. The number of frames is written into the file when closed.
+ *
+ * @author Carlos F. Heuberger
+ *
+ */
+final class ApngWriter implements AnimationWriter {
+
+    /** Position of the data of the animation control chunk: signature, IHDR chunk, length and type. */
+    private static final int ACTL_DATA = 8 + (8 + 13 + 4) + 8;
+
+    private final File file;
+    private final int width;
+    private final int height;
+    private final PngEncoder encoder;
+    private final DataOutputStream output;
+
+    private int frames = 0;
+    private int sequence = 0;
+    private boolean finished = false;
+
+    /** Compressed data of the frame not yet written. */
+    private byte[][] pending = null;
+    private Rectangle pendingBounds;
+    private long pendingTime;
+
+    ApngWriter(File file, int width, int height, PngEncoder.Compression compression) throws IOException {
+        this.file = file;
+        this.width = width;
+        this.height = height;
+        this.encoder = new PngEncoder(compression);
+        output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+        output.write(PngEncoder.SIGNATURE);
+        PngEncoder.writeChunk(output, "IHDR", PngEncoder.header(width, height, 8, PngEncoder.COLOR_RGB));
+        PngEncoder.writeChunk(output, "acTL", animationControl(0));
+    }
+
+    /** Adds a frame; only the {@code bounds} part of the image is written. */
+    @Override
+    public void write(BufferedImage image, Rectangle bounds, long time) throws IOException {
+        if (image.getWidth() != width || image.getHeight() != height)
+            throw new IllegalArgumentException("frame " + image.getWidth() + "x" + image.getHeight()
+                    + " does not match " + width + "x" + height);
+        if (bounds == null || (pending == null && frames == 0)) {
+            bounds = new Rectangle(0, 0, width, height);
+        }
+        bounds = bounds.intersection(new Rectangle(0, 0, width, height));
+        if (bounds.isEmpty())
+            return;
+        BufferedImage part = bounds.width == width && bounds.height == height
+                ? image
+                : image.getSubimage(bounds.x, bounds.y, bounds.width, bounds.height);
+        byte[][] compressed = encoder.compressRgb(part);
+        flush(time);
+        pending = compressed;
+        pendingBounds = bounds;
+        pendingTime = time;
+    }
+
+    /** Writes the pending frame, shown until {@code time}. */
+    private void flush(long time) throws IOException {
+        if (pending == null)
+            return;
+        int delay = (int) max(1, min(0xffff, time - pendingTime));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(26);
+        DataOutputStream data = new DataOutputStream(bytes);
+        data.writeInt(sequence++);
+        data.writeInt(pendingBounds.width);
+        data.writeInt(pendingBounds.height);
+        data.writeInt(pendingBounds.x);
+        data.writeInt(pendingBounds.y);
+        data.writeShort(delay);
+        data.writeShort(1000);
+        data.writeByte(0);  // dispose: none
+        data.writeByte(0);  // blend: source
+        PngEncoder.writeChunk(output, "fcTL", bytes.toByteArray());
+
+        for (byte[] part : pending) {
+            if (frames == 0) {
+                PngEncoder.writeChunk(output, "IDAT", part);
+            } else {
+                byte[] chunk = new byte[4 + part.length];
+                chunk[0] = (byte) (sequence >>> 24);
+                chunk[1] = (byte) (sequence >>> 16);
+                chunk[2] = (byte) (sequence >>> 8);
+                chunk[3] = (byte) sequence;
+                sequence += 1;
+                System.arraycopy(part, 0, chunk, 4, part.length);
+                PngEncoder.writeChunk(output, "fdAT", chunk);
+            }
+        }
+        frames += 1;
+        pending = null;
+    }
+
+    @Override
+    public int getFrames() {
+        return frames + (pending == null ? 0 : 1);
+    }
+
+    /** Writes the pending frame, ends the file and sets the number of frames. */
+    @Override
+    public void finish(long time) throws IOException {
+        if (finished)
+            return;
+        finished = true;
+        try {
+            flush(time);
+            PngEncoder.writeChunk(output, "IEND", new byte[0]);
+        } finally {
+            output.close();
+        }
+        byte[] control = animationControl(frames);
+        CRC32 crc = new CRC32();
+        crc.update("acTL".getBytes("US-ASCII"));
+        crc.update(control);
+        RandomAccessFile access = new RandomAccessFile(file, "rw");
+        try {
+            access.seek(ACTL_DATA);
+            access.write(control);
+            access.writeInt((int) crc.getValue());
+        } finally {
+            access.close();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish(pendingTime + LAST_DELAY);
+    }
+
+    /** Data of the animation control chunk, playing forever. */
+    private static byte[] animationControl(int frames) {
+        return new byte[] {
+                (byte) (frames >>> 24), (byte) (frames >>> 16), (byte) (frames >>> 8), (byte) frames,
+                0, 0, 0, 0
+        };
+    }
+}
@@ -0,0 +1,371 @@
+/*
+ * Copyright: Carlos F. Heuberger. All rights reserved.
+ *
+ */
+package cfh.jsnip;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+import javax.imageio.ImageIO;
+
+import cfh.jsnip.ImageCatcher.DiffMode;
+
+/**
+ * Compares each image of a baseline directory with the image of the same name in a candidate
+ * directory, as {@link ImageCatcher#diff(BufferedImage, DiffMode) Compare} does. The differences of
+ * changed pairs are written as PNG to the output directory, with their {@link DiffReport} as JSON;
+ * {@link #SUMMARY} lists the result of all pairs. A pair passes if the ratio of changed pixels is
+ * not above the threshold.
+ * <p>
+ * The pairs run through a pipeline of three stages with their own threads: decoding both images,
+ * comparing them (in parallel bands by the {@link Workers} pool) and writing the results; so
+ * decoding the next pairs overlaps with comparing and writing the previous ones. At most
+ * {@link #IN_FLIGHT} pairs per thread are in the pipeline, limiting the memory used.
+ *
+ * @author Carlos F. Heuberger
+ *
+ */
+final class BatchCompare {
+
+    /** Name of the summary written to the output directory. */
+    static final String SUMMARY = "summary.csv";
+    /** Pairs in the pipeline per decoding thread. */
+    private static final int IN_FLIGHT = 2;
+
+    static enum Status {
+        PASSED ("passed"),
+        FAILED ("failed"),
+        SIZE ("size mismatch"),
+        MISSING ("no candidate"),
+        NEW ("no baseline"),
+        ERROR ("error"),
+        ;
+        private final String name;
+        Status(String name) {
+            this.name = name;
+        }
+        String getName() {
+            return name;
+        }
+    }
+
+    private final File baseline;
+    private final File candidate;
+    private final File output;
+    private final DiffMode mode;
+    private final Tolerance.Limits limits;
+    private final double threshold;
+    private final PngEncoder.Compression compression;
+
+    /**
+     * @param threshold maximal ratio of changed pixels of a passed pair, 0.0 to 1.0
+     */
+    BatchCompare(File baseline, File candidate, File output, DiffMode mode, Tolerance.Limits limits,
+            double threshold, PngEncoder.Compression compression) {
+        if (threshold < 0 || threshold > 1)
+            throw new IllegalArgumentException("threshold not in 0 to 1: " + threshold);
+        this.baseline = baseline;
+        this.candidate = candidate;
+        this.output = output;
+        this.mode = mode;
+        this.limits = limits;
+        this.threshold = threshold;
+        this.compression = compression;
+    }
+
+    /**
+     * Compares all pairs and writes the results; returns the result of each name, ordered by name.
+     *
+     * @throws IOException if a directory cannot be read or created, the output directory is inside
+     *         an input directory, or the summary cannot be written
+     */
+    List<Result> run() throws IOException, InterruptedException {
+        if (inside(output, baseline) || inside(output, candidate))
+            throw new IOException("output directory inside input directory: " + output);
+        Set<String> baselineNames = images(baseline);
+        Set<String> candidateNames = images(candidate);
+        if (!output.isDirectory() && !output.mkdirs())
+            throw new IOException("unable to create directory " + output);
+        TreeSet<String> names = new TreeSet<>(baselineNames);
+        names.addAll(candidateNames);
+
+        final Result[] results = new Result[names.size()];
+        int threads = Workers.parallelism();
+        final ExecutorService decoders = Executors.newFixedThreadPool(threads, threads("compare decode"));
+        final ExecutorService comparer = Executors.newSingleThreadExecutor(threads("compare"));
+        final ExecutorService encoders = Executors.newFixedThreadPool(threads, threads("compare encode"));
+        final Semaphore inFlight = new Semaphore(IN_FLIGHT * threads);
+        final CountDownLatch done = new CountDownLatch(names.size());
+        try {
+            int index = 0;
+            for (String name : names) {
+                if (!candidateNames.contains(name)) {
+                    results[index] = new Result(name, Status.MISSING, null, null);
+                    done.countDown();
+                } else if (!baselineNames.contains(name)) {
+                    results[index] = new Result(name, Status.NEW, null, null);
+                    done.countDown();
+                } else {
+                    inFlight.acquire();
+                    decoders.execute(new Pair(index, name, results, inFlight, done, comparer, encoders));
+                }
+                index += 1;
+            }
+            done.await();
+        } finally {
+            decoders.shutdownNow();
+            comparer.shutdownNow();
+            encoders.shutdownNow();
+        }
+        List<Result> list = Arrays.asList(results);
+        writeSummary(list, new File(output, SUMMARY));
+        return list;
+    }
+
+    /** Names of the files in the directory readable as image. */
+    private static Set<String> images(File dir) throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null)
+            throw new IOException("not a directory: " + dir);
+        Set<String> suffixes = new HashSet<>();
+        for (String suffix : ImageIO.getReaderFileSuffixes()) {
+            suffixes.add(suffix.toLowerCase());
+        }
+        Set<String> names = new TreeSet<>();
+        for (File file : files) {
+            String name = file.getName();
+            int index = name.lastIndexOf('.');
+            if (file.isFile() && index != -1 && suffixes.contains(name.substring(index+1).toLowerCase())) {
+                names.add(name);
+            }
+        }
+        return names;
+    }
+
+    /** Returns {@code true} if {@code file} is {@code dir} or inside it, comparing canonical paths. */
+    static boolean inside(File file, File dir) throws IOException {
+        File canonical = dir.getCanonicalFile();
+        for (File parent = file.getCanonicalFile(); parent != null; parent = parent.getParentFile()) {
+            if (parent.equals(canonical))
+                return true;
+        }
+        return false;
+    }
+
+    private static ThreadFactory threads(final String name) {
+        return new ThreadFactory() {
+            private int count = 0;
+            @Override
+            public synchronized Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name + "-" + (++count));
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /** Reads the image as <code>TYPE_INT_RGB</code> or <code>TYPE_INT_ARGB</code>, compared directly by the {@link DiffEngine}. */
+    static BufferedImage read(File file) throws IOException {
+        BufferedImage image = ImageIO.read(file);
+        if (image == null)
+            throw new IOException("no reader for " + file);
+        int type = image.getType();
+        if (type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB)
+            return image;
+        int width = image.getWidth();
+        int height = image.getHeight();
+        BufferedImage result = new BufferedImage(width, height,
+                image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        DiffEngine.Rows rows = new DiffEngine.Rows(result);
+        for (int y = 0; y < height; y += 1) {
+            image.getRGB(0, y, width, 1, rows.read(y), rows.offset(y), width);
+        }
+        return result;
+    }
+
+    /** Name of the difference image of a pair. */
+    static String diffName(String name) {
+        return name.toLowerCase().endsWith(".png") ? name : name + ".png";
+    }
+
+    /** One line per pair. */
+    private static void writeSummary(List<Result> results, File file) throws IOException {
+        StringBuilder csv = new StringBuilder(64 + 80 * results.size());
+        csv.append("file,status,width,height,changed,ratio,max distance,mean distance,regions,message\r\n");
+        for (Result result : results) {
+            csv.append(csv(result.name)).append(',').append(result.status.getName()).append(',');
+            DiffReport report = result.report;
+            if (report != null) {
+                csv.append(report.width).append(',').append(report.height).append(',').append(report.count).append(',')
+                   .append(DiffReport.formatRatio(report.ratio())).append(',')
+                   .append(DiffReport.format(report.maxDistance)).append(',')
+                   .append(DiffReport.format(report.meanDistance)).append(',')
+                   .append(report.regions.size()).append(',');
+            } else {
+                csv.append(",,,,,,,");
+            }
+            csv.append(result.message == null ? "" : csv(result.message)).append("\r\n");
+        }
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8);
+        try {
+            writer.write(csv.toString());
+        } finally {
+            writer.close();
+        }
+    }
+
+    /** Quotes the text if needed. */
+    private static String csv(String text) {
+        if (text.indexOf(',') == -1 && text.indexOf('"') == -1 && text.indexOf('\n') == -1 && text.indexOf('\r') == -1)
+            return text;
+        return '"' + text.replace("\"", "\"\"") + '"';
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /** Result of one name. */
+    static final class Result {
+
+        final String name;
+        final Status status;
+        /** Changes found, {@code null} if not compared. */
+        final DiffReport report;
+        /** Error message, or {@code null}. */
+        final String message;
+
+        Result(String name, Status status, DiffReport report, String message) {
+            this.name = name;
+            this.status = status;
+            this.report = report;
+            this.message = message;
+        }
+
+        /** Line for the user. */
+        String summary() {
+            String text = String.format(Locale.ROOT, "%-13s %s", status.getName(), name);
+            if (report != null && report.count > 0) {
+                text += ": " + report.summary();
+            }
+            if (message != null) {
+                text += ": " + message;
+            }
+            return text;
+        }
+    }
+
+    /**
+     * One pair passed from stage to stage; each stage runs in the executor of the stage.
+     * Anything thrown by a stage finishes the pair as {@link Status#ERROR}, so {@link BatchCompare#run()} is not left waiting.
+     */
+    private final class Pair implements Runnable {
+
+        private final int index;
+        private final String name;
+        private final Result[] results;
+        private final Semaphore inFlight;
+        private final CountDownLatch done;
+        private final ExecutorService comparer;
+        private final ExecutorService encoders;
+
+        private BufferedImage original;
+        private BufferedImage image;
+        private DiffReport report;
+
+        Pair(int index, String name, Result[] results, Semaphore inFlight, CountDownLatch done,
+                ExecutorService comparer, ExecutorService encoders) {
+            this.index = index;
+            this.name = name;
+            this.results = results;
+            this.inFlight = inFlight;
+            this.done = done;
+            this.comparer = comparer;
+            this.encoders = encoders;
+        }
+
+        /** Decodes both images, first stage. */
+        @Override
+        public void run() {
+            try {
+                original = read(new File(baseline, name));
+                image = read(new File(candidate, name));
+                if (original.getWidth() != image.getWidth() || original.getHeight() != image.getHeight()) {
+                    finish(Status.SIZE, original.getWidth() + "x" + original.getHeight()
+                            + " <> " + image.getWidth() + "x" + image.getHeight());
+                    return;
+                }
+                comparer.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        compare();
+                    }
+                });
+            } catch (Throwable ex) {
+                finish(Status.ERROR, String.valueOf(ex));
+            }
+        }
+
+        /** Second stage, replaces the candidate image with the differences. */
+        private void compare() {
+            try {
+                report = DiffEngine.diff(original, image, mode, limits);
+                original = null;
+                if (report.count == 0) {
+                    finish(Status.PASSED, null);
+                    return;
+                }
+                encoders.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        write();
+                    }
+                });
+            } catch (Throwable ex) {
+                finish(Status.ERROR, String.valueOf(ex));
+            }
+        }
+
+        /** Third stage, writes the differences and the report. */
+        private void write() {
+            try {
+                OutputStream stream = new BufferedOutputStream(new FileOutputStream(new File(output, diffName(name))), 64 * 1024);
+                try {
+                    new PngEncoder(compression).write(image, stream);
+                } finally {
+                    stream.close();
+                }
+                image = null;
+                report.write(new File(output, name + ".json"));
+                finish(report.ratio() > threshold ? Status.FAILED : Status.PASSED, null);
+            } catch (Throwable ex) {
+                finish(Status.ERROR, String.valueOf(ex));
+            }
+        }
+
+        private void finish(Status status, String message) {
+            original = null;
+            image = null;
+            results[index] = new Result(name, status, report, message);
+            inFlight.release();
+            done.countDown();
+        }
+    }
+}
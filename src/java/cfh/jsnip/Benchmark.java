@@ -0,0 +1,216 @@
+/*
+ * Copyright: Carlos F. Heuberger. All rights reserved.
+ *
+ */
+package cfh.jsnip;
+
+import static java.lang.Math.*;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Simple benchmarks, run with {@code java -cp jsnip.jar cfh.jsnip.Benchmark <name>...}.
+ * Work is done on images in memory, no screen needed.
+ * <p>
+ * Benchmarks:
+ * <ul>
+ * <li><code>overlay</code> replays a drag sequence on the selection overlay, repainting the whole screen
+ *     (as done before) versus only the changed selection area.
+ * <li><code>png</code> writes a GUI like image with {@code ImageIO} and with the {@link PngEncoder}
+ *     for each compression setting; the encoded images are checked by reading them back.
+ * </ul>
+ *
+ * @author Carlos F. Heuberger
+ *
+ */
+final class Benchmark {
+
+    private static final int WIDTH = 3840;
+    private static final int HEIGHT = 2160;
+
+    private static final int REPEAT = 3;
+
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            System.err.println("usage: Benchmark overlay|png...");
+            System.exit(2);
+        }
+        for (String arg : args) {
+            switch (arg) {
+                case "overlay": overlay(); break;
+                case "png": png(); break;
+                default:
+                    System.err.println("unknown benchmark: " + arg);
+                    System.exit(2);
+            }
+        }
+    }
+
+    /** Replays a drag from the top left to the bottom right of the screen. */
+    private static void overlay() {
+        BufferedImage background = randomImage(WIDTH, HEIGHT);
+        BufferedImage screen = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        Rectangle[] drag = new Rectangle[200];
+        for (int i = 0; i < drag.length; i += 1) {
+            drag[i] = new Rectangle(100, 100, 10 + i*(WIDTH-200)/drag.length, 10 + i*(HEIGHT-200)/drag.length);
+        }
+
+        for (int run = 0; run < REPEAT; run += 1) {
+            long[] full = new long[drag.length];
+            Graphics2D gg = screen.createGraphics();
+            try {
+                for (int i = 0; i < drag.length; i += 1) {
+                    long start = System.nanoTime();
+                    Rectangle selection = drag[i];
+                    Graphics2D g = (Graphics2D) gg.create();
+                    g.drawImage(background, 0, 0, null);
+                    g.setColor(new Color(0, 0, 0, 64));
+                    g.fillRect(0, 0, WIDTH, HEIGHT);
+                    g.setClip(selection);
+                    g.drawImage(background, 0, 0, null);
+                    g.dispose();
+                    full[i] = System.nanoTime() - start;
+                }
+            } finally {
+                gg.dispose();
+            }
+
+            long[] dirty = new long[drag.length];
+            long start = System.nanoTime();
+            BufferedImage dimmed = ImageCatcher.dim(background);
+            long dim = System.nanoTime() - start;
+            gg = screen.createGraphics();
+            try {
+                Rectangle old = null;
+                for (int i = 0; i < drag.length; i += 1) {
+                    start = System.nanoTime();
+                    Rectangle selection = drag[i];
+                    Graphics2D g = (Graphics2D) gg.create();
+                    if (old != null) {
+                        Rectangle union = old.union(selection);
+                        g.clipRect(union.x, union.y, union.width+1, union.height+1);
+                    }
+                    ImageCatcher.paintOverlay(g, background, dimmed, selection);
+                    g.dispose();
+                    old = selection;
+                    dirty[i] = System.nanoTime() - start;
+                }
+            } finally {
+                gg.dispose();
+            }
+
+            System.out.printf("overlay run %d, %d frames %dx%d%n", run+1, drag.length, WIDTH, HEIGHT);
+            report("full repaint", full);
+            report("dirty repaint", dirty);
+            System.out.printf("  %-16s %8.2f ms (once)%n", "dim background", dim / 1e6);
+        }
+    }
+
+    /** Compares writing PNG with ImageIO and PngEncoder. */
+    private static void png() {
+        BufferedImage image = guiImage(WIDTH, HEIGHT);
+        try {
+            for (int run = 0; run < REPEAT; run += 1) {
+                System.out.printf("png run %d, %dx%d, %d threads%n", run+1, WIDTH, HEIGHT, Workers.parallelism());
+                ByteArrayOutputStream output = new ByteArrayOutputStream();
+                long start = System.nanoTime();
+                ImageIO.write(image, "png", output);
+                long time = System.nanoTime() - start;
+                System.out.printf("  %-20s %8.2f ms %,12d bytes%n", "ImageIO", time / 1e6, output.size());
+                for (PngEncoder.Compression compression : PngEncoder.Compression.values()) {
+                    output = new ByteArrayOutputStream();
+                    start = System.nanoTime();
+                    new PngEncoder(compression).write(image, output);
+                    time = System.nanoTime() - start;
+                    System.out.printf("  %-20s %8.2f ms %,12d bytes%n", "PngEncoder " + compression.getName(), time / 1e6, output.size());
+                    BufferedImage read = ImageIO.read(new ByteArrayInputStream(output.toByteArray()));
+                    if (!samePixels(image, read))
+                        throw new AssertionError("decoded image differs for " + compression);
+                }
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+    
+    private static boolean samePixels(BufferedImage expected, BufferedImage actual) {
+        int width = expected.getWidth();
+        int height = expected.getHeight();
+        if (actual == null || actual.getWidth() != width || actual.getHeight() != height)
+            return false;
+        int[] e = expected.getRGB(0, 0, width, height, null, 0, width);
+        int[] a = actual.getRGB(0, 0, width, height, null, 0, width);
+        return Arrays.equals(e, a);
+    }
+    
+    private static void report(String name, long[] nanos) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        long total = 0;
+        for (long time : sorted) {
+            total += time;
+        }
+        System.out.printf("  %-16s %8.2f ms average, %8.2f ms median, %8.2f ms max per frame%n",
+                name, total / 1e6 / sorted.length, sorted[sorted.length/2] / 1e6, sorted[sorted.length-1] / 1e6);
+    }
+
+    static BufferedImage randomImage(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(1);
+        int[] row = new int[width];
+        for (int y = 0; y < height; y += 1) {
+            for (int x = 0; x < width; x += 1) {
+                row[x] = random.nextInt() & 0xffffff;
+            }
+            image.setRGB(0, y, width, 1, row, 0, width);
+        }
+        return image;
+    }
+
+    /** Creates an image with some windows, lists and text, similar to a screenshot. */
+    static BufferedImage guiImage(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(1);
+        Graphics2D gg = image.createGraphics();
+        try {
+            gg.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+            gg.setPaint(new GradientPaint(0, 0, new Color(0x204080), width, height, new Color(0x80a0c0)));
+            gg.fillRect(0, 0, width, height);
+            for (int i = 0; i < 40; i += 1) {
+                int x = random.nextInt(width - 200);
+                int y = random.nextInt(height - 200);
+                int w = 200 + random.nextInt(min(1200, width - x - 199));
+                int h = 200 + random.nextInt(min(800, height - y - 199));
+                gg.setColor(new Color(0xf0f0f0));
+                gg.fillRect(x, y, w, h);
+                gg.setColor(new Color(0x3060a0));
+                gg.fillRect(x, y, w, 24);
+                gg.setColor(Color.GRAY);
+                gg.drawRect(x, y, w-1, h-1);
+                for (int line = y + 44; line < y + h - 4; line += 18) {
+                    gg.setColor(new Color(random.nextInt(0x808080)));
+                    gg.drawString("Lorem ipsum dolor sit amet, " + random.nextInt(100000), x + 8, line);
+                }
+            }
+        } finally {
+            gg.dispose();
+        }
+        return image;
+    }
+    
+    private Benchmark() {
+        throw new AssertionError("static only");
+    }
+}
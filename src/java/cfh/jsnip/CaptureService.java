@@ -0,0 +1,220 @@
+/*
+ * Copyright: Carlos F. Heuberger. All rights reserved.
+ *
+ */
+package cfh.jsnip;
+
+import java.awt.AWTException;
+import java.awt.GraphicsDevice;
+import java.awt.GraphicsEnvironment;
+import java.awt.Rectangle;
+import java.awt.Robot;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Screen captures, keeping one {@code Robot} per device.
+ * A robot is discarded if its device was removed or the bounds of the device changed;
+ * all robots are discarded if a capture fails, and the capture is retried once with a new robot.
+ * <p>
+ * Captures can be run in parallel by {@link #submit(GraphicsDevice, Rectangle)}, each on its own thread.
+ * <p>
+ * Times needed to create robots (setup) and to capture (transfer) are recorded, see {@link #getStatistics()}.
+ *
+ * @author Carlos F. Heuberger
+ *
+ */
+final class CaptureService {
+
+    private static final CaptureService instance = new CaptureService();
+
+    static CaptureService getInstance() {
+        return instance;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /** Prior to Java 1.8 the Robot used coordinates relative to the device. */
+    private final boolean prior18 = checkVersionPrior18();
+
+    private final Map<GraphicsDevice, Entry> entries = new HashMap<>();
+    
+    private final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+        private int count = 0;
+        @Override
+        public synchronized Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "capture-" + (++count));
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private int captures = 0;
+    private int robots = 0;
+    private long pixels = 0;
+    private long setupNanos = 0;
+    private long transferNanos = 0;
+    private long lastSetupNanos = 0;
+    private long lastTransferNanos = 0;
+    private int overlays = 0;
+    private long overlayNanos = 0;
+    private long lastOverlayNanos = 0;
+
+    private CaptureService() {
+    }
+
+    private static boolean checkVersionPrior18() {
+        try {
+            String version = System.getProperty("java.version");
+            Pattern pattern = Pattern.compile("(\\d++)(?:\\.(\\d++)(\\..*)?)?");
+            Matcher matcher = pattern.matcher(version);
+            if (matcher.matches()) {
+                int major = Integer.parseInt(matcher.group(1));
+                int minor = (matcher.groupCount()>1 && matcher.group(2)!=null) ? Integer.parseInt(matcher.group(2)) : 0;
+                return (major < 1) || (major == 1 && minor < 8);
+            } else {
+                return false;
+            }
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            return false;
+        }
+    }
+
+    /** Captures the whole device. */
+    BufferedImage capture(GraphicsDevice device) throws AWTException {
+        return capture(device, device.getDefaultConfiguration().getBounds());
+    }
+
+    /** Captures the given area, in screen coordinates, of the device. */
+    BufferedImage capture(GraphicsDevice device, Rectangle area) throws AWTException {
+        long start = System.nanoTime();
+        Entry entry = entry(device);
+        long setup = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        BufferedImage image;
+        try {
+            image = entry.robot.createScreenCapture(region(entry, area));
+        } catch (RuntimeException ex) {
+            // robots may be stale after the display configuration changed
+            invalidate();
+            entry = entry(device);
+            image = entry.robot.createScreenCapture(region(entry, area));
+        }
+        long transfer = System.nanoTime() - start;
+
+        synchronized (this) {
+            captures += 1;
+            pixels += (long) area.width * area.height;
+            setupNanos += setup;
+            transferNanos += transfer;
+            lastSetupNanos = setup;
+            lastTransferNanos = transfer;
+        }
+        return image;
+    }
+
+    /** Area in the coordinates used by the robot. */
+    private Rectangle region(Entry entry, Rectangle area) {
+        Rectangle region = new Rectangle(area);
+        if (prior18) {
+            region.translate(-entry.bounds.x, -entry.bounds.y);
+        }
+        return region;
+    }
+
+    /** Captures the whole device in a background thread. */
+    Future<BufferedImage> submit(GraphicsDevice device) {
+        return submit(device, device.getDefaultConfiguration().getBounds());
+    }
+
+    /** Captures the given area, in screen coordinates, of the device in a background thread. */
+    Future<BufferedImage> submit(final GraphicsDevice device, final Rectangle area) {
+        return executor.submit(new Callable<BufferedImage>() {
+            @Override
+            public BufferedImage call() throws AWTException {
+                return capture(device, area);
+            }
+        });
+    }
+
+    /** Records the time from start of a snip until the selection windows are shown. */
+    synchronized void recordOverlay(long nanos) {
+        overlays += 1;
+        overlayNanos += nanos;
+        lastOverlayNanos = nanos;
+    }
+
+    /** Discards all robots, they will be created again on next capture. */
+    private synchronized void invalidate() {
+        entries.clear();
+    }
+
+    private synchronized Entry entry(GraphicsDevice device) throws AWTException {
+        Rectangle bounds = device.getDefaultConfiguration().getBounds();
+        Entry entry = entries.get(device);
+        if (entry != null && !entry.bounds.equals(bounds)) {
+            entry = null;
+        }
+        if (entry == null) {
+            removeMissing();
+            entry = new Entry(new Robot(device), bounds);
+            entries.put(device, entry);
+            robots += 1;
+        }
+        return entry;
+    }
+
+    /** Removes the robots of devices no longer available. */
+    private void removeMissing() {
+        if (!entries.isEmpty() && !GraphicsEnvironment.isHeadless()) {
+            List<GraphicsDevice> devices = Arrays.asList(GraphicsEnvironment.getLocalGraphicsEnvironment().getScreenDevices());
+            for (Iterator<GraphicsDevice> iter = entries.keySet().iterator(); iter.hasNext(); ) {
+                if (!devices.contains(iter.next())) {
+                    iter.remove();
+                }
+            }
+        }
+    }
+
+    /** Returns a line with the capture timings. */
+    synchronized String getStatistics() {
+        if (captures == 0)
+            return "no captures";
+        String text = String.format("%d captures, %d robots created, %,d pixels; "
+                + "average setup %.1f ms (last %.1f ms), average transfer %.1f ms (last %.1f ms)",
+                captures, robots, pixels,
+                setupNanos / 1e6 / captures, lastSetupNanos / 1e6,
+                transferNanos / 1e6 / captures, lastTransferNanos / 1e6);
+        if (overlays > 0) {
+            text += String.format("; average time to overlay %.1f ms (last %.1f ms)",
+                    overlayNanos / 1e6 / overlays, lastOverlayNanos / 1e6);
+        }
+        return text;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    private static final class Entry {
+
+        final Robot robot;
+        final Rectangle bounds;
+
+        Entry(Robot robot, Rectangle bounds) {
+            this.robot = robot;
+            this.bounds = bounds;
+        }
+    }
+}
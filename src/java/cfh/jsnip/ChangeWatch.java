@@ -0,0 +1,320 @@
+/*
+ * Copyright: Carlos F. Heuberger. All rights reserved.
+ *
+ */
+package cfh.jsnip;
+
+import java.awt.GraphicsDevice;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.swing.SwingUtilities;
+
+import cfh.jsnip.ImageCatcher.DiffMode;
+
+/**
+ * Watches a screen region for changes against a baseline image.
+ * <p>
+ * All watches are checked by one background thread every {@link #INTERVAL} milliseconds,
+ * capturing each device only once for all its watches (see {@link ShotList#capture(List)}).
+ * A capture is hashed in tiles like in {@link LiveMirror}; if the hashes did not change since
+ * the last check nothing else is done, otherwise only the tiles whose hash differs from the
+ * baseline are compared pixel by pixel.
+ * <p>
+ * If the ratio of changed pixels is above the threshold, an entry is appended to the log file:
+ * time, watch ID, region, number and ratio of changed pixels, bounding box of the changes
+ * (relative to the region) and, optionally, the file the captured frame is saved to by the {@link ImageSaver}.
+ * The {@link Listener}s are then called on the event dispatch thread.
+ * <p>
+ * Watches do not depend on the display they were started from, they run until stopped.
+ *
+ * @author Carlos F. Heuberger
+ *
+ */
+final class ChangeWatch {
+
+    /** Time between checks, in milliseconds. */
+    static final int INTERVAL = 1_000;
+
+    private static final List<ChangeWatch> watches = new CopyOnWriteArrayList<>();
+    private static final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private static ScheduledExecutorService scheduler = null;
+
+    /** Reports frames that could not be saved. */
+    private static final ImageSaver.Listener FRAME_SAVE = new ImageSaver.Listener() {
+        @Override
+        public void progress(File file, int percent) {
+        }
+        @Override
+        public void saved(File file) {
+        }
+        @Override
+        public void failed(File file, Exception ex) {
+            ex.printStackTrace();
+        }
+    };
+
+    static void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    static void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /** Number of active watches. */
+    static int count() {
+        return watches.size();
+    }
+
+    /** Stops all watches. */
+    static void stopAll() {
+        watches.clear();
+        unschedule();
+    }
+
+    private static synchronized void schedule() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "watch");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.NORM_PRIORITY - 1);
+                    return thread;
+                }
+            });
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        checkAll();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    } catch (RuntimeException ex) {
+                        ex.printStackTrace();
+                    }
+                }
+            }, INTERVAL, INTERVAL, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static synchronized void unschedule() {
+        if (scheduler != null && watches.isEmpty()) {
+            scheduler.shutdown();
+            scheduler = null;
+        }
+    }
+
+    /** Captures all watched regions, once per device, and checks each watch. */
+    private static void checkAll() throws InterruptedException {
+        List<ChangeWatch> active = new ArrayList<>(watches);
+        if (active.isEmpty())
+            return;
+        List<ShotList.Shot> shots = new ArrayList<>();
+        for (ChangeWatch watch : active) {
+            shots.add(watch.shot);
+        }
+        Map<ShotList.Shot, BufferedImage> images = ShotList.capture(shots);
+        for (ChangeWatch watch : active) {
+            BufferedImage image = images.get(watch.shot);
+            if (image != null && watches.contains(watch)) {
+                watch.check(image);
+            }
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    private final int id;
+    private final ShotList.Shot shot;
+    private final BufferedImage baseline;
+    private final DiffMode mode;
+    private final double threshold;
+    private final File log;
+    private final boolean saveFrames;
+
+    private final long[] baselineHashes;
+    private long[] lastHashes;
+    private int entries = 0;
+
+    /**
+     * Creates a watch, not yet started.
+     *
+     * @param id        used in the log and for the names of the frame files
+     * @param rectangle region in screen coordinates, same size as the baseline
+     * @param threshold minimal ratio of changed pixels, 0.0 to 1.0, for an entry
+     * @param log       file the entries are appended to
+     * @param saveFrames save the captured frame of each entry, next to the log file
+     */
+    ChangeWatch(int id, GraphicsDevice device, Rectangle rectangle, BufferedImage baseline, DiffMode mode,
+            double threshold, File log, boolean saveFrames) {
+        if (baseline.getWidth() != rectangle.width || baseline.getHeight() != rectangle.height)
+            throw new IllegalArgumentException("baseline " + baseline.getWidth() + "x" + baseline.getHeight()
+                    + " does not match region " + rectangle.width + "x" + rectangle.height);
+        if (threshold < 0 || threshold > 1)
+            throw new IllegalArgumentException("threshold not in 0.0 to 1.0: " + threshold);
+        this.id = id;
+        this.shot = new ShotList.Shot(device, new Rectangle(rectangle), null);
+        this.baseline = baseline;
+        this.mode = mode;
+        this.threshold = threshold;
+        this.log = log;
+        this.saveFrames = saveFrames;
+        this.baselineHashes = LiveMirror.hashTiles(baseline);
+        this.lastHashes = baselineHashes;
+    }
+
+    void start() {
+        if (!watches.contains(this)) {
+            watches.add(this);
+            schedule();
+        }
+    }
+
+    void stop() {
+        watches.remove(this);
+        unschedule();
+    }
+
+    boolean isRunning() {
+        return watches.contains(this);
+    }
+
+    int getId() {
+        return id;
+    }
+
+    File getLog() {
+        return log;
+    }
+
+    /** Number of entries logged by this watch. */
+    synchronized int getEntries() {
+        return entries;
+    }
+
+    /** Checks a new capture of the region, called by the watch thread. */
+    private void check(BufferedImage image) {
+        long[] hashes = LiveMirror.hashTiles(image);
+        if (Arrays.equals(hashes, lastHashes))
+            return;
+        lastHashes = hashes;
+
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int columns = (width + LiveMirror.TILE - 1) / LiveMirror.TILE;
+        List<Rectangle> tiles = new ArrayList<>();
+        for (int i = 0; i < hashes.length; i += 1) {
+            if (hashes[i] != baselineHashes[i]) {
+                int x = (i % columns) * LiveMirror.TILE;
+                int y = (i / columns) * LiveMirror.TILE;
+                tiles.add(new Rectangle(x, y, Math.min(LiveMirror.TILE, width - x), Math.min(LiveMirror.TILE, height - y)));
+            }
+        }
+        if (tiles.isEmpty())
+            return;
+        DiffEngine.Change change = DiffEngine.changes(baseline, image, mode, tiles);
+        if (change.count == 0 || change.ratio() <= threshold)
+            return;
+
+        Date time = new Date();
+        File frame = null;
+        if (saveFrames) {
+            String name = log.getName();
+            int index = name.lastIndexOf('.');
+            if (index > 0) {
+                name = name.substring(0, index);
+            }
+            frame = new File(log.getAbsoluteFile().getParentFile(),
+                    String.format("%s-%d-%s.png", name, id, new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(time)));
+            try {
+                ImageSaver.save(image, "png", frame, FRAME_SAVE);
+            } catch (RejectedExecutionException ex) {
+                System.err.println("frame not saved, too many saves waiting: " + frame);
+                frame = null;
+            }
+        }
+        final Entry entry = new Entry(this, time, change, frame);
+        try {
+            append(entry);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+        synchronized (this) {
+            entries += 1;
+        }
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                for (Listener listener : listeners) {
+                    listener.changed(entry);
+                }
+            }
+        });
+    }
+
+    private void append(Entry entry) throws IOException {
+        Rectangle r = shot.rectangle;
+        Rectangle b = entry.change.bounds;
+        String line = String.format("%s\t%d\t%d,%d,%d,%d\t%d\t%.6f\t%d,%d,%d,%d\t%s%n",
+                new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ").format(entry.time),
+                id,
+                r.x, r.y, r.width, r.height,
+                entry.change.count,
+                entry.change.ratio(),
+                b.x, b.y, b.width, b.height,
+                entry.frame == null ? "" : entry.frame.getAbsolutePath());
+        synchronized (ChangeWatch.class) {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(log, true), StandardCharsets.UTF_8);
+            try {
+                writer.write(line);
+            } finally {
+                writer.close();
+            }
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /** Logged change. */
+    static final class Entry {
+
+        final ChangeWatch watch;
+        final Date time;
+        final DiffEngine.Change change;
+        /** Saved frame, {@code null} if not saved. */
+        final File frame;
+
+        Entry(ChangeWatch watch, Date time, DiffEngine.Change change, File frame) {
+            this.watch = watch;
+            this.time = time;
+            this.change = change;
+            this.frame = frame;
+        }
+    }
+
+    public static interface Listener {
+
+        /** Called on the event dispatch thread after an entry was logged. */
+        public void changed(Entry entry);
+    }
+}
@@ -0,0 +1,444 @@
+/*
+ * Copyright: Carlos F. Heuberger. All rights reserved.
+ *
+ */
+package cfh.jsnip;
+
+import static java.lang.Math.*;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Converts images to indexed colors.
+ * <p>
+ * Images with few colors are converted exactly. Otherwise colors are reduced with
+ * median cut over a histogram with 5 bits per channel, optionally with Floyd-Steinberg dithering.
+ * Only opaque images are quantized.
+ *
+ * @author Carlos F. Heuberger
+ *
+ */
+final class ColorQuantizer {
+
+    static final int MAX_COLORS = 256;
+
+    private static final int BITS = 5;
+    private static final int LEVELS = 1 << BITS;
+    private static final int BINS = LEVELS * LEVELS * LEVELS;
+
+    /**
+     * Returns the image with indexed colors, {@code null} if the image has more than
+     * {@code maxColors} colors and is not opaque.
+     */
+    static Indexed index(BufferedImage image, int maxColors, boolean dither) {
+        Indexed indexed = exact(image, maxColors);
+        if (indexed == null && !image.getColorModel().hasAlpha()) {
+            indexed = quantize(image, maxColors, dither);
+        }
+        return indexed;
+    }
+
+    /** Returns the image with indexed colors, {@code null} if it has more than {@code maxColors} colors. */
+    static Indexed exact(BufferedImage image, int maxColors) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        ColorTable table = new ColorTable(maxColors);
+        byte[] indices = new byte[width * height];
+        DiffEngine.Rows rows = new DiffEngine.Rows(image);
+        for (int y = 0; y < height; y += 1) {
+            int[] data = rows.read(y);
+            int offset = rows.offset(y);
+            int pos = y * width;
+            int last = 0;
+            int lastIndex = -1;
+            for (int x = 0; x < width; x += 1) {
+                int argb = data[offset+x] | rows.alpha;
+                if (argb != last || lastIndex == -1) {
+                    lastIndex = table.index(argb);
+                    if (lastIndex == -1)
+                        return null;
+                    last = argb;
+                }
+                indices[pos+x] = (byte) lastIndex;
+            }
+        }
+        return new Indexed(width, height, table.palette(), indices);
+    }
+
+    /** Reduces the colors of an opaque image using median cut. */
+    static Indexed quantize(BufferedImage image, int maxColors, boolean dither) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+
+        int[] counts = new int[BINS];
+        long[] sumR = new long[BINS];
+        long[] sumG = new long[BINS];
+        long[] sumB = new long[BINS];
+        DiffEngine.Rows rows = new DiffEngine.Rows(image);
+        for (int y = 0; y < height; y += 1) {
+            int[] data = rows.read(y);
+            int offset = rows.offset(y);
+            for (int x = 0; x < width; x += 1) {
+                int rgb = data[offset+x];
+                int r = (rgb >> 16) & 0xff;
+                int g = (rgb >> 8) & 0xff;
+                int b = rgb & 0xff;
+                int bin = bin(r, g, b);
+                counts[bin] += 1;
+                sumR[bin] += r;
+                sumG[bin] += g;
+                sumB[bin] += b;
+            }
+        }
+
+        int[] palette = medianCut(counts, sumR, sumG, sumB, maxColors);
+        int[] map = new int[BINS];
+        Arrays.fill(map, -1);
+
+        byte[] indices = new byte[width * height];
+        if (dither) {
+            int[] errors = new int[3 * (width + 2)];
+            int[] next = new int[3 * (width + 2)];
+            for (int y = 0; y < height; y += 1) {
+                int[] data = rows.read(y);
+                int offset = rows.offset(y);
+                Arrays.fill(next, 0);
+                for (int x = 0; x < width; x += 1) {
+                    int rgb = data[offset+x];
+                    int e = 3 * (x + 1);
+                    int r = clamp(((rgb >> 16) & 0xff) + errors[e] / 16);
+                    int g = clamp(((rgb >> 8) & 0xff) + errors[e+1] / 16);
+                    int b = clamp((rgb & 0xff) + errors[e+2] / 16);
+                    int index = nearest(palette, map, r, g, b);
+                    indices[y*width+x] = (byte) index;
+                    int color = palette[index];
+                    int dr = r - ((color >> 16) & 0xff);
+                    int dg = g - ((color >> 8) & 0xff);
+                    int db = b - (color & 0xff);
+                    errors[e+3] += 7 * dr;
+                    errors[e+4] += 7 * dg;
+                    errors[e+5] += 7 * db;
+                    next[e-3] += 3 * dr;
+                    next[e-2] += 3 * dg;
+                    next[e-1] += 3 * db;
+                    next[e] += 5 * dr;
+                    next[e+1] += 5 * dg;
+                    next[e+2] += 5 * db;
+                    next[e+3] += dr;
+                    next[e+4] += dg;
+                    next[e+5] += db;
+                }
+                int[] tmp = errors;
+                errors = next;
+                next = tmp;
+            }
+        } else {
+            for (int y = 0; y < height; y += 1) {
+                int[] data = rows.read(y);
+                int offset = rows.offset(y);
+                for (int x = 0; x < width; x += 1) {
+                    int rgb = data[offset+x];
+                    indices[y*width+x] = (byte) nearest(palette, map, (rgb >> 16) & 0xff, (rgb >> 8) & 0xff, rgb & 0xff);
+                }
+            }
+        }
+        return new Indexed(width, height, palette, indices);
+    }
+
+    private static int bin(int r, int g, int b) {
+        int shift = 8 - BITS;
+        return ((r >> shift) << (2*BITS)) | ((g >> shift) << BITS) | (b >> shift);
+    }
+
+    /** Index of the palette color nearest to the bin of the given color, cached in {@code map}. */
+    private static int nearest(int[] palette, int[] map, int r, int g, int b) {
+        int bin = bin(r, g, b);
+        int index = map[bin];
+        if (index == -1) {
+            int shift = 8 - BITS;
+            int half = 1 << (shift - 1);
+            int cr = ((bin >> (2*BITS)) << shift) + half;
+            int cg = (((bin >> BITS) & (LEVELS-1)) << shift) + half;
+            int cb = ((bin & (LEVELS-1)) << shift) + half;
+            int min = Integer.MAX_VALUE;
+            for (int i = 0; i < palette.length; i += 1) {
+                int dr = ((palette[i] >> 16) & 0xff) - cr;
+                int dg = ((palette[i] >> 8) & 0xff) - cg;
+                int db = (palette[i] & 0xff) - cb;
+                int dist = dr*dr + dg*dg + db*db;
+                if (dist < min) {
+                    min = dist;
+                    index = i;
+                }
+            }
+            map[bin] = index;
+        }
+        return index;
+    }
+
+    private static int clamp(int value) {
+        return max(0, min(255, value));
+    }
+
+    /** Splits the used bins in boxes and returns the average color of each box. */
+    private static int[] medianCut(int[] counts, long[] sumR, long[] sumG, long[] sumB, int maxColors) {
+        int used = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                used += 1;
+            }
+        }
+        int[] bins = new int[used];
+        used = 0;
+        for (int bin = 0; bin < BINS; bin += 1) {
+            if (counts[bin] > 0) {
+                bins[used++] = bin;
+            }
+        }
+
+        List<Box> boxes = new ArrayList<>();
+        boxes.add(new Box(bins, 0, bins.length, counts));
+        while (boxes.size() < maxColors) {
+            Box largest = null;
+            for (Box box : boxes) {
+                if (box.to - box.from > 1 && (largest == null || box.score() > largest.score())) {
+                    largest = box;
+                }
+            }
+            if (largest == null)
+                break;
+            boxes.remove(largest);
+            boxes.addAll(largest.split(bins, counts));
+        }
+
+        int[] palette = new int[boxes.size()];
+        for (int i = 0; i < palette.length; i += 1) {
+            Box box = boxes.get(i);
+            long n = 0, r = 0, g = 0, b = 0;
+            for (int j = box.from; j < box.to; j += 1) {
+                int bin = bins[j];
+                n += counts[bin];
+                r += sumR[bin];
+                g += sumG[bin];
+                b += sumB[bin];
+            }
+            palette[i] = 0xff000000 | (int) (r / n) << 16 | (int) (g / n) << 8 | (int) (b / n);
+        }
+        return palette;
+    }
+
+    private static int component(int bin, int channel) {
+        return (bin >> (BITS * (2 - channel))) & (LEVELS - 1);
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /** Image with indexed colors, one byte per pixel. */
+    static final class Indexed {
+
+        final int width;
+        final int height;
+        /** ARGB of each color. */
+        final int[] palette;
+        final byte[] indices;
+
+        Indexed(int width, int height, int[] palette, byte[] indices) {
+            this.width = width;
+            this.height = height;
+            this.palette = palette;
+            this.indices = indices;
+        }
+    }
+
+    /**
+     * Maps colors to the nearest color of a fixed palette, for example to encode several frames
+     * with the same palette. Colors of the palette are mapped exactly, other colors by the
+     * nearest palette color to their histogram bin; both lookups are cached.
+     */
+    static final class Mapper {
+
+        private static final int CACHE = 1 << 12;
+
+        private final int[] palette;
+        private final ColorTable exact;
+        /** Palette index of each color in the exact table, which ignores duplicates. */
+        private final int[] exactIndices;
+        private final int[] map = new int[BINS];
+        private final int[] cachedColors = new int[CACHE];
+        private final int[] cachedIndices = new int[CACHE];
+
+        /** @param palette RGB of each color, alpha is ignored */
+        Mapper(int[] palette) {
+            this.palette = palette.clone();
+            exact = new ColorTable(palette.length);
+            exactIndices = new int[palette.length];
+            for (int i = 0; i < palette.length; i += 1) {
+                this.palette[i] |= 0xff000000;
+                exactIndices[exact.index(this.palette[i])] = i;
+            }
+            Arrays.fill(map, -1);
+            Arrays.fill(cachedIndices, -1);
+        }
+
+        /** Index of the given RGB color in the palette, -1 if not in the palette. */
+        int exact(int rgb) {
+            int index = exact.find(rgb | 0xff000000);
+            return index == -1 ? -1 : exactIndices[index];
+        }
+
+        /** Index of the palette color nearest to the given RGB color. */
+        int index(int rgb) {
+            rgb |= 0xff000000;
+            int slot = (rgb * 0x9E3779B9) >>> (32 - 12);
+            if (cachedColors[slot] == rgb && cachedIndices[slot] != -1)
+                return cachedIndices[slot];
+            int index = exact.find(rgb);
+            if (index != -1) {
+                index = exactIndices[index];
+            } else {
+                index = nearest(palette, map, (rgb >> 16) & 0xff, (rgb >> 8) & 0xff, rgb & 0xff);
+            }
+            cachedColors[slot] = rgb;
+            cachedIndices[slot] = index;
+            return index;
+        }
+    }
+
+    /** Box of bins {@code from} (inclusive) to {@code to} (exclusive) for median cut. */
+    private static final class Box {
+
+        final int from;
+        final int to;
+        private final long pixels;
+        private final int[] min = new int[3];
+        private final int[] max = new int[3];
+
+        Box(int[] bins, int from, int to, int[] counts) {
+            this.from = from;
+            this.to = to;
+            Arrays.fill(min, Integer.MAX_VALUE);
+            long n = 0;
+            for (int i = from; i < to; i += 1) {
+                n += counts[bins[i]];
+                for (int c = 0; c < 3; c += 1) {
+                    int v = component(bins[i], c);
+                    min[c] = Math.min(min[c], v);
+                    max[c] = Math.max(max[c], v);
+                }
+            }
+            this.pixels = n;
+        }
+
+        int longest() {
+            int channel = 0;
+            for (int c = 1; c < 3; c += 1) {
+                if (max[c] - min[c] > max[channel] - min[channel]) {
+                    channel = c;
+                }
+            }
+            return channel;
+        }
+
+        /** Boxes with many pixels and a wide range are split first. */
+        double score() {
+            int channel = longest();
+            return (double) pixels * (max[channel] - min[channel] + 1);
+        }
+
+        /** Sorts the bins along the longest channel and splits at the median pixel. */
+        List<Box> split(int[] bins, int[] counts) {
+            final int channel = longest();
+            sort(bins, from, to, channel);
+            long half = pixels / 2;
+            long n = 0;
+            int middle = from + 1;
+            for (int i = from; i < to - 1; i += 1) {
+                n += counts[bins[i]];
+                middle = i + 1;
+                if (n >= half)
+                    break;
+            }
+            List<Box> result = new ArrayList<>(2);
+            result.add(new Box(bins, from, middle, counts));
+            result.add(new Box(bins, middle, to, counts));
+            return result;
+        }
+
+        /** Sorts by the given channel with a counting sort, since components have only 5 bits. */
+        private static void sort(int[] bins, int from, int to, int channel) {
+            int[] start = new int[LEVELS + 1];
+            for (int i = from; i < to; i += 1) {
+                start[component(bins[i], channel) + 1] += 1;
+            }
+            for (int v = 0; v < LEVELS; v += 1) {
+                start[v+1] += start[v];
+            }
+            int[] sorted = new int[to - from];
+            for (int i = from; i < to; i += 1) {
+                sorted[start[component(bins[i], channel)]++] = bins[i];
+            }
+            System.arraycopy(sorted, 0, bins, from, sorted.length);
+        }
+    }
+
+    /** Open addressing hash table of colors, limited to a maximal number of colors. */
+    private static final class ColorTable {
+
+        private final int limit;
+        private final int[] keys;
+        private final int[] values;
+        private final boolean[] used;
+        private final int[] colors;
+        private int size = 0;
+
+        ColorTable(int limit) {
+            this.limit = limit;
+            int capacity = Integer.highestOneBit(limit * 4 - 1) << 1;
+            keys = new int[capacity];
+            values = new int[capacity];
+            used = new boolean[capacity];
+            colors = new int[limit];
+        }
+
+        /** Returns the index of the color, adding it if new; -1 if the limit is exceeded. */
+        int index(int argb) {
+            int mask = keys.length - 1;
+            int slot = (argb * 0x9E3779B9 >>> 16) & mask;
+            while (used[slot]) {
+                if (keys[slot] == argb)
+                    return values[slot];
+                slot = (slot + 1) & mask;
+            }
+            if (size == limit)
+                return -1;
+            used[slot] = true;
+            keys[slot] = argb;
+            values[slot] = size;
+            colors[size] = argb;
+            return size++;
+        }
+
+        /** Returns the index of the color, -1 if not in the table. */
+        int find(int argb) {
+            int mask = keys.length - 1;
+            int slot = (argb * 0x9E3779B9 >>> 16) & mask;
+            while (used[slot]) {
+                if (keys[slot] == argb)
+                    return values[slot];
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        int[] palette() {
+            return Arrays.copyOf(colors, size);
+        }
+    }
+
+    private ColorQuantizer() {
+        throw new AssertionError("static only");
+    }
+}
@@ -0,0 +1,436 @@
+/*
+ * Copyright: Carlos F. Heuberger. All rights reserved.
+ *
+ */
+package cfh.jsnip;
+
+import java.awt.GraphicsDevice;
+import java.awt.GraphicsEnvironment;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import cfh.jsnip.ImageCatcher.DiffMode;
+
+/**
+ * Commands run without system tray, see {@link #usage()}.
+ *
+ * @author Carlos F. Heuberger
+ *
+ */
+final class CommandLine {
+
+    static final int EXIT_OK = 0;
+    static final int EXIT_FAILED = 1;
+    static final int EXIT_USAGE = 2;
+
+    /** Runs the command given by the arguments and returns the exit code. */
+    static int run(String[] args) {
+        List<String> arguments = new ArrayList<>(Arrays.asList(args));
+        String command = arguments.remove(0);
+        try {
+            switch (command) {
+                case "capture": return capture(arguments);
+                case "shots": return shots(arguments);
+                case "compare": return compare(arguments);
+                case "help": case "-h": case "-help": case "--help":
+                    usage();
+                    return EXIT_OK;
+                default:
+                    System.err.println("unknown command: " + command);
+                    usage();
+                    return EXIT_USAGE;
+            }
+        } catch (UsageException ex) {
+            System.err.println(ex.getMessage());
+            usage();
+            return EXIT_USAGE;
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            return EXIT_FAILED;
+        }
+    }
+
+    private static void usage() {
+        System.err.println(Snipper.VERSION);
+        System.err.println("usage: java -jar jsnip.jar <command> [options] <arguments>");
+        System.err.println();
+        System.err.println("  capture [-c fast|default|small] [-i|-d] <region>[=<file>]...");
+        System.err.println("    captures each region and writes it as PNG to <file>, or to stdout if no file or '-'");
+        System.err.println("    (at most one region to stdout)");
+        System.err.println("    <region>  x,y,width,height in screen coordinates, or");
+        System.err.println("              <n>:x,y,width,height relative to the screen device <n> (0 = first)");
+        System.err.println("    @<file>   reads regions from <file>, one per line");
+        System.err.println("    -c        PNG compression");
+        System.err.println("    -i        indexed colors, -d indexed colors with dithering");
+        System.err.println();
+        System.err.println("  shots <shot list>...");
+        System.err.println("    captures all regions of the shot lists, saved from the tray menu, and writes them to their files");
+        System.err.println();
+        System.err.println("  compare [-m <mode>] [-e <tolerance>] [-r <radius>] [-t <percent>] [-c fast|default|small]");
+        System.err.println("          <baseline dir> <candidate dir> <output dir>");
+        System.err.println("    compares each image of <baseline dir> with the image of the same name in <candidate dir>;");
+        System.err.println("    writes the differences and changes report of each changed pair, and " + BatchCompare.SUMMARY + ", to <output dir>");
+        System.err.println("    exit code " + EXIT_OK + " if all pairs passed, " + EXIT_FAILED + " otherwise");
+        System.err.println("  compare [-m <mode>] [-e <tolerance>] [-r <radius>] [-t <percent>] [-c fast|default|small] [-s <rows>]");
+        System.err.println("          <baseline> <candidate> <output>");
+        System.err.println("    compares two image files in strips, for images too large for memory;");
+        System.err.println("    writes the differences as PNG to <output> and, if changed, the changes report to <output>.json");
+        StringBuilder modes = new StringBuilder();
+        for (DiffMode mode : DiffMode.values()) {
+            modes.append(modes.length() == 0 ? "" : "|").append(mode.name().toLowerCase());
+        }
+        System.err.println("    -m        compare mode " + modes + " (default black_white)");
+        System.err.println("    -e        tolerance of each RGB component, tolerant mode, 0 to " + Tolerance.MAX_TOLERANCE 
+                + " (default " + Tolerance.DEFAULT_TOLERANCE + ")");
+        System.err.println("    -r        radius searched for a matching pixel, tolerant mode, 0 to " + Tolerance.MAX_RADIUS 
+                + " (default " + Tolerance.DEFAULT_RADIUS + ")");
+        System.err.println("    -t        maximal percentage of changed pixels of a passed pair (default 0)");
+        System.err.println("    -c        PNG compression of the differences (default " + PngEncoder.Compression.DEFAULT.name().toLowerCase() + ")");
+        System.err.println("    -s        rows per strip (default about " + StripCompare.STRIP_PIXELS / 1_000_000 + " million pixels per strip)");
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    private static int capture(List<String> arguments) throws IOException, InterruptedException {
+        PngEncoder.Compression compression = Settings.getPngCompression();
+        PngEncoder.Colors colors = PngEncoder.Colors.TRUE_COLOR;
+        List<String> regions = new ArrayList<>();
+        for (int i = 0; i < arguments.size(); i += 1) {
+            String arg = arguments.get(i);
+            switch (arg) {
+                case "-c":
+                    if (++i == arguments.size())
+                        throw new UsageException("missing compression");
+                    compression = compression(arguments.get(i));
+                    break;
+                case "-i": colors = PngEncoder.Colors.INDEXED; break;
+                case "-d": colors = PngEncoder.Colors.DITHERED; break;
+                default:
+                    if (arg.startsWith("@")) {
+                        regions.addAll(readLines(new File(arg.substring(1))));
+                    } else if (arg.startsWith("-") && !arg.matches("-\\d.*")) {
+                        throw new UsageException("unknown option: " + arg);
+                    } else {
+                        regions.add(arg);
+                    }
+                    break;
+            }
+        }
+        if (regions.isEmpty())
+            throw new UsageException("missing region");
+        if (GraphicsEnvironment.isHeadless()) {
+            System.err.println("capture needs a display (headless environment)");
+            return EXIT_FAILED;
+        }
+
+        GraphicsDevice[] devices = GraphicsEnvironment.getLocalGraphicsEnvironment().getScreenDevices();
+        List<ShotList.Shot> shots = new ArrayList<>();
+        int stdout = 0;
+        for (String region : regions) {
+            ShotList.Shot shot = parseShot(region, devices);
+            if (shot.file == null && ++stdout > 1)
+                throw new UsageException("only one region can be written to stdout");
+            shots.add(shot);
+        }
+
+        Map<ShotList.Shot, BufferedImage> images = ShotList.capture(shots);
+
+        int result = EXIT_OK;
+        PngEncoder encoder = new PngEncoder(compression, colors);
+        for (ShotList.Shot shot : shots) {
+            BufferedImage image = images.get(shot);
+            if (image == null) {
+                result = EXIT_FAILED;
+                continue;
+            }
+            OutputStream output = shot.file == null
+                    ? new FileOutputStream(FileDescriptor.out)
+                    : new FileOutputStream(shot.file);
+            output = new BufferedOutputStream(output, 64 * 1024);
+            try {
+                encoder.write(image, output);
+            } catch (IOException ex) {
+                System.err.println("writing " + (shot.file == null ? "stdout" : shot.file) + ": " + ex);
+                result = EXIT_FAILED;
+            } finally {
+                if (shot.file == null) {
+                    output.flush();
+                } else {
+                    output.close();
+                }
+            }
+        }
+        return result;
+    }
+
+    private static int shots(List<String> arguments) throws IOException, InterruptedException {
+        if (arguments.isEmpty())
+            throw new UsageException("missing shot list");
+        if (GraphicsEnvironment.isHeadless()) {
+            System.err.println("shots needs a display (headless environment)");
+            return EXIT_FAILED;
+        }
+        long start = System.nanoTime();
+        List<ShotList.Shot> shots = new ArrayList<>();
+        for (String name : arguments) {
+            shots.addAll(ShotList.read(new File(name)));
+        }
+        Map<ShotList.Shot, BufferedImage> images = ShotList.capture(shots);
+        long captured = System.nanoTime();
+        Map<ShotList.Shot, Exception> failed = ShotList.save(images);
+        for (Map.Entry<ShotList.Shot, Exception> entry : failed.entrySet()) {
+            System.err.println("writing " + entry.getKey().file + ": " + entry.getValue());
+        }
+        long end = System.nanoTime();
+        int saved = images.size() - failed.size();
+        System.err.printf("%d of %d shots saved, capture %.1f ms, save %.1f ms%n",
+                saved, shots.size(), (captured - start) / 1e6, (end - captured) / 1e6);
+        return saved == shots.size() ? EXIT_OK : EXIT_FAILED;
+    }
+
+    private static int compare(List<String> arguments) throws IOException, InterruptedException {
+        DiffMode mode = DiffMode.BLACK_WHITE;
+        int tolerance = Tolerance.DEFAULT_TOLERANCE;
+        int radius = Tolerance.DEFAULT_RADIUS;
+        double percent = 0;
+        PngEncoder.Compression compression = PngEncoder.Compression.DEFAULT;
+        int strip = 0;
+        List<File> dirs = new ArrayList<>();
+        for (int i = 0; i < arguments.size(); i += 1) {
+            String arg = arguments.get(i);
+            switch (arg) {
+                case "-m":
+                    if (++i == arguments.size())
+                        throw new UsageException("missing mode");
+                    mode = mode(arguments.get(i));
+                    break;
+                case "-e":
+                    if (++i == arguments.size())
+                        throw new UsageException("missing tolerance");
+                    tolerance = parseInt(arguments.get(i), "tolerance", Tolerance.MAX_TOLERANCE);
+                    break;
+                case "-r":
+                    if (++i == arguments.size())
+                        throw new UsageException("missing radius");
+                    radius = parseInt(arguments.get(i), "radius", Tolerance.MAX_RADIUS);
+                    break;
+                case "-t":
+                    if (++i == arguments.size())
+                        throw new UsageException("missing threshold");
+                    try {
+                        percent = Double.parseDouble(arguments.get(i));
+                    } catch (NumberFormatException ex) {
+                        throw new UsageException("invalid threshold: " + arguments.get(i));
+                    }
+                    if (percent < 0 || percent > 100)
+                        throw new UsageException("threshold not in 0 to 100: " + arguments.get(i));
+                    break;
+                case "-c":
+                    if (++i == arguments.size())
+                        throw new UsageException("missing compression");
+                    compression = compression(arguments.get(i));
+                    break;
+                case "-s":
+                    if (++i == arguments.size())
+                        throw new UsageException("missing strip rows");
+                    try {
+                        strip = Integer.parseInt(arguments.get(i));
+                    } catch (NumberFormatException ex) {
+                        throw new UsageException("invalid strip rows: " + arguments.get(i));
+                    }
+                    if (strip <= 0)
+                        throw new UsageException("strip rows not positive: " + strip);
+                    break;
+                default:
+                    if (arg.startsWith("-"))
+                        throw new UsageException("unknown option: " + arg);
+                    dirs.add(new File(arg));
+                    break;
+            }
+        }
+        if (dirs.size() != 3)
+            throw new UsageException("expected baseline, candidate and output directory");
+        Tolerance.Limits limits = new Tolerance.Limits(tolerance, radius);
+        if (dirs.get(0).isFile() && dirs.get(1).isFile())
+            return compareFiles(dirs.get(0), dirs.get(1), dirs.get(2), mode, limits, percent / 100, strip, compression);
+        for (File dir : dirs.subList(0, 2)) {
+            if (!dir.isDirectory())
+                throw new UsageException("not a directory: " + dir);
+            if (BatchCompare.inside(dirs.get(2), dir))
+                throw new UsageException("output directory " + dirs.get(2) + " inside input directory " + dir);
+        }
+
+        long start = System.nanoTime();
+        List<BatchCompare.Result> results = new BatchCompare(dirs.get(0), dirs.get(1), dirs.get(2), 
+                mode, limits, percent / 100, compression).run();
+        Map<BatchCompare.Status, Integer> counts = new EnumMap<>(BatchCompare.Status.class);
+        for (BatchCompare.Result result : results) {
+            Integer count = counts.get(result.status);
+            counts.put(result.status, count == null ? 1 : count + 1);
+            if (result.status != BatchCompare.Status.PASSED) {
+                System.err.println(result.summary());
+            }
+        }
+        StringBuilder summary = new StringBuilder();
+        for (Map.Entry<BatchCompare.Status, Integer> entry : counts.entrySet()) {
+            summary.append(", ").append(entry.getValue()).append(' ').append(entry.getKey().getName());
+        }
+        System.err.printf("%d pairs%s, %.1f s%n", results.size(), summary, (System.nanoTime() - start) / 1e9);
+        Integer passed = counts.get(BatchCompare.Status.PASSED);
+        return (passed == null ? 0 : passed) == results.size() ? EXIT_OK : EXIT_FAILED;
+    }
+
+    private static int compareFiles(File baseline, File candidate, File output, DiffMode mode, Tolerance.Limits limits,
+            double threshold, int strip, PngEncoder.Compression compression) throws IOException {
+        File json = new File(output.getPath() + ".json");
+        for (File file : Arrays.asList(output, json)) {
+            if (StripCompare.sameFile(file, baseline) || StripCompare.sameFile(file, candidate))
+                throw new UsageException("output would overwrite input: " + file);
+        }
+        long start = System.nanoTime();
+        DiffReport report = StripCompare.compare(baseline, candidate, output, mode, limits, strip, compression);
+        if (report.count > 0) {
+            report.write(json);
+        }
+        boolean passed = report.ratio() <= threshold;
+        System.err.printf("%s %s: %s, %.1f s%n", passed ? BatchCompare.Status.PASSED.getName() : BatchCompare.Status.FAILED.getName(), 
+                candidate, report.summary(), (System.nanoTime() - start) / 1e9);
+        return passed ? EXIT_OK : EXIT_FAILED;
+    }
+
+    /** Parses <code>[n:]x,y,w,h[=file]</code>. */
+    private static ShotList.Shot parseShot(String text, GraphicsDevice[] devices) {
+        String region = text;
+        File file = null;
+        int index = region.indexOf('=');
+        if (index != -1) {
+            String name = region.substring(index+1).trim();
+            region = region.substring(0, index).trim();
+            if (!name.isEmpty() && !name.equals("-")) {
+                file = new File(name);
+            }
+        }
+        GraphicsDevice device = null;
+        Rectangle relative = null;
+        index = region.indexOf(':');
+        if (index != -1) {
+            int number;
+            try {
+                number = Integer.parseInt(region.substring(0, index).trim());
+            } catch (NumberFormatException ex) {
+                throw new UsageException("invalid device in \"" + text + "\"");
+            }
+            if (number < 0 || number >= devices.length)
+                throw new UsageException("no device " + number + " (" + devices.length + " devices)");
+            device = devices[number];
+            relative = device.getDefaultConfiguration().getBounds();
+            region = region.substring(index+1);
+        }
+        Rectangle rectangle = parseRectangle(region, text);
+        if (device == null) {
+            device = ShotList.device(rectangle, devices);
+            if (device == null)
+                throw new UsageException("region not on any device: \"" + text + "\"");
+        } else {
+            rectangle.translate(relative.x, relative.y);
+        }
+        rectangle = rectangle.intersection(device.getDefaultConfiguration().getBounds());
+        if (rectangle.isEmpty())
+            throw new UsageException("region outside device: \"" + text + "\"");
+        return new ShotList.Shot(device, rectangle, file);
+    }
+
+    /** Parses <code>x,y,w,h</code>. */
+    static Rectangle parseRectangle(String region, String text) {
+        String[] parts = region.split(",");
+        if (parts.length != 4)
+            throw new UsageException("invalid region \"" + text + "\", expected x,y,width,height");
+        int[] values = new int[4];
+        for (int i = 0; i < 4; i += 1) {
+            try {
+                values[i] = Integer.parseInt(parts[i].trim());
+            } catch (NumberFormatException ex) {
+                throw new UsageException("invalid number \"" + parts[i] + "\" in \"" + text + "\"");
+            }
+        }
+        if (values[2] <= 0 || values[3] <= 0)
+            throw new UsageException("empty region \"" + text + "\"");
+        return new Rectangle(values[0], values[1], values[2], values[3]);
+    }
+
+    /** Parses a number from 0 to {@code max}. */
+    private static int parseInt(String text, String name, int max) {
+        int value;
+        try {
+            value = Integer.parseInt(text);
+        } catch (NumberFormatException ex) {
+            throw new UsageException("invalid " + name + ": " + text);
+        }
+        if (value < 0 || value > max)
+            throw new UsageException(name + " not in 0 to " + max + ": " + text);
+        return value;
+    }
+
+    static DiffMode mode(String name) {
+        for (DiffMode mode : DiffMode.values()) {
+            if (mode.name().equalsIgnoreCase(name.replace('-', '_')))
+                return mode;
+        }
+        throw new UsageException("unknown mode: " + name);
+    }
+
+    static PngEncoder.Compression compression(String name) {
+        for (PngEncoder.Compression compression : PngEncoder.Compression.values()) {
+            if (compression.name().equalsIgnoreCase(name))
+                return compression;
+        }
+        throw new UsageException("unknown compression: " + name);
+    }
+
+    /** Reads the not empty lines of a file, ignoring lines starting with '#'. */
+    static List<String> readLines(File file) throws IOException {
+        List<String> lines = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#")) {
+                    lines.add(line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return lines;
+    }
+
+    private CommandLine() {
+        throw new AssertionError("static only");
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    @SuppressWarnings("serial")
+    static class UsageException extends IllegalArgumentException {
+
+        UsageException(String message) {
+            super(message);
+        }
+    }
+}
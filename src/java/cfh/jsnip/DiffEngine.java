@@ -0,0 +1,478 @@
+/*
+ * Copyright: Carlos F. Heuberger. All rights reserved.
+ *
+ */
+package cfh.jsnip;
+
+import static java.lang.Math.*;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+
+import cfh.jsnip.ImageCatcher.DiffMode;
+
+/**
+ * Compares two images row by row working directly on the {@code int[]} of
+ * {@code DataBufferInt} backed images (<code>TYPE_INT_RGB</code>, <code>TYPE_INT_ARGB</code>).
+ * Other image types are read and written a whole row at a time.
+ * <p>
+ * Kernels work on ARGB values and write the same values {@code BufferedImage.setRGB} would.
+ * Large images are split in bands of rows processed in parallel by the {@link Workers} pool;
+ * since each pixel only depends on its own values, the result is the same as processing serially.
+ * The changed pixels are collected in the same pass for the {@link DiffReport}.
+ *
+ * @author Carlos F. Heuberger
+ *
+ */
+final class DiffEngine {
+
+    private static final int OPAQUE = 0xff000000;
+    private static final int WHITE = 0x00ffffff;
+    private static final int BLACK = 0;
+    private static final int GRAY = 0x00010101;
+    
+    /** Minimal number of pixels in a band processed by one task. */
+    private static final int BAND_PIXELS = 1 << 16;
+
+    /**
+     * Replaces the pixels of {@code image} with the difference to {@code original}
+     * and returns the changes found, as in {@link #changes(BufferedImage, BufferedImage, DiffMode, List) changes}.
+     * Both images must have the same size. The tolerant mode uses the limits of the {@link Settings}.
+     */
+    static DiffReport diff(BufferedImage original, BufferedImage image, DiffMode mode) {
+        return diff(original, image, mode, Tolerance.Limits.settings());
+    }
+
+    /** As {@link #diff(BufferedImage, BufferedImage, DiffMode)}, with the limits of the tolerant mode. */
+    static DiffReport diff(BufferedImage original, BufferedImage image, DiffMode mode, Tolerance.Limits limits) {
+        if (original.getWidth() != image.getWidth() || original.getHeight() != image.getHeight())
+            throw new IllegalArgumentException("size mismatch: " + original.getWidth() + "x" + original.getHeight()
+                                               + " <> " + image.getWidth() + "x" + image.getHeight());
+
+        int height = image.getHeight();
+        DiffReport.Collector collector = new DiffReport.Collector(mode, image.getWidth(), height);
+        diff(original, image, mode, limits, 0, height, 0, collector);
+        return collector.report();
+    }
+
+    /**
+     * Replaces rows {@code from} (inclusive) to {@code to} (exclusive) of {@code image} with the difference
+     * to {@code original}, passing the changes to the collector {@code offset} rows lower; used to compare
+     * large images in strips. Modes depending on neighbouring pixels also read up to {@link #halo(DiffMode, Tolerance.Limits) halo}
+     * rows above and below, which must be the neighbouring rows of the large image.
+     * Both images must have the same size.
+     */
+    static void diff(BufferedImage original, BufferedImage image, DiffMode mode, Tolerance.Limits limits,
+            int from, int to, int offset, DiffReport.Collector collector) {
+        Window window = window(mode, limits, original, image);
+        int bandRows = max(1, BAND_PIXELS / max(1, image.getWidth()));
+        if (Workers.parallelism() == 1 || to - from <= bandRows) {
+            diff(original, image, mode, window, from, to, offset, collector);
+        } else {
+            Workers.pool().invoke(new Band(original, image, mode, window, from, to, offset, bandRows, collector));
+        }
+    }
+
+    /** Returns {@code true} if the result of a pixel depends on its neighbours. */
+    static boolean windowed(DiffMode mode) {
+        return mode == DiffMode.SSIM || mode == DiffMode.TOLERANT;
+    }
+
+    /**
+     * Returns {@code true} if a pixel is changed exactly when its values differ; 
+     * otherwise the pixels for which the kernel gives the output of an unchanged pixel are unchanged.
+     */
+    static boolean exact(DiffMode mode) {
+        return mode != DiffMode.DELTA_E && !windowed(mode);
+    }
+
+    /** Number of rows above and below a pixel its result depends on. */
+    static int halo(DiffMode mode, Tolerance.Limits limits) {
+        switch (mode) {
+            case SSIM: return Perceptual.SSIM_SIZE / 2;
+            case TOLERANT: return limits.radius;
+            default: return 0;
+        }
+    }
+
+    /** Prepares the comparison for modes depending on neighbouring pixels, {@code null} for other modes. */
+    private static Window window(DiffMode mode, Tolerance.Limits limits, BufferedImage original, BufferedImage image) {
+        switch (mode) {
+            case SSIM: return new Perceptual.Ssim(original, image);
+            case TOLERANT: return new Tolerance(original, limits);
+            default: return null;
+        }
+    }
+
+    /**
+     * Counts the pixels of {@code image} changed in relation to {@code original}: the pixels with different values or,
+     * for modes not {@link #exact(DiffMode) exact}, the pixels for which the kernel of {@code mode} gives another 
+     * value than for an unchanged pixel.
+     * Only the given areas are examined, the whole image if {@code null}; modes depending on 
+     * neighbouring pixels always examine the whole image. Neither image is changed.
+     */
+    static Change changes(BufferedImage original, BufferedImage image, DiffMode mode, List<Rectangle> areas) {
+        if (original.getWidth() != image.getWidth() || original.getHeight() != image.getHeight())
+            throw new IllegalArgumentException("size mismatch: " + original.getWidth() + "x" + original.getHeight()
+                                               + " <> " + image.getWidth() + "x" + image.getHeight());
+        if (windowed(mode)) {
+            DiffReport report = diff(original, ImageCatcher.copy(image), mode);
+            Rectangle bounds = null;
+            for (DiffReport.Region region : report.regions) {
+                bounds = bounds == null ? new Rectangle(region.bounds) : bounds.union(region.bounds);
+            }
+            return new Change(report.count, (long) image.getWidth() * image.getHeight(), bounds);
+        }
+        if (areas == null) {
+            areas = Collections.singletonList(new Rectangle(0, 0, image.getWidth(), image.getHeight()));
+        }
+        boolean exact = exact(mode);
+        Rows o = new Rows(original);
+        Rows i = new Rows(image);
+        int[] changed = new int[0];
+        int[] same = new int[0];
+        long count = 0;
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = -1, maxY = -1;
+        for (Rectangle area : areas) {
+            int width = area.width;
+            if (changed.length < width) {
+                changed = new int[width];
+                same = new int[width];
+            }
+            for (int y = area.y; y < area.y + area.height; y += 1) {
+                int[] org = o.read(y);
+                int op = o.offset(y) + area.x;
+                int[] img = i.read(y);
+                int ip = i.offset(y) + area.x;
+                int x = 0;
+                while (x < width && (org[op+x] | o.alpha) == (img[ip+x] | i.alpha)) {
+                    x += 1;
+                }
+                if (x == width)
+                    continue;
+                if (!exact) {
+                    System.arraycopy(img, ip, changed, 0, width);
+                    System.arraycopy(org, op, same, 0, width);
+                    diffRow(mode, org, op, o.alpha, changed, 0, i.alpha, i.mask, width);
+                    diffRow(mode, org, op, o.alpha, same, 0, o.alpha, i.mask, width);
+                }
+                for ( ; x < width; x += 1) {
+                    if (exact ? (org[op+x] | o.alpha) != (img[ip+x] | i.alpha) : changed[x] != same[x]) {
+                        count += 1;
+                        minX = min(minX, area.x + x);
+                        maxX = max(maxX, area.x + x);
+                        minY = min(minY, y);
+                        maxY = max(maxY, y);
+                    }
+                }
+            }
+        }
+        Rectangle bounds = count == 0 ? null : new Rectangle(minX, minY, maxX - minX + 1, maxY - minY + 1);
+        return new Change(count, (long) image.getWidth() * image.getHeight(), bounds);
+    }
+
+    /** 
+     * Processes rows {@code from} (inclusive) to {@code to} (exclusive), 
+     * passing the runs of changed pixels of each row to the collector, {@code offset} rows lower.
+     */
+    private static void diff(BufferedImage original, BufferedImage image, DiffMode mode, Window window, 
+            int from, int to, int offset, DiffReport.Collector collector) {
+        Rows o = new Rows(original);
+        Rows i = new Rows(image);
+        Kernel kernel = window == null ? null : window.band(from);
+        boolean exact = exact(mode);
+        int width = image.getWidth();
+        int[] before = new int[width];
+        int[] same = new int[width];
+        int[] runs = new int[16];
+        for (int y = from; y < to; y += 1) {
+            int[] org = o.read(y);
+            int op = o.offset(y);
+            int[] img = i.read(y);
+            int ip = i.offset(y);
+            int x = 0;
+            if (window == null || window.equalUnchanged) {
+                while (x < width && (org[op+x] | o.alpha) == (img[ip+x] | i.alpha)) {
+                    x += 1;
+                }
+            }
+            if (x < width) {
+                System.arraycopy(img, ip, before, 0, width);
+                if (kernel != null) {
+                    Arrays.fill(same, window.unchanged);
+                } else if (!exact) {
+                    System.arraycopy(org, op, same, 0, width);
+                    diffRow(mode, org, op, o.alpha, same, 0, o.alpha, i.mask, width);
+                }
+            }
+            if (kernel == null) {
+                diffRow(mode, org, op, o.alpha, img, ip, i.alpha, i.mask, width);
+            } else {
+                kernel.row(y, img, ip, i.alpha, i.mask, width);
+            }
+            i.write(y);
+
+            int length = 0;
+            int count = 0;
+            double distance = 0;
+            int maxSquare = 0;
+            for ( ; x < width; x += 1) {
+                if (exact ? (org[op+x] | o.alpha) != (before[x] | i.alpha) : img[ip+x] != same[x]) {
+                    int c = org[op+x];
+                    int b = before[x];
+                    int dr = ((b >> 16) & 0xff) - ((c >> 16) & 0xff);
+                    int dg = ((b >> 8) & 0xff) - ((c >> 8) & 0xff);
+                    int db = (b & 0xff) - (c & 0xff);
+                    int square = dr*dr + dg*dg + db*db;
+                    distance += sqrt(square);
+                    maxSquare = max(maxSquare, square);
+                    count += 1;
+                    if (length > 0 && runs[length-1] == x - 1) {
+                        runs[length-1] = x;
+                    } else {
+                        if (length + 2 > runs.length) {
+                            runs = Arrays.copyOf(runs, 2 * runs.length);
+                        }
+                        runs[length++] = x;
+                        runs[length++] = x;
+                    }
+                }
+            }
+            collector.row(y + offset, runs, length, count, distance, maxSquare);
+        }
+    }
+
+    /**
+     * Applies the kernel of {@code mode} to one row.
+     * Source values are or-ed with the given alpha (<code>0xff000000</code> for images without alpha),
+     * the result is and-ed with {@code mask} before being stored in {@code img}.
+     */
+    static void diffRow(DiffMode mode, int[] org, int op, int oa, int[] img, int ip, int ia, int mask, int length) {
+        switch (mode) {
+            case BLACK_WHITE: equal(org, op, oa, img, ip, ia, mask, length, WHITE & mask, BLACK); break;
+            case WHITE_BLACK: equal(org, op, oa, img, ip, ia, mask, length, BLACK, WHITE & mask); break;
+            case GRAY_WHITE: distance(org, op, oa, img, ip, ia, mask, length, true); break;
+            case GRAY_BLACK: distance(org, op, oa, img, ip, ia, mask, length, false); break;
+            case SUB_BLACK: subtract(org, op, oa, img, ip, ia, mask, length, false); break;
+            case SUB_WHITE: subtract(org, op, oa, img, ip, ia, mask, length, true); break;
+            case MIXED: mixed(org, op, oa, img, ip, ia, mask, length); break;
+            case DELTA_E: Perceptual.deltaE(org, op, oa, img, ip, ia, mask, length); break;
+            case SSIM:
+            case TOLERANT: throw new IllegalArgumentException("mode depends on neighbouring pixels: " + mode);
+            default: throw new IllegalArgumentException("unrecognized mode: " + mode);
+        }
+    }
+
+    private static void equal(int[] org, int op, int oa, int[] img, int ip, int ia, int mask, int length, int same, int different) {
+        for (int x = 0; x < length; x += 1) {
+            img[ip+x] = ((org[op+x] | oa) == (img[ip+x] | ia)) ? same : different;
+        }
+    }
+
+    private static void distance(int[] org, int op, int oa, int[] img, int ip, int ia, int mask, int length, boolean inverse) {
+        for (int x = 0; x < length; x += 1) {
+            int o = org[op+x];
+            int i = img[ip+x];
+            int dr = ((i >> 16) & 0xff) - ((o >> 16) & 0xff);
+            int dg = ((i >> 8) & 0xff) - ((o >> 8) & 0xff);
+            int db = (i & 0xff) - (o & 0xff);
+            int n = (int) sqrt((double) (dr*dr + dg*dg + db*db));
+            n = max(0, min(255, inverse ? 255 - n : n));
+            img[ip+x] = GRAY * n;
+        }
+    }
+
+    private static void subtract(int[] org, int op, int oa, int[] img, int ip, int ia, int mask, int length, boolean inverse) {
+        int base = inverse ? 0x00ffffff : 0;
+        for (int x = 0; x < length; x += 1) {
+            int o = org[op+x];
+            int i = img[ip+x] | ia;
+            int r = abs(((i >> 16) & 0xff) - ((o >> 16) & 0xff));
+            int g = abs(((i >> 8) & 0xff) - ((o >> 8) & 0xff));
+            int b = abs((i & 0xff) - (o & 0xff));
+            img[ip+x] = ((i & OPAQUE) | (base ^ ((r << 16) | (g << 8) | b))) & mask;
+        }
+    }
+
+    private static void mixed(int[] org, int op, int oa, int[] img, int ip, int ia, int mask, int length) {
+        for (int x = 0; x < length; x += 1) {
+            int o = org[op+x];
+            int i = img[ip+x] | ia;
+            int r = (((i >> 16) & 0xff) + ((o >> 16) & 0xff)) / 2;
+            int g = (((i >> 8) & 0xff) + ((o >> 8) & 0xff)) / 2;
+            int b = ((i & 0xff) + (o & 0xff)) / 2;
+            img[ip+x] = ((i & OPAQUE) | (r << 16) | (g << 8) | b) & mask;
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /** Result of {@link DiffEngine#changes(BufferedImage, BufferedImage, DiffMode, List)}. */
+    static final class Change {
+
+        /** Number of changed pixels. */
+        final long count;
+        /** Number of pixels of the image. */
+        final long pixels;
+        /** Bounding box of the changed pixels, {@code null} if none. */
+        final Rectangle bounds;
+
+        Change(long count, long pixels, Rectangle bounds) {
+            this.count = count;
+            this.pixels = pixels;
+            this.bounds = bounds;
+        }
+
+        /** Changed pixels in relation to all pixels, 0.0 to 1.0. */
+        double ratio() {
+            return pixels == 0 ? 0 : (double) count / pixels;
+        }
+    }
+
+    /**
+     * Comparison of a mode depending on neighbouring pixels, prepared for a pair of images.
+     * Since bands are processed in parallel and the image is overwritten by the result, 
+     * anything needed from the image must be taken when created.
+     */
+    abstract static class Window {
+
+        /** Output for an unchanged pixel. */
+        final int unchanged;
+        /** Pixels equal in both images are unchanged, independent of their neighbours. */
+        final boolean equalUnchanged;
+
+        Window(int unchanged, boolean equalUnchanged) {
+            this.unchanged = unchanged;
+            this.equalUnchanged = equalUnchanged;
+        }
+
+        /** Returns the kernel for a band of rows starting at {@code from}, called by one thread. */
+        abstract Kernel band(int from);
+    }
+
+    /** Kernel for consecutive rows of a {@link Window}. */
+    static interface Kernel {
+
+        /**
+         * Replaces row {@code y} of the image in {@code img} with the result; 
+         * the result is and-ed with {@code mask}. Rows are processed top to bottom.
+         */
+        void row(int y, int[] img, int ip, int ia, int mask, int length);
+    }
+
+    /** Task splitting rows in halves until at most {@code bandRows} are left. */
+    @SuppressWarnings("serial")
+    private static final class Band extends RecursiveAction {
+
+        private final BufferedImage original;
+        private final BufferedImage image;
+        private final DiffMode mode;
+        private final Window window;
+        private final int from;
+        private final int to;
+        private final int offset;
+        private final int bandRows;
+        private final DiffReport.Collector collector;
+
+        Band(BufferedImage original, BufferedImage image, DiffMode mode, Window window, int from, int to, 
+                int offset, int bandRows, DiffReport.Collector collector) {
+            this.original = original;
+            this.image = image;
+            this.mode = mode;
+            this.window = window;
+            this.from = from;
+            this.to = to;
+            this.offset = offset;
+            this.bandRows = bandRows;
+            this.collector = collector;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= bandRows) {
+                diff(original, image, mode, window, from, to, offset, collector);
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new Band(original, image, mode, window, from, middle, offset, bandRows, collector),
+                          new Band(original, image, mode, window, middle, to, offset, bandRows, collector));
+            }
+        }
+    }
+
+    /** Row access to an image, directly on the data array if possible; not thread safe. */
+    static final class Rows {
+
+        private final BufferedImage image;
+        private final int width;
+
+        /** Data array, the image's own array if {@code direct}. */
+        private final int[] data;
+        private final boolean direct;
+        private final int base;
+        private final int stride;
+
+        /** Or-ed to read values: <code>0xff000000</code> if the image has no alpha. */
+        final int alpha;
+        /** And-ed to written values: <code>0x00ffffff</code> if the image has no alpha. */
+        final int mask;
+
+        Rows(BufferedImage image) {
+            this.image = image;
+            this.width = image.getWidth();
+
+            WritableRaster raster = image.getRaster();
+            int type = image.getType();
+            if ((type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB)
+                    && raster.getDataBuffer() instanceof DataBufferInt
+                    && raster.getSampleModel() instanceof SinglePixelPackedSampleModel) {
+                DataBufferInt buffer = (DataBufferInt) raster.getDataBuffer();
+                SinglePixelPackedSampleModel model = (SinglePixelPackedSampleModel) raster.getSampleModel();
+                data = buffer.getData();
+                direct = true;
+                stride = model.getScanlineStride();
+                base = buffer.getOffset()
+                        - raster.getSampleModelTranslateY() * stride
+                        - raster.getSampleModelTranslateX();
+                alpha = (type == BufferedImage.TYPE_INT_RGB) ? OPAQUE : 0;
+                mask = (type == BufferedImage.TYPE_INT_RGB) ? WHITE : 0xffffffff;
+            } else {
+                data = new int[width];
+                direct = false;
+                stride = 0;
+                base = 0;
+                alpha = 0;
+                mask = 0xffffffff;
+            }
+        }
+
+        /** Returns the array containing row {@code y}, starting at {@link #offset(int)}. */
+        int[] read(int y) {
+            if (!direct) {
+                image.getRGB(0, y, width, 1, data, 0, width);
+            }
+            return data;
+        }
+
+        int offset(int y) {
+            return direct ? base + y * stride : 0;
+        }
+
+        /** Stores row {@code y} back into the image, if not working directly on its data. */
+        void write(int y) {
+            if (!direct) {
+                image.setRGB(0, y, width, 1, data, 0, width);
+            }
+        }
+    }
+
+    private DiffEngine() {
+        throw new AssertionError("static only");
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright: Carlos F. Heuberger. All rights reserved.
+ *
+ */
+package cfh.jsnip;
+
+import static java.lang.Math.*;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+import cfh.jsnip.ImageCatcher.DiffMode;
+
+/**
+ * Result of a comparison by {@link DiffEngine#diff(java.awt.image.BufferedImage, java.awt.image.BufferedImage, DiffMode)}:
+ * number of changed pixels, the connected regions of changed pixels (8-neighbourhood) and the
+ * maximal and mean color distance of the changed pixels. The color distance is the euclidean
+ * distance of the RGB values, 0 to about 441.
+ * <p>
+ * The changed pixels of each row are collected as runs, in parallel; the regions are then
+ * labelled in one pass over the runs, joining overlapping runs of adjacent rows with union-find.
+ *
+ * @author Carlos F. Heuberger
+ *
+ */
+final class DiffReport {
+
+    /** Largest regions first, then top to bottom, left to right. */
+    private static final Comparator<Region> ORDER = new Comparator<Region>() {
+        @Override
+        public int compare(Region r1, Region r2) {
+            if (r1.pixels != r2.pixels)
+                return r1.pixels > r2.pixels ? -1 : 1;
+            if (r1.bounds.y != r2.bounds.y)
+                return r1.bounds.y - r2.bounds.y;
+            return r1.bounds.x - r2.bounds.x;
+        }
+    };
+
+    final DiffMode mode;
+    final int width;
+    final int height;
+    /** Number of changed pixels. */
+    final long count;
+    final double maxDistance;
+    /** Mean color distance of the changed pixels. */
+    final double meanDistance;
+    /** Connected regions of changed pixels, largest first. */
+    final List<Region> regions;
+
+    private DiffReport(DiffMode mode, int width, int height, long count, double maxDistance, double meanDistance,
+            List<Region> regions) {
+        this.mode = mode;
+        this.width = width;
+        this.height = height;
+        this.count = count;
+        this.maxDistance = maxDistance;
+        this.meanDistance = meanDistance;
+        this.regions = Collections.unmodifiableList(regions);
+    }
+
+    /** Changed pixels in relation to all pixels, 0.0 to 1.0. */
+    double ratio() {
+        long pixels = (long) width * height;
+        return pixels == 0 ? 0 : (double) count / pixels;
+    }
+
+    /** Short description for the user. */
+    String summary() {
+        return String.format(Locale.ROOT, "%,d of %,d pixels changed (%.3f%%) in %,d regions; color distance max %.1f, mean %.1f",
+                count, (long) width * height, 100 * ratio(), regions.size(), maxDistance, meanDistance);
+    }
+
+    /** Writes the report as CSV if the file name ends in {@code .csv}, as JSON otherwise. */
+    void write(File file) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8);
+        try {
+            if (file.getName().toLowerCase().endsWith(".csv")) {
+                writeCsv(writer);
+            } else {
+                writeJson(writer);
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    void writeJson(Writer writer) throws IOException {
+        StringBuilder json = new StringBuilder(256 + 80 * regions.size());
+        json.append("{\n");
+        json.append("  \"mode\": \"").append(mode.name()).append("\",\n");
+        json.append("  \"width\": ").append(width).append(",\n");
+        json.append("  \"height\": ").append(height).append(",\n");
+        json.append("  \"changed\": ").append(count).append(",\n");
+        json.append("  \"ratio\": ").append(formatRatio(ratio())).append(",\n");
+        json.append("  \"maxDistance\": ").append(format(maxDistance)).append(",\n");
+        json.append("  \"meanDistance\": ").append(format(meanDistance)).append(",\n");
+        json.append("  \"regions\": [");
+        String separator = "\n";
+        for (Region region : regions) {
+            Rectangle b = region.bounds;
+            json.append(separator).append("    { ");
+            json.append("\"x\": ").append(b.x).append(", \"y\": ").append(b.y);
+            json.append(", \"width\": ").append(b.width).append(", \"height\": ").append(b.height);
+            json.append(", \"changed\": ").append(region.pixels).append(" }");
+            separator = ",\n";
+        }
+        json.append(regions.isEmpty() ? "]\n" : "\n  ]\n");
+        json.append("}\n");
+        writer.write(json.toString());
+    }
+
+    /** One line for the whole image, then one line per region. */
+    void writeCsv(Writer writer) throws IOException {
+        StringBuilder csv = new StringBuilder(256 + 40 * regions.size());
+        csv.append("area,x,y,width,height,changed,ratio,max distance,mean distance\r\n");
+        csv.append("image,0,0,").append(width).append(',').append(height).append(',').append(count).append(',')
+           .append(formatRatio(ratio())).append(',').append(format(maxDistance)).append(',').append(format(meanDistance))
+           .append("\r\n");
+        for (Region region : regions) {
+            Rectangle b = region.bounds;
+            csv.append("region,").append(b.x).append(',').append(b.y).append(',')
+               .append(b.width).append(',').append(b.height).append(',').append(region.pixels).append(",,,\r\n");
+        }
+        writer.write(csv.toString());
+    }
+
+    static String format(double value) {
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+
+    /** Ratio with 6 significant digits, small ratios would be rounded to 0 otherwise. */
+    static String formatRatio(double value) {
+        return String.format(Locale.ROOT, "%.6g", value);
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /** Connected changed pixels. */
+    static final class Region {
+
+        final Rectangle bounds;
+        /** Number of changed pixels. */
+        final long pixels;
+
+        Region(Rectangle bounds, long pixels) {
+            this.bounds = bounds;
+            this.pixels = pixels;
+        }
+    }
+
+    /**
+     * Collects the changed pixels row by row; different rows may be added by different threads.
+     */
+    static final class Collector {
+
+        private final DiffMode mode;
+        private final int width;
+        private final int height;
+        /** Start and end (inclusive) of each run of changed pixels, per row. */
+        private final int[][] runs;
+        private final int[] counts;
+        private final double[] distances;
+        private final int[] maxSquares;
+
+        Collector(DiffMode mode, int width, int height) {
+            this.mode = mode;
+            this.width = width;
+            this.height = height;
+            runs = new int[height][];
+            counts = new int[height];
+            distances = new double[height];
+            maxSquares = new int[height];
+        }
+
+        /**
+         * Sets the changes of a row.
+         *
+         * @param runs      start and end (inclusive) of each run of changed pixels, {@code length} values
+         * @param distance  sum of the color distances of the changed pixels
+         * @param maxSquare maximal squared color distance
+         */
+        void row(int y, int[] runs, int length, int count, double distance, int maxSquare) {
+            if (length > 0) {
+                this.runs[y] = Arrays.copyOf(runs, length);
+                counts[y] = count;
+                distances[y] = distance;
+                maxSquares[y] = maxSquare;
+            }
+        }
+
+        /** Labels the regions and creates the report. */
+        DiffReport report() {
+            long count = 0;
+            double distance = 0;
+            int maxSquare = 0;
+            int total = 0;
+            for (int y = 0; y < height; y += 1) {
+                count += counts[y];
+                distance += distances[y];
+                maxSquare = max(maxSquare, maxSquares[y]);
+                if (runs[y] != null) {
+                    total += runs[y].length / 2;
+                }
+            }
+
+            // union-find over all runs, numbered row by row
+            int[] parent = new int[total];
+            for (int i = 0; i < total; i += 1) {
+                parent[i] = i;
+            }
+            int first = 0;
+            int previousFirst = 0;
+            int[] previous = null;
+            for (int y = 0; y < height; y += 1) {
+                int[] row = runs[y];
+                if (row == null) {
+                    previous = null;
+                    continue;
+                }
+                if (previous != null) {
+                    int j = 0;
+                    int n = previous.length / 2;
+                    for (int i = 0; i < row.length / 2; i += 1) {
+                        int start = row[2*i];
+                        int end = row[2*i+1];
+                        while (j < n && previous[2*j+1] < start - 1) {
+                            j += 1;
+                        }
+                        for (int k = j; k < n && previous[2*k] <= end + 1; k += 1) {
+                            union(parent, first + i, previousFirst + k);
+                        }
+                    }
+                }
+                previous = row;
+                previousFirst = first;
+                first += row.length / 2;
+            }
+
+            int[] regionOf = new int[total];
+            Arrays.fill(regionOf, -1);
+            List<int[]> boxes = new ArrayList<>();  // minX, minY, maxX, maxY
+            List<long[]> pixels = new ArrayList<>();
+            int index = 0;
+            for (int y = 0; y < height; y += 1) {
+                int[] row = runs[y];
+                if (row == null)
+                    continue;
+                for (int i = 0; i < row.length; i += 2, index += 1) {
+                    int root = find(parent, index);
+                    int region = regionOf[root];
+                    if (region == -1) {
+                        region = boxes.size();
+                        regionOf[root] = region;
+                        boxes.add(new int[] { row[i], y, row[i+1], y });
+                        pixels.add(new long[1]);
+                    }
+                    int[] box = boxes.get(region);
+                    box[0] = min(box[0], row[i]);
+                    box[2] = max(box[2], row[i+1]);
+                    box[3] = y;
+                    pixels.get(region)[0] += row[i+1] - row[i] + 1;
+                }
+            }
+            List<Region> regions = new ArrayList<>(boxes.size());
+            for (int i = 0; i < boxes.size(); i += 1) {
+                int[] box = boxes.get(i);
+                regions.add(new Region(new Rectangle(box[0], box[1], box[2] - box[0] + 1, box[3] - box[1] + 1),
+                        pixels.get(i)[0]));
+            }
+            Collections.sort(regions, ORDER);
+            return new DiffReport(mode, width, height, count, sqrt(maxSquare), count == 0 ? 0 : distance / count,
+                    regions);
+        }
+
+        private static int find(int[] parent, int i) {
+            int root = i;
+            while (parent[root] != root) {
+                root = parent[root];
+            }
+            while (parent[i] != root) {
+                int next = parent[i];
+                parent[i] = root;
+                i = next;
+            }
+            return root;
+        }
+
+        private static void union(int[] parent, int i, int j) {
+            int ri = find(parent, i);
+            int rj = find(parent, j);
+            if (ri < rj) {
+                parent[rj] = ri;
+            } else if (rj < ri) {
+                parent[ri] = rj;
+            }
+        }
+    }
+}
@@ -0,0 +1,362 @@
+/*
+ * Copyright: Carlos F. Heuberger. All rights reserved.
+ *
+ */
+package cfh.jsnip;
+
+import static java.lang.Math.*;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+/**
+ * Writes an animated GIF frame by frame, repeating forever.
+ * <p>
+ * The palette is computed from the first frame by the {@link ColorQuantizer}, exact if it has
+ * few colors. New colors of later frames are added to the palette while there is room, then
+ * the nearest color is used; the mapping of colors to the palette is cached. Since colors are
+ * only added, the complete palette is written into the header when the file is closed.
+ * Transparency of the image is ignored. One palette entry is reserved for transparency: each frame after the first is limited to the
+ * changed rectangle, and pixels showing the same palette color as the previous frame are written
+ * transparent, which compresses much better. Only the palette index of each pixel is kept, and
+ * the compressed frame waiting for its delay.
+ *
+ * @author Carlos F. Heuberger
+ *
+ */
+final class GifWriter implements AnimationWriter {
+
+    /** Palette size, including the transparent entry. */
+    private static final int COLORS = 256;
+    private static final int TRANSPARENT = COLORS - 1;
+    private static final int MAX_CODES = 1 << 12;
+    /** Position of the global color table: signature, screen width, height, flags, background and aspect. */
+    private static final int PALETTE_POSITION = 6 + 2 + 2 + 3;
+    /** Minimal delay, in hundredths of a second; smaller delays are slowed down by most viewers. */
+    private static final int MIN_DELAY = 2;
+
+    private final File file;
+    private final int width;
+    private final int height;
+    private final OutputStream output;
+
+    /** RGB of each color, the last entry is used for transparency. */
+    private final int[] palette = new int[COLORS];
+    private int colors = 0;
+    private ColorQuantizer.Mapper mapper = null;
+    /** Palette index of each pixel as currently shown. */
+    private byte[] canvas = null;
+    private int frames = 0;
+    private boolean finished = false;
+
+    /** Compressed data of the frame not yet written. */
+    private byte[] pending = null;
+    private Rectangle pendingBounds;
+    private long pendingTime;
+    /** Time of the first frame, delays are rounded relative to it to avoid drifting. */
+    private long startTime;
+
+    GifWriter(File file, int width, int height) throws IOException {
+        if (width > 0xffff || height > 0xffff)
+            throw new IllegalArgumentException("image too large for GIF: " + width + "x" + height);
+        this.file = file;
+        this.width = width;
+        this.height = height;
+        output = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+    }
+
+    /** Adds a frame; only the {@code bounds} part of the image is written. */
+    @Override
+    public void write(BufferedImage image, Rectangle bounds, long time) throws IOException {
+        if (image.getWidth() != width || image.getHeight() != height)
+            throw new IllegalArgumentException("frame " + image.getWidth() + "x" + image.getHeight()
+                    + " does not match " + width + "x" + height);
+        if (mapper == null) {
+            start(image, time);
+            return;
+        }
+        if (bounds == null) {
+            bounds = new Rectangle(0, 0, width, height);
+        }
+        bounds = bounds.intersection(new Rectangle(0, 0, width, height));
+        if (bounds.isEmpty())
+            return;
+
+        byte[] indices = new byte[bounds.width * bounds.height];
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = -1, maxY = -1;
+        DiffEngine.Rows rows = new DiffEngine.Rows(image);
+        for (int y = bounds.y; y < bounds.y + bounds.height; y += 1) {
+            int[] data = rows.read(y);
+            int offset = rows.offset(y);
+            int pos = (y - bounds.y) * bounds.width;
+            int last = 0;
+            int lastIndex = -1;
+            for (int x = bounds.x; x < bounds.x + bounds.width; x += 1, pos += 1) {
+                int rgb = data[offset+x];
+                if (rgb != last || lastIndex == -1) {
+                    lastIndex = index(rgb);
+                    last = rgb;
+                }
+                int c = y * width + x;
+                if (canvas[c] == (byte) lastIndex) {
+                    indices[pos] = (byte) TRANSPARENT;
+                } else {
+                    canvas[c] = (byte) lastIndex;
+                    indices[pos] = (byte) lastIndex;
+                    minX = min(minX, x);
+                    maxX = max(maxX, x);
+                    minY = min(minY, y);
+                    maxY = y;
+                }
+            }
+        }
+        if (maxX == -1)
+            return;
+        Rectangle changed = new Rectangle(minX, minY, maxX - minX + 1, maxY - minY + 1);
+        if (!changed.equals(bounds)) {
+            byte[] cropped = new byte[changed.width * changed.height];
+            for (int y = 0; y < changed.height; y += 1) {
+                System.arraycopy(indices, (changed.y - bounds.y + y) * bounds.width + changed.x - bounds.x,
+                        cropped, y * changed.width, changed.width);
+            }
+            indices = cropped;
+        }
+        byte[] compressed = compress(indices);
+        flush(time);
+        pending = compressed;
+        pendingBounds = changed;
+        pendingTime = time;
+    }
+
+    /** Computes the palette and writes the header; the first frame becomes pending. */
+    private void start(BufferedImage image, long time) throws IOException {
+        ColorQuantizer.Indexed indexed = ColorQuantizer.exact(image, COLORS - 1);
+        if (indexed == null) {
+            indexed = ColorQuantizer.quantize(image, COLORS - 1, false);
+        }
+        colors = indexed.palette.length;
+        System.arraycopy(indexed.palette, 0, palette, 0, colors);
+        mapper = new ColorQuantizer.Mapper(indexed.palette);
+        canvas = indexed.indices;
+
+        output.write("GIF89a".getBytes("US-ASCII"));
+        writeShort(width);
+        writeShort(height);
+        output.write(0xf7);  // global color table of 256 colors, 8 bits
+        output.write(0);     // background color
+        output.write(0);     // aspect ratio
+        output.write(colorTable());
+        output.write(new byte[] { 0x21, (byte) 0xff, 11 });
+        output.write("NETSCAPE2.0".getBytes("US-ASCII"));
+        output.write(new byte[] { 3, 1, 0, 0, 0 });  // repeat forever
+
+        pending = compress(canvas);
+        pendingBounds = new Rectangle(0, 0, width, height);
+        pendingTime = time;
+        startTime = time;
+    }
+
+    /** Index of the color, added to the palette if new and there is room. */
+    private int index(int rgb) {
+        if (colors < TRANSPARENT) {
+            int index = mapper.exact(rgb);
+            if (index == -1) {
+                index = colors;
+                palette[colors++] = rgb | 0xff000000;
+                mapper = new ColorQuantizer.Mapper(Arrays.copyOf(palette, colors));
+            }
+            return index;
+        }
+        return mapper.index(rgb);
+    }
+
+    private byte[] colorTable() {
+        byte[] table = new byte[3 * COLORS];
+        for (int i = 0; i < COLORS; i += 1) {
+            table[3*i] = (byte) (palette[i] >> 16);
+            table[3*i+1] = (byte) (palette[i] >> 8);
+            table[3*i+2] = (byte) palette[i];
+        }
+        return table;
+    }
+
+    /** Writes the pending frame, shown until {@code time}. */
+    private void flush(long time) throws IOException {
+        if (pending == null)
+            return;
+        int delay = (int) max(MIN_DELAY, min(0xffff,
+                round((time - startTime) / 10.0) - round((pendingTime - startTime) / 10.0)));
+        output.write(new byte[] { 0x21, (byte) 0xf9, 4 });
+        output.write(frames == 0 ? 0x04 : 0x05);  // do not dispose, transparency after first frame
+        writeShort(delay);
+        output.write(TRANSPARENT);
+        output.write(0);
+
+        output.write(0x2c);
+        writeShort(pendingBounds.x);
+        writeShort(pendingBounds.y);
+        writeShort(pendingBounds.width);
+        writeShort(pendingBounds.height);
+        output.write(0);  // no local color table, not interlaced
+        output.write(pending);
+        frames += 1;
+        pending = null;
+    }
+
+    @Override
+    public int getFrames() {
+        return frames + (pending == null ? 0 : 1);
+    }
+
+    /** Writes the pending frame, ends the file and writes the complete palette. */
+    @Override
+    public void finish(long time) throws IOException {
+        if (finished)
+            return;
+        finished = true;
+        try {
+            flush(time);
+            output.write(0x3b);
+        } finally {
+            output.close();
+        }
+        if (mapper == null)
+            return;
+        RandomAccessFile access = new RandomAccessFile(file, "rw");
+        try {
+            access.seek(PALETTE_POSITION);
+            access.write(colorTable());
+        } finally {
+            access.close();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish(pendingTime + LAST_DELAY);
+    }
+
+    private void writeShort(int value) throws IOException {
+        output.write(value);
+        output.write(value >> 8);
+    }
+
+    /**
+     * Compresses the palette indices with LZW, 8 bit minimal code size;
+     * returns the data as written in the file: code size, sub-blocks and terminator.
+     */
+    static byte[] compress(byte[] indices) {
+        ByteArrayOutputStream result = new ByteArrayOutputStream(indices.length / 4 + 64);
+        result.write(8);
+        BlockWriter blocks = new BlockWriter(result);
+
+        final int clear = 256;
+        final int end = 257;
+        // open addressing table of (prefix << 8 | byte) to code, codes are stored + 1
+        int[] keys = new int[2 * MAX_CODES * 2];
+        int[] codes = new int[keys.length];
+        int mask = keys.length - 1;
+
+        int size = 9;
+        int next = end + 1;
+        blocks.write(clear, size);
+        if (indices.length == 0) {
+            blocks.write(end, size);
+            blocks.close();
+            return result.toByteArray();
+        }
+        int prefix = indices[0] & 0xff;
+        for (int i = 1; i < indices.length; i += 1) {
+            int b = indices[i] & 0xff;
+            int key = (prefix << 8 | b) + 1;
+            int slot = (key * 0x9E3779B9 >>> 18) & mask;
+            int code = -1;
+            while (keys[slot] != 0) {
+                if (keys[slot] == key) {
+                    code = codes[slot];
+                    break;
+                }
+                slot = (slot + 1) & mask;
+            }
+            if (code != -1) {
+                prefix = code;
+                continue;
+            }
+            blocks.write(prefix, size);
+            if (next < MAX_CODES) {
+                keys[slot] = key;
+                codes[slot] = next;
+                if (next == (1 << size) && size < 12) {
+                    size += 1;
+                }
+                next += 1;
+            } else {
+                blocks.write(clear, size);
+                Arrays.fill(keys, 0);
+                size = 9;
+                next = end + 1;
+            }
+            prefix = b;
+        }
+        blocks.write(prefix, size);
+        blocks.write(end, size);
+        blocks.close();
+        return result.toByteArray();
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /** Packs codes, least significant bit first, into data sub-blocks of up to 255 bytes. */
+    private static final class BlockWriter {
+
+        private final ByteArrayOutputStream output;
+        private final byte[] block = new byte[255];
+        private int length = 0;
+        private int bits = 0;
+        private int count = 0;
+
+        BlockWriter(ByteArrayOutputStream output) {
+            this.output = output;
+        }
+
+        void write(int code, int size) {
+            bits |= code << count;
+            count += size;
+            while (count >= 8) {
+                block[length++] = (byte) bits;
+                bits >>>= 8;
+                count -= 8;
+                if (length == block.length) {
+                    flush();
+                }
+            }
+        }
+
+        private void flush() {
+            if (length > 0) {
+                output.write(length);
+                output.write(block, 0, length);
+                length = 0;
+            }
+        }
+
+        /** Writes the remaining bits and the block terminator. */
+        void close() {
+            if (count > 0) {
+                block[length++] = (byte) bits;
+                bits = 0;
+                count = 0;
+            }
+            flush();
+            output.write(0);
+        }
+    }
+}
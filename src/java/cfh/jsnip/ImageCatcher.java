@@ -11,26 +11,28 @@ package cfh.jsnip;
 import static java.lang.Math.*;
 
 import java.awt.AWTException;
+import java.awt.AlphaComposite;
 import java.awt.Color;
 import java.awt.Cursor;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
-import java.awt.GraphicsConfiguration;
 import java.awt.GraphicsDevice;
 import java.awt.Point;
 import java.awt.Rectangle;
-import java.awt.Robot;
 import java.awt.Toolkit;
 import java.awt.datatransfer.Clipboard;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.image.BufferedImage;
 import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.List;
 import java.util.Objects;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import javax.swing.JWindow;
+import javax.swing.SwingUtilities;
 
 
 @SuppressWarnings("serial")
@@ -44,6 +46,9 @@ class ImageCatcher extends JWindow {
         SUB_BLACK ("Subtract on black"),
         SUB_WHITE ("Subtract on white"),
         MIXED ("Mixed"),
+        DELTA_E ("Color difference (Delta E)"),
+        SSIM ("Structure (SSIM)"),
+        TOLERANT ("Tolerant (noise and shift)"),
         ;
         private final String name;
         DiffMode(String name) {
@@ -59,9 +64,9 @@ class ImageCatcher extends JWindow {
     private final GraphicsDevice device;
     private final Listener listener;
     
-    private boolean prior18;
-    
     private BufferedImage background;
+    /** The background, dimmed as shown outside the selection; created on first paint. */
+    private BufferedImage dimmed;
     
     private Point start;
     private Point end;
@@ -71,17 +76,19 @@ class ImageCatcher extends JWindow {
     
     private Rectangle rectangle;
     private BufferedImage image;
+    /** Incremented every time the image is changed. */
+    private int imageVersion = 0;
+    /** Changes found by the last {@link #diff(BufferedImage, DiffMode) diff}, {@code null} if recaptured since. */
+    private DiffReport report = null;
 
-    ImageCatcher(GraphicsDevice device, Listener listener) throws AWTException {
+    /** Creates a window to select a region of the given capture of the whole device. */
+    ImageCatcher(GraphicsDevice device, BufferedImage background, Listener listener) {
         super(device.getDefaultConfiguration());
         
         this.original = null;
         this.device = Objects.requireNonNull(device);
         this.listener = Objects.requireNonNull(listener);
-        
-        prior18 = checkVersionPrior18();
-        
-        capture();
+        this.background = Objects.requireNonNull(background);
         
         addMouseListener(new MouseAdapter() {
             @Override
@@ -118,8 +125,6 @@ class ImageCatcher extends JWindow {
         this.device = original.device;
         this.listener = original.listener;
         
-        this.prior18 = original.prior18;
-        
         this.start = original.start;
         this.end = original.end;
         this.rectangle = original.rectangle;
@@ -129,35 +134,6 @@ class ImageCatcher extends JWindow {
         listener.catched(this);
     }
     
-    private boolean checkVersionPrior18() {
-        try {
-            String version = System.getProperty("java.version");
-            Pattern pattern = Pattern.compile("(\\d++)(?:\\.(\\d++)(\\..*)?)?");
-            Matcher matcher = pattern.matcher(version);
-            if (matcher.matches()) {
-                int major = Integer.parseInt(matcher.group(1));
-                int minor = (matcher.groupCount()>1 && matcher.group(2)!=null) ? Integer.parseInt(matcher.group(2)) : 0;
-                return (major < 1) || (major == 1 && minor < 8);
-            } else {
-                return false;
-            }
-        } catch (Exception ex) {
-            ex.printStackTrace();
-            return false;
-        }
-    }
-    
-    private void capture() throws AWTException {
-        GraphicsConfiguration configuration = device.getDefaultConfiguration();
-        Robot robot = new Robot(device);
-        Rectangle bounds = configuration.getBounds();
-        if (prior18) {
-            bounds.x = 0;
-            bounds.y = 0;
-        }
-        background = robot.createScreenCapture(bounds);
-    }
-
     private void doMousePressed(MouseEvent ev) {
         if (isButtonPressed(ev, 1)) {
             if (start == null) {
@@ -189,6 +165,7 @@ class ImageCatcher extends JWindow {
 
     private void doMouseReleased(MouseEvent ev) {
         if (isButtonPressed(ev, 1)) {
+            Rectangle old = selection();
             switch (change) {
                 case END: end.setLocation(ev.getPoint()); break;
                 case STARTX: start.x = ev.getPoint().x; break;
@@ -197,12 +174,13 @@ class ImageCatcher extends JWindow {
                 case ENDY: end.y = ev.getPoint().y; break;
                 default: throw new IllegalArgumentException("unhandled value: " + change);
             }
-            repaint();
+            repaintSelection(old);
         }
     }
     
     private void doMouseDragged(MouseEvent ev) {
         if (isButtonPressed(ev, 1)) {
+            Rectangle old = selection();
             switch (change) {
                 case END: end.setLocation(ev.getPoint()); break;
                 case STARTX: start.x = ev.getPoint().x; break;
@@ -211,9 +189,31 @@ class ImageCatcher extends JWindow {
                 case ENDY: end.y = ev.getPoint().y; break;
                 default: throw new IllegalArgumentException("unhandled value: " + change);
             }
+            repaintSelection(old);
+        }
+    }
+
+    /** Repaints only the union of the old and the actual selection. */
+    private void repaintSelection(Rectangle old) {
+        Rectangle actual = selection();
+        if (old == null || actual == null) {
             repaint();
+        } else {
+            Rectangle dirty = old.union(actual);
+            repaint(dirty.x, dirty.y, dirty.width+1, dirty.height+1);
         }
     }
+    
+    /** The selected rectangle, in window coordinates; {@code null} if nothing selected. */
+    private Rectangle selection() {
+        if (start == null)
+            return null;
+        int x1 = min(start.x, end.x);
+        int x2 = max(start.x, end.x);
+        int y1 = min(start.y, end.y);
+        int y2 = max(start.y, end.y);
+        return new Rectangle(x1, y1, x2-x1, y2-y1);
+    }
 
     private void doMouseClicked(MouseEvent ev) {
         if (isButtonPressed(ev, 3)) {
@@ -242,16 +242,50 @@ class ImageCatcher extends JWindow {
             rectangle = new Rectangle(x1+bounds.x, y1+bounds.y, x2-x1, y2-y1);
             rectangle = rectangle.intersection(bounds);
             
-            image = background.getSubimage(rectangle.x-bounds.x, rectangle.y-bounds.y, rectangle.width, rectangle.height);
-            
-            ImageSelection selection = new ImageSelection(image);
-            Clipboard clipboard = Toolkit.getDefaultToolkit().getSystemClipboard();
-            clipboard.setContents(selection, selection);
+            image = copy(background.getSubimage(rectangle.x-bounds.x, rectangle.y-bounds.y, rectangle.width, rectangle.height));
+            imageVersion += 1;
+            toClipboard();
         } else {
             image = null;
         }
     }
     
+    /** Copies the image to the clipboard, if enabled; done later so it does not delay the caller. */
+    private void toClipboard() {
+        if (!Settings.isCopyOnSnip())
+            return;
+        final BufferedImage snip = image;
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // copy, the image is updated in place while live
+                    ImageSelection selection = new ImageSelection(copy(snip));
+                    Clipboard clipboard = Toolkit.getDefaultToolkit().getSystemClipboard();
+                    clipboard.setContents(selection, selection);
+                } catch (IllegalStateException ex) {
+                    ex.printStackTrace();
+                }
+            }
+        });
+    }
+    
+    /** Copies the image into a new one, so it does not share the (bigger) raster of a sub-image. */
+    static BufferedImage copy(BufferedImage source) {
+        ColorModel model = source.getColorModel();
+        WritableRaster raster = model.createCompatibleWritableRaster(source.getWidth(), source.getHeight());
+        source.copyData(raster);
+        return new BufferedImage(model, raster, model.isAlphaPremultiplied(), null);
+    }
+    
+    /** Number of bytes used by the data buffer of the image, 0 if {@code null}. */
+    static long bytes(BufferedImage img) {
+        if (img == null)
+            return 0;
+        DataBuffer buffer = img.getRaster().getDataBuffer();
+        return (long) buffer.getSize() * buffer.getNumBanks() * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+    }
+    
     private boolean isButtonPressed(MouseEvent ev, int button) {
         int mask;
         switch (button) {
@@ -267,117 +301,79 @@ class ImageCatcher extends JWindow {
         return original;
     }
     
+    /** Captures only the snip rectangle again. */
     public void recapture() throws AWTException {
-        capture();
-        
         Rectangle bounds = device.getDefaultConfiguration().getBounds();
-        int x1 = rectangle.x - bounds.x;
-        int y1 = rectangle.y - bounds.y;
-        int x2 = x1 + rectangle.width;
-        int y2 = y1 + rectangle.height;
-        snip(x1, y1, x2, y2);
+        Rectangle region = rectangle.intersection(bounds);
+        if (region.width > 0 && region.height > 0) {
+            rectangle = region;
+            image = CaptureService.getInstance().capture(device, rectangle);
+            imageVersion += 1;
+            report = null;
+            toClipboard();
+        } else {
+            image = null;
+        }
     }
     
-    public void diff(BufferedImage original, DiffMode mode) {
-        assert original.getWidth() == image.getWidth() : original.getWidth() + " <> " + image.getWidth();
-        assert original.getHeight() == image.getHeight() : original.getHeight() + " <> " + image.getHeight();
-        
-        ColorModel cm = ColorModel.getRGBdefault();
-        switch (mode) {
-            case BLACK_WHITE: 
-            case WHITE_BLACK: {
-                for (int y = 0; y < image.getHeight(); y += 1) {
-                    for (int x = 0; x < image.getWidth(); x += 1) {
-                        int o = original.getRGB(x, y);
-                        int i = image.getRGB(x, y);
-                        image.setRGB(x, y, (o == i ^ mode == DiffMode.WHITE_BLACK) ? 0x00ffffff : 0);
-                    }
-                }
-                break;
-            }
-            case GRAY_WHITE: {
-                int[] o = new int[cm.getNumComponents()];
-                int[] i = new int[cm.getNumComponents()];
-                for (int y = 0; y < image.getHeight(); y += 1) {
-                    for (int x = 0; x < image.getWidth(); x += 1) {
-                        o = cm.getComponents(original.getRGB(x, y), o, 0);
-                        i = cm.getComponents(image.getRGB(x, y), i , 0);
-                        double dist = 0.0;
-                        for (int j = 0; j < cm.getNumColorComponents(); j++) {
-                            int d = i[j] - o[j];
-                            dist += d*d;
-                        }
-                        int n = max(0, min(255, 255 - (int) sqrt(dist)));
-                        image.setRGB(x, y, 0x00010101 * n);
-                    }
-                }
-                break;
-            }
-            case GRAY_BLACK: {
-                int[] o = new int[cm.getNumComponents()];
-                int[] i = new int[cm.getNumComponents()];
-                for (int y = 0; y < image.getHeight(); y += 1) {
-                    for (int x = 0; x < image.getWidth(); x += 1) {
-                        o = cm.getComponents(original.getRGB(x, y), o, 0);
-                        i = cm.getComponents(image.getRGB(x, y), i , 0);
-                        double dist = 0.0;
-                        for (int j = 0; j < cm.getNumColorComponents(); j++) {
-                            int d = i[j] - o[j];
-                            dist += d*d;
-                        }
-                        int n = max(0, min(255, (int) sqrt(dist)));
-                        image.setRGB(x, y, 0x00010101 * n);
-                    }
-                }
-                break;
-            }
-            case MIXED: {
-                int[] o = new int[cm.getNumComponents()];
-                int[] i = new int[cm.getNumComponents()];
-                for (int y = 0; y < image.getHeight(); y += 1) {
-                    for (int x = 0; x < image.getWidth(); x += 1) {
-                        o = cm.getComponents(original.getRGB(x, y), o, 0);
-                        i = cm.getComponents(image.getRGB(x, y), i , 0);
-                        for (int j = 0; j < cm.getNumColorComponents(); j++) {
-                            i[j] = (i[j] + o[j]) / 2;
-                        }
-                        image.setRGB(x, y, cm.getDataElement(i, 0));
-                    }
-                }
-                break;
-            }
-            case SUB_BLACK: {
-                int[] o = new int[cm.getNumComponents()];
-                int[] i = new int[cm.getNumComponents()];
-                for (int y = 0; y < image.getHeight(); y += 1) {
-                    for (int x = 0; x < image.getWidth(); x += 1) {
-                        o = cm.getComponents(original.getRGB(x, y), o, 0);
-                        i = cm.getComponents(image.getRGB(x, y), i , 0);
-                        for (int j = 0; j < cm.getNumColorComponents(); j++) {
-                            i[j] = abs(i[j]-o[j]);
-                        }
-                        image.setRGB(x, y, cm.getDataElement(i, 0));
-                    }
-                }
-                break;
+    /**
+     * Sets the image to a new capture of the snip rectangle, taken by the caller,
+     * for example together with other snips of the same device.
+     * The capture is copied, so it can be a sub-image of a larger capture.
+     */
+    public void recapture(BufferedImage capture) {
+        if (capture.getWidth() != rectangle.width || capture.getHeight() != rectangle.height)
+            throw new IllegalArgumentException("capture " + capture.getWidth() + "x" + capture.getHeight() 
+                    + " does not match snip " + rectangle.width + "x" + rectangle.height);
+        image = copy(capture);
+        imageVersion += 1;
+        report = null;
+    }
+    
+    /** 
+     * Copies the given tiles of a new capture of the snip rectangle into the image. 
+     * The image is changed in place: users of the image needing it unchanged later must copy it.
+     */
+    public void update(BufferedImage capture, List<Rectangle> tiles) {
+        if (capture.getWidth() != image.getWidth() || capture.getHeight() != image.getHeight())
+            throw new IllegalArgumentException("capture " + capture.getWidth() + "x" + capture.getHeight() 
+                    + " does not match image " + image.getWidth() + "x" + image.getHeight());
+        if (capture.getColorModel().equals(image.getColorModel())) {
+            Raster source = capture.getRaster();
+            WritableRaster target = image.getRaster();
+            Object data = null;
+            for (Rectangle tile : tiles) {
+                data = source.getDataElements(tile.x, tile.y, tile.width, tile.height, data);
+                target.setDataElements(tile.x, tile.y, tile.width, tile.height, data);
             }
-            case SUB_WHITE: {
-                int[] o = new int[cm.getNumComponents()];
-                int[] i = new int[cm.getNumComponents()];
-                for (int y = 0; y < image.getHeight(); y += 1) {
-                    for (int x = 0; x < image.getWidth(); x += 1) {
-                        o = cm.getComponents(original.getRGB(x, y), o, 0);
-                        i = cm.getComponents(image.getRGB(x, y), i , 0);
-                        for (int j = 0; j < cm.getNumColorComponents(); j++) {
-                            i[j] = 255 - abs(i[j]-o[j]);
-                        }
-                        image.setRGB(x, y, cm.getDataElement(i, 0));
-                    }
+        } else {
+            Graphics2D gg = image.createGraphics();
+            try {
+                gg.setComposite(AlphaComposite.Src);
+                for (Rectangle tile : tiles) {
+                    int x2 = tile.x + tile.width;
+                    int y2 = tile.y + tile.height;
+                    gg.drawImage(capture, tile.x, tile.y, x2, y2, tile.x, tile.y, x2, y2, null);
                 }
-                break;
+            } finally {
+                gg.dispose();
             }
-            default: throw new IllegalArgumentException("unrecognized mode: " + mode);
         }
+        imageVersion += 1;
+        report = null;
+    }
+    
+    public void diff(BufferedImage original, DiffMode mode) {
+        assert original.getWidth() == image.getWidth() : original.getWidth() + " <> " + image.getWidth();
+        assert original.getHeight() == image.getHeight() : original.getHeight() + " <> " + image.getHeight();
+        
+        report = DiffEngine.diff(original, image, mode);
+        imageVersion += 1;
+    }
+    
+    /** Returns the changes found by the last diff, {@code null} if not a diff or recaptured since. */
+    public DiffReport getDiffReport() {
+        return report;
     }
     
     public GraphicsDevice getDevice() {
@@ -388,24 +384,68 @@ class ImageCatcher extends JWindow {
         return image;
     }
     
+    /** Returns a number that changes whenever the image is changed. */
+    public int getImageVersion() {
+        return imageVersion;
+    }
+    
     public Rectangle getRectangle() {
         return rectangle;
     }
     
+    /** Number of bytes held by the image data, including the background while selecting. */
+    public long getMemorySize() {
+        return bytes(image) + bytes(background) + bytes(dimmed);
+    }
+    
+    @Override
+    public void dispose() {
+        background = null;
+        dimmed = null;
+        super.dispose();
+    }
+    
     @Override
     public void paint(Graphics g) {
         if (background != null) {
-            Graphics2D gg = (Graphics2D) g;
-            gg.drawImage(background, 0, 0, this);
+            if (dimmed == null) {
+                dimmed = dim(background);
+            }
+            paintOverlay((Graphics2D) g, background, dimmed, selection());
+        }
+    }
+    
+    /** Returns a copy of the image darkened as shown outside the selection. */
+    static BufferedImage dim(BufferedImage background) {
+        BufferedImage dimmed = copy(background);
+        Graphics2D gg = dimmed.createGraphics();
+        try {
             gg.setColor(new Color(0, 0, 0, 64));
-            gg.fillRect(0, 0, getWidth(), getHeight());
-            if (start != null) {
-                int x1 = min(start.x, end.x);
-                int x2 = max(start.x, end.x);
-                int y1 = min(start.y, end.y);
-                int y2 = max(start.y, end.y);
-                gg.setClip(x1, y1, x2-x1, y2-y1);
-                gg.drawImage(background, 0, 0, this);
+            gg.fillRect(0, 0, dimmed.getWidth(), dimmed.getHeight());
+        } finally {
+            gg.dispose();
+        }
+        return dimmed;
+    }
+    
+    /** 
+     * Paints the dimmed background and the original background inside the selection.
+     * Only the area inside the actual clip of the graphics is drawn.
+     */
+    static void paintOverlay(Graphics2D gg, BufferedImage background, BufferedImage dimmed, Rectangle selection) {
+        Rectangle clip = gg.getClipBounds();
+        if (clip == null) {
+            clip = new Rectangle(0, 0, background.getWidth(), background.getHeight());
+        }
+        gg.drawImage(dimmed, 
+                clip.x, clip.y, clip.x+clip.width, clip.y+clip.height, 
+                clip.x, clip.y, clip.x+clip.width, clip.y+clip.height, null);
+        if (selection != null) {
+            Rectangle inside = selection.intersection(clip);
+            if (!inside.isEmpty()) {
+                gg.drawImage(background, 
+                        inside.x, inside.y, inside.x+inside.width, inside.y+inside.height, 
+                        inside.x, inside.y, inside.x+inside.width, inside.y+inside.height, null);
             }
         }
     }
@@ -5,33 +5,54 @@
 package cfh.jsnip;
 
 import java.awt.AWTException;
+import java.awt.AlphaComposite;
 import java.awt.Color;
+import java.awt.Component;
 import java.awt.Font;
 import java.awt.FontMetrics;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
 import java.awt.Point;
 import java.awt.Rectangle;
 import java.awt.Toolkit;
 import java.awt.datatransfer.Clipboard;
 import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
+import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.prefs.Preferences;
 
 import javax.imageio.ImageIO;
 import javax.swing.AbstractAction;
+import javax.swing.BorderFactory;
+import javax.swing.Box;
+import javax.swing.DefaultListCellRenderer;
+import javax.swing.JCheckBox;
 import javax.swing.JCheckBoxMenuItem;
 import javax.swing.JColorChooser;
+import javax.swing.JComboBox;
+import javax.swing.JComponent;
+import javax.swing.JDialog;
 import javax.swing.JFileChooser;
+import javax.swing.JLabel;
+import javax.swing.JList;
 import javax.swing.JMenu;
 import javax.swing.JMenuItem;
 import javax.swing.JOptionPane;
 import javax.swing.JPopupMenu;
+import javax.swing.JSpinner;
 import javax.swing.JWindow;
+import javax.swing.SpinnerNumberModel;
+import javax.swing.SwingWorker;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 import javax.swing.event.PopupMenuEvent;
@@ -50,12 +71,30 @@ class ImageDisplay extends JWindow {
     
     private static final String PREF_DIR = "image directory";
     private static final String PREF_SUFFIX = "image suffix";
+    private static final String PREF_COLORS = "png colors";
+    private static final String PREF_WATCH_LOG = "watch log";
+    private static final String PREF_WATCH_MODE = "watch mode";
+    private static final String PREF_WATCH_THRESHOLD = "watch threshold";
+    private static final String PREF_WATCH_FRAMES = "watch frames";
+    private static final String PREF_RECORD_FILE = "record file";
+    private static final String PREF_RECORD_RATE = "record rate";
+    private static final String PREF_REPORT_FILE = "report file";
+    
+    private static final String ANIMATION_GIF = "Animated GIF";
+    private static final String ANIMATION_PNG = "Animated PNG";
+    private static final String REPLAY_FRAMES = "PNG frames";
+    
     private final Preferences preferences = Preferences.userNodeForPackage(getClass());
     
 
     private static final int BORDER_X = 2;
     private static final int BORDER_Y = 2;
     
+    /** Height of the progress bar shown while saving. */
+    private static final int SAVE_BAR = 3;
+    /** Maximal number of changed regions marked, the largest ones. */
+    private static final int MAX_MARKED = 1_000;
+    
     private static int nextID = 1;
 
     private final int id = nextID++;
@@ -68,11 +107,53 @@ class ImageDisplay extends JWindow {
     
     private JPopupMenu popupMenu;
     private JCheckBoxMenuItem borderItem;
+    private JCheckBoxMenuItem liveItem;
+    private JCheckBoxMenuItem watchItem;
+    private JCheckBoxMenuItem replayItem;
+    private JCheckBoxMenuItem recordItem;
+    private JCheckBoxMenuItem changesItem;
+    private JMenuItem reportItem;
     
     private File savedAs = null;
+    /** Number of saves not yet completed. */
+    private int saving = 0;
+    /** Progress of the last started save, in percent. */
+    private int saveProgress = 0;
+    
+    private final ImageSaver.Listener saveListener = new ImageSaver.Listener() {
+        @Override
+        public void progress(File file, int percent) {
+            saveProgress = percent;
+            repaint();
+        }
+        @Override
+        public void saved(File file) {
+            saving -= 1;
+            savedAs = file;
+            repaint();
+        }
+        @Override
+        public void failed(File file, Exception ex) {
+            saving -= 1;
+            repaint();
+            ex.printStackTrace();
+            String[] msg = { String.valueOf(ex.getMessage()), "writing " + file };
+            showError(msg);
+        }
+    };
     
     private boolean showID = false;
     
+    /** Copy of the image in a format compatible to the device, to speed up painting. */
+    private BufferedImage rendered = null;
+    private int renderedVersion;
+    private GraphicsConfiguration renderedConfiguration;
+    
+    private final LiveMirror live = new LiveMirror(this);
+    private ChangeWatch watch = null;
+    private ReplayBuffer replay = null;
+    private Recorder recorder = null;
+    
 
     ImageDisplay(ImageCatcher catcher, Color borderColor) {
         super(catcher.getDevice().getDefaultConfiguration());
@@ -135,6 +216,39 @@ class ImageDisplay extends JWindow {
                 doRecapture(ev);
             }
         });
+        liveItem = new JCheckBoxMenuItem(new AbstractAction("Live") {
+            @Override
+            public void actionPerformed(ActionEvent ev) {
+                doLive(ev);
+            }
+        });
+        watchItem = new JCheckBoxMenuItem(new AbstractAction("Watch...") {
+            @Override
+            public void actionPerformed(ActionEvent ev) {
+                doWatch(ev);
+            }
+        });
+        recordItem = new JCheckBoxMenuItem(new AbstractAction("Record...") {
+            @Override
+            public void actionPerformed(ActionEvent ev) {
+                doRecord(ev);
+            }
+        });
+        replayItem = new JCheckBoxMenuItem(new AbstractAction("Record") {
+            @Override
+            public void actionPerformed(ActionEvent ev) {
+                doReplay(ev);
+            }
+        });
+        JMenuItem replaySave = new JMenuItem(new AbstractAction("Save...") {
+            @Override
+            public void actionPerformed(ActionEvent ev) {
+                doReplaySave(ev);
+            }
+        });
+        JMenu replayMenu = new JMenu("Replay");
+        replayMenu.add(replayItem);
+        replayMenu.add(replaySave);
         JMenuItem clone = new JMenuItem(new AbstractAction("Clone") {
             @Override
             public void actionPerformed(ActionEvent ev) {
@@ -152,6 +266,29 @@ class ImageDisplay extends JWindow {
             });
             diff.add(item);
         }
+        changesItem = new JCheckBoxMenuItem(new AbstractAction("Mark Changes") {
+            @Override
+            public void actionPerformed(ActionEvent ev) {
+                repaint();
+            }
+        });
+        changesItem.setState(true);
+        reportItem = new JMenuItem(new AbstractAction("Changes Report...") {
+            @Override
+            public void actionPerformed(ActionEvent ev) {
+                doReport(ev);
+            }
+        });
+        JMenuItem options = new JMenuItem(new AbstractAction("Options...") {
+            @Override
+            public void actionPerformed(ActionEvent ev) {
+                doCompareOptions(ev);
+            }
+        });
+        diff.addSeparator();
+        diff.add(changesItem);
+        diff.add(reportItem);
+        diff.add(options);
 //        JMenuItem scan = new JMenuItem(new AbstractAction("Scan") {
 //            @Override
 //            public void actionPerformed(ActionEvent ev) {
@@ -171,6 +308,10 @@ class ImageDisplay extends JWindow {
         popupMenu.add(copy);
         popupMenu.addSeparator();
         popupMenu.add(recapture);
+        popupMenu.add(liveItem);
+        popupMenu.add(watchItem);
+        popupMenu.add(recordItem);
+        popupMenu.add(replayMenu);
         popupMenu.add(clone);
         popupMenu.add(diff);
 //        popupMenu.add(scan);
@@ -179,6 +320,9 @@ class ImageDisplay extends JWindow {
         popupMenu.addPopupMenuListener(new PopupMenuListener() {
             @Override
             public void popupMenuWillBecomeVisible(PopupMenuEvent e) {
+                boolean report = catcher.getDiffReport() != null;
+                changesItem.setEnabled(report);
+                reportItem.setEnabled(report);
             }
             @Override
             public void popupMenuWillBecomeInvisible(PopupMenuEvent e) {
@@ -243,6 +387,11 @@ class ImageDisplay extends JWindow {
         return catcher.getImage().getWidth();
     }
     
+    /** Number of bytes held by the image data, including the copy used for painting and the replay buffer. */
+    public long getMemorySize() {
+        return catcher.getMemorySize() + ImageCatcher.bytes(rendered) + (replay == null ? 0 : replay.getMemorySize());
+    }
+    
     private void doChooseColor(ActionEvent ev) {
         Color actual = borderColor;
         final JColorChooser colorChooser = new JColorChooser(borderColor);
@@ -291,6 +440,13 @@ class ImageDisplay extends JWindow {
             if (defaultFilter != null) {
                 chooser.setFileFilter(defaultFilter);
             }
+            JComboBox<PngEncoder.Colors> colorsBox = new JComboBox<>(PngEncoder.Colors.values());
+            try {
+                colorsBox.setSelectedItem(PngEncoder.Colors.valueOf(preferences.get(PREF_COLORS, PngEncoder.Colors.TRUE_COLOR.name())));
+            } catch (IllegalArgumentException ex) {
+                colorsBox.setSelectedItem(PngEncoder.Colors.TRUE_COLOR);
+            }
+            chooser.setAccessory(createPngAccessory(colorsBox));
             while (true) {
                 if (chooser.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
                     dir = chooser.getCurrentDirectory().getAbsolutePath();
@@ -332,15 +488,23 @@ class ImageDisplay extends JWindow {
                         if (JOptionPane.showConfirmDialog(this, "Overwrite?", "JSnip", JOptionPane.OK_CANCEL_OPTION) != JOptionPane.OK_OPTION) 
                             continue;
                     }
+                    if (!ImageSaver.canWrite(extension)) {
+                        String[] msg = { "no writer for image format \"" + extension + "\"", "writing " + file };
+                        JOptionPane.showMessageDialog(this, msg, "JSnip - Error", JOptionPane.ERROR_MESSAGE);
+                        continue;
+                    }
                     try {
-                        if (!ImageIO.write(catcher.getImage(), extension, file))
-                            throw new IOException("no writer for image format \"" + extension + "\"");
-                        savedAs = file;
-                    } catch (IOException ex) {
+                        PngEncoder.Colors colors = (PngEncoder.Colors) colorsBox.getSelectedItem();
+                        preferences.put(PREF_COLORS, colors.name());
+                        // snapshot, the image is updated in place while live
+                        ImageSaver.save(ImageCatcher.copy(catcher.getImage()), extension, colors, file, saveListener);
+                        saving += 1;
+                        saveProgress = 0;
+                        repaint();
+                    } catch (RejectedExecutionException ex) {
                         ex.printStackTrace();
-                        String[] msg = { ex.getMessage(), "writing " + file };
+                        String[] msg = { "too many images being saved, try later", "writing " + file };
                         JOptionPane.showMessageDialog(this, msg, "JSnip - Error", JOptionPane.ERROR_MESSAGE);
-                        continue;
                     }
                 }
                 break;
@@ -350,10 +514,67 @@ class ImageDisplay extends JWindow {
         }
     }
 
+    /** 
+     * Creates the panel to select the colors used to save PNG.
+     * The resulting size is calculated in background and shown for true color and the selected colors.
+     */
+    private JComponent createPngAccessory(final JComboBox<PngEncoder.Colors> colorsBox) {
+        final BufferedImage image = ImageCatcher.copy(catcher.getImage());
+        final JLabel trueSize = new JLabel("True color: ...");
+        final JLabel selectedSize = new JLabel(" ");
+        final ActionListener estimate = new ActionListener() {
+            private Long trueColor = null;
+            @Override
+            public void actionPerformed(ActionEvent ev) {
+                final PngEncoder.Colors colors = (PngEncoder.Colors) colorsBox.getSelectedItem();
+                final Long known = trueColor;
+                selectedSize.setText(colors.getName() + ": ...");
+                new SwingWorker<long[], Void>() {
+                    @Override
+                    protected long[] doInBackground() throws Exception {
+                        PngEncoder.Compression compression = Settings.getPngCompression();
+                        long size = known != null ? known : new PngEncoder(compression).size(image);
+                        long selected = colors == PngEncoder.Colors.TRUE_COLOR ? size : new PngEncoder(compression, colors).size(image);
+                        return new long[] { size, selected };
+                    }
+                    @Override
+                    protected void done() {
+                        if (colorsBox.getSelectedItem() != colors)
+                            return;
+                        try {
+                            long[] sizes = get();
+                            trueColor = sizes[0];
+                            trueSize.setText(String.format("True color: %,d KiB", (sizes[0] + 1023) / 1024));
+                            selectedSize.setText(String.format("%s: %,d KiB", colors.getName(), (sizes[1] + 1023) / 1024));
+                        } catch (InterruptedException | ExecutionException ex) {
+                            ex.printStackTrace();
+                            selectedSize.setText(colors.getName() + ": " + ex.getMessage());
+                        }
+                    }
+                }.execute();
+            }
+        };
+        colorsBox.addActionListener(estimate);
+        estimate.actionPerformed(null);
+        
+        Box box = Box.createVerticalBox();
+        box.setBorder(BorderFactory.createTitledBorder("PNG"));
+        box.add(colorsBox);
+        box.add(Box.createVerticalStrut(8));
+        box.add(trueSize);
+        box.add(selectedSize);
+        box.add(Box.createVerticalGlue());
+        colorsBox.setAlignmentX(LEFT_ALIGNMENT);
+        colorsBox.setMaximumSize(colorsBox.getPreferredSize());
+        trueSize.setAlignmentX(LEFT_ALIGNMENT);
+        selectedSize.setAlignmentX(LEFT_ALIGNMENT);
+        return box;
+    }
+    
     private void doCopy(ActionEvent ev) {
         Clipboard clipboard = Toolkit.getDefaultToolkit().getSystemClipboard();
         if (clipboard != null) {
-            ImageSelection selection = new ImageSelection(catcher.getImage());
+            ImageSelection selection = new ImageSelection(ImageCatcher.copy(catcher.getImage()));
             clipboard.setContents(selection, selection);
         }
     }
@@ -375,6 +596,9 @@ class ImageDisplay extends JWindow {
                 setLocation(x, y);
                 validate();
             }
+            if (isCapturingRegion()) {
+                uncoverRegion();
+            }
         }
     }
     
@@ -397,6 +621,387 @@ class ImageDisplay extends JWindow {
         setVisible(true);
     }
     
+    private void doLive(ActionEvent ev) {
+        if (liveItem.getState()) {
+            if (!uncoverRegion()) {
+                liveItem.setState(false);
+                showError("no room to move this window away from the region, it would be captured");
+                return;
+            }
+            live.start();
+        } else {
+            live.stop();
+        }
+    }
+    
+    /** Starts watching the region for changes against the actual image, or stops watching. */
+    private void doWatch(ActionEvent ev) {
+        if (!watchItem.getState()) {
+            if (watch != null) {
+                watch.stop();
+                watch = null;
+            }
+            return;
+        }
+        watchItem.setState(false);
+        
+        JComboBox<DiffMode> modeBox = new JComboBox<>(DiffMode.values());
+        modeBox.setRenderer(new DefaultListCellRenderer() {
+            @Override
+            public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean selected, boolean focus) {
+                return super.getListCellRendererComponent(list, ((DiffMode) value).getName(), index, selected, focus);
+            }
+        });
+        try {
+            modeBox.setSelectedItem(DiffMode.valueOf(preferences.get(PREF_WATCH_MODE, DiffMode.BLACK_WHITE.name())));
+        } catch (IllegalArgumentException ex) {
+            modeBox.setSelectedItem(DiffMode.BLACK_WHITE);
+        }
+        double percent = Math.max(0, Math.min(100, preferences.getDouble(PREF_WATCH_THRESHOLD, 0.0)));
+        JSpinner thresholdSpinner = new JSpinner(new SpinnerNumberModel(percent, 0.0, 100.0, 0.1));
+        JCheckBox framesBox = new JCheckBox("Save changed frames", preferences.getBoolean(PREF_WATCH_FRAMES, false));
+        Object[] message = {
+                "Compare:", modeBox,
+                "Minimal changed pixels (%):", thresholdSpinner,
+                framesBox
+        };
+        
+        boolean alwaysOnTop = isAlwaysOnTop();
+        setAlwaysOnTop(false);
+        try {
+            int opt = JOptionPane.showConfirmDialog(this, message, "JSnip - Watch", JOptionPane.OK_CANCEL_OPTION);
+            if (opt != JOptionPane.OK_OPTION)
+                return;
+            JFileChooser chooser = new JFileChooser();
+            chooser.setDialogTitle("Change Log");
+            String log = preferences.get(PREF_WATCH_LOG, null);
+            if (log != null) {
+                chooser.setSelectedFile(new File(log));
+            }
+            if (chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION)
+                return;
+            File file = chooser.getSelectedFile();
+            DiffMode mode = (DiffMode) modeBox.getSelectedItem();
+            percent = ((Number) thresholdSpinner.getValue()).doubleValue();
+            preferences.put(PREF_WATCH_LOG, file.getAbsolutePath());
+            preferences.put(PREF_WATCH_MODE, mode.name());
+            preferences.putDouble(PREF_WATCH_THRESHOLD, percent);
+            preferences.putBoolean(PREF_WATCH_FRAMES, framesBox.isSelected());
+            
+            boolean close = false;
+            if (!uncoverRegion()) {
+                String[] msg = { "no room to move this window away from the region,",
+                        "close it while watching? (stop with Stop Watches in the tray menu)" };
+                if (JOptionPane.showConfirmDialog(this, msg, "JSnip - Watch", JOptionPane.OK_CANCEL_OPTION) != JOptionPane.OK_OPTION)
+                    return;
+                close = true;
+            }
+            BufferedImage baseline = ImageCatcher.copy(catcher.getImage());
+            watch = new ChangeWatch(id, catcher.getDevice(), catcher.getRectangle(), baseline, mode, 
+                    percent / 100, file, framesBox.isSelected());
+            watch.start();
+            watchItem.setState(true);
+            if (close) {
+                dispose();
+            }
+        } catch (IllegalArgumentException ex) {
+            ex.printStackTrace();
+            String[] msg = { "watch failed", ex.getMessage() };
+            JOptionPane.showMessageDialog(this, msg, "JSnip - Error", JOptionPane.ERROR_MESSAGE);
+        } finally {
+            setAlwaysOnTop(alwaysOnTop);
+        }
+    }
+    
+    /** Starts recording the region into an animated GIF or PNG file, or stops the recording. */
+    private void doRecord(ActionEvent ev) {
+        if (!recordItem.getState()) {
+            stopRecording();
+            return;
+        }
+        recordItem.setState(false);
+        
+        int rate = Math.max(1, Math.min(Recorder.MAX_RATE, preferences.getInt(PREF_RECORD_RATE, Recorder.DEFAULT_RATE)));
+        JSpinner rateSpinner = new JSpinner(new SpinnerNumberModel(rate, 1, Recorder.MAX_RATE, 1));
+        Object[] message = { "Frames per second:", rateSpinner };
+        
+        boolean alwaysOnTop = isAlwaysOnTop();
+        setAlwaysOnTop(false);
+        try {
+            int opt = JOptionPane.showConfirmDialog(this, message, "JSnip - Record", JOptionPane.OK_CANCEL_OPTION);
+            if (opt != JOptionPane.OK_OPTION)
+                return;
+            JFileChooser chooser = new JFileChooser(preferences.get(PREF_DIR, ""));
+            chooser.setDialogTitle("Record");
+            FileNameExtensionFilter gifFilter = new FileNameExtensionFilter(ANIMATION_GIF, "gif");
+            FileNameExtensionFilter pngFilter = new FileNameExtensionFilter(ANIMATION_PNG, "png");
+            chooser.addChoosableFileFilter(gifFilter);
+            chooser.addChoosableFileFilter(pngFilter);
+            String last = preferences.get(PREF_RECORD_FILE, null);
+            chooser.setFileFilter(last != null && last.toLowerCase().endsWith(".png") ? pngFilter : gifFilter);
+            if (last != null) {
+                chooser.setSelectedFile(new File(last));
+            }
+            if (chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION)
+                return;
+            File file = chooser.getSelectedFile();
+            if (!file.getName().contains(".")) {
+                file = new File(file.getPath() + (chooser.getFileFilter() == pngFilter ? ".png" : ".gif"));
+            }
+            if (file.exists()) {
+                if (JOptionPane.showConfirmDialog(this, "Overwrite?", "JSnip", JOptionPane.OK_CANCEL_OPTION) != JOptionPane.OK_OPTION) 
+                    return;
+            }
+            rate = ((Number) rateSpinner.getValue()).intValue();
+            preferences.put(PREF_RECORD_FILE, file.getAbsolutePath());
+            preferences.putInt(PREF_RECORD_RATE, rate);
+            
+            if (!uncoverRegion()) {
+                showError("no room to move this window away from the region, it would be recorded");
+                return;
+            }
+            recorder = new Recorder(catcher.getDevice(), catcher.getRectangle(), file, rate);
+            recorder.start();
+            recordItem.setState(true);
+        } catch (IOException | IllegalArgumentException ex) {
+            recorder = null;
+            ex.printStackTrace();
+            String[] msg = { "record failed", String.valueOf(ex.getMessage()) };
+            showError(msg);
+        } finally {
+            setAlwaysOnTop(alwaysOnTop);
+        }
+    }
+    
+    /** Stops the recording, the file is completed in background. */
+    private void stopRecording() {
+        final Recorder stopped = recorder;
+        recorder = null;
+        recordItem.setState(false);
+        if (stopped == null)
+            return;
+        saving += 1;
+        saveProgress = 0;
+        repaint();
+        new SwingWorker<Void, Void>() {
+            @Override
+            protected Void doInBackground() throws Exception {
+                stopped.stop();
+                return null;
+            }
+            @Override
+            protected void done() {
+                saving -= 1;
+                repaint();
+                try {
+                    get();
+                } catch (ExecutionException ex) {
+                    ex.getCause().printStackTrace();
+                    String[] msg = { "record failed", String.valueOf(ex.getCause().getMessage()), "writing " + stopped.getFile() };
+                    showError(msg);
+                } catch (InterruptedException ex) {
+                    ex.printStackTrace();
+                }
+            }
+        }.execute();
+    }
+    
+    /** Starts or stops keeping the last frames of the region. */
+    private void doReplay(ActionEvent ev) {
+        if (!replayItem.getState()) {
+            if (replay != null) {
+                replay.stop();
+            }
+            return;
+        }
+        if (!uncoverRegion()) {
+            replayItem.setState(false);
+            showError("no room to move this window away from the region, it would be recorded");
+            return;
+        }
+        try {
+            Rectangle rectangle = catcher.getRectangle();
+            long memory = Settings.getReplayMemory() * 1024L * 1024L;
+            // frames of another region or memory limit are discarded, even if the new buffer fails
+            if (replay == null
+                    || replay.getDevice() != catcher.getDevice()
+                    || !replay.getRectangle().equals(rectangle)
+                    || replay.getMaxBytes() != memory) {
+                replay = null;
+                replay = new ReplayBuffer(catcher.getDevice(), rectangle, memory);
+            }
+            replay.start();
+        } catch (IllegalArgumentException ex) {
+            replayItem.setState(false);
+            ex.printStackTrace();
+            String[] msg = { "replay failed", ex.getMessage() };
+            showError(msg);
+        }
+    }
+    
+    /** Saves the last seconds of the replay buffer as PNG frames, animated PNG or GIF. */
+    private void doReplaySave(ActionEvent ev) {
+        final ReplayBuffer buffer = replay;
+        if (buffer == null || buffer.getMemorySize() == 0) {
+            showError("nothing recorded, start Replay - Record first");
+            return;
+        }
+        if (buffer.getError() != null) {
+            replayItem.setState(false);
+        }
+        double duration = Math.max(1, Math.ceil(buffer.getDuration() / 1000.0));
+        JSpinner secondsSpinner = new JSpinner(new SpinnerNumberModel(duration, 1.0, duration, 1.0));
+        JComboBox<String> formatBox = new JComboBox<>(new String[] { ANIMATION_PNG, ANIMATION_GIF, REPLAY_FRAMES });
+        Object[] message = { "Last seconds:", secondsSpinner, "Save as:", formatBox };
+        
+        boolean alwaysOnTop = isAlwaysOnTop();
+        setAlwaysOnTop(false);
+        try {
+            int opt = JOptionPane.showConfirmDialog(this, message, "JSnip - Replay", JOptionPane.OK_CANCEL_OPTION);
+            if (opt != JOptionPane.OK_OPTION)
+                return;
+            final boolean frames = formatBox.getSelectedItem() == REPLAY_FRAMES;
+            String suffix = formatBox.getSelectedItem() == ANIMATION_GIF ? "gif" : "png";
+            JFileChooser chooser = new JFileChooser(preferences.get(PREF_DIR, ""));
+            if (frames) {
+                chooser.setDialogTitle("Directory for Frames");
+                chooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+            } else {
+                chooser.setDialogTitle((String) formatBox.getSelectedItem());
+                chooser.setFileFilter(new FileNameExtensionFilter((String) formatBox.getSelectedItem(), suffix));
+            }
+            if (chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION)
+                return;
+            File selected = chooser.getSelectedFile();
+            if (!frames && !selected.getName().contains(".")) {
+                selected = new File(selected.getPath() + "." + suffix);
+            }
+            if (!frames && selected.exists()) {
+                if (JOptionPane.showConfirmDialog(this, "Overwrite?", "JSnip", JOptionPane.OK_CANCEL_OPTION) != JOptionPane.OK_OPTION) 
+                    return;
+            }
+            final File file = selected;
+            final long millis = (long) (((Number) secondsSpinner.getValue()).doubleValue() * 1000);
+            saving += 1;
+            saveProgress = 0;
+            repaint();
+            new SwingWorker<Integer, Void>() {
+                @Override
+                protected Integer doInBackground() throws Exception {
+                    return frames ? buffer.saveFrames(millis, file) : buffer.saveAnimation(millis, file);
+                }
+                @Override
+                protected void done() {
+                    saving -= 1;
+                    repaint();
+                    try {
+                        get();
+                    } catch (ExecutionException ex) {
+                        ex.getCause().printStackTrace();
+                        String[] msg = { String.valueOf(ex.getCause().getMessage()), "writing " + file };
+                        showError(msg);
+                    } catch (InterruptedException ex) {
+                        ex.printStackTrace();
+                    }
+                }
+            }.execute();
+        } finally {
+            setAlwaysOnTop(alwaysOnTop);
+        }
+    }
+    
+    /** Returns the watch started from this window, {@code null} if not watching. */
+    public ChangeWatch getWatch() {
+        return watch;
+    }
+    
+    /** Returns {@code true} if the region is being mirrored, watched or recorded from this window. */
+    private boolean isCapturingRegion() {
+        return live.isRunning()
+                || (watch != null && watch.isRunning())
+                || recorder != null
+                || (replay != null && replay.isRunning());
+    }
+    
+    /**
+     * Moves this window next to its region if it covers it, so it is not captured with the region.
+     * Returns {@code false} if there is no room for it on the screen of the region.
+     */
+    private boolean uncoverRegion() {
+        Rectangle region = catcher.getRectangle();
+        Rectangle bounds = getBounds();
+        if (!bounds.intersects(region))
+            return true;
+        Rectangle screen = catcher.getDevice().getDefaultConfiguration().getBounds();
+        int x = Math.max(screen.x, Math.min(bounds.x, screen.x + screen.width - bounds.width));
+        int y = Math.max(screen.y, Math.min(bounds.y, screen.y + screen.height - bounds.height));
+        Point[] locations = {
+                new Point(region.x + region.width, y),
+                new Point(region.x - bounds.width, y),
+                new Point(x, region.y + region.height),
+                new Point(x, region.y - bounds.height)
+        };
+        for (Point location : locations) {
+            Rectangle moved = new Rectangle(location, bounds.getSize());
+            if (screen.contains(moved) && !moved.intersects(region)) {
+                setLocation(location);
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /** Called by the live mirror if a capture failed; live mode is already stopped. */
+    void liveFailed(Throwable ex) {
+        liveItem.setState(false);
+        ex.printStackTrace();
+        String[] msg = { "live capture failed", String.valueOf(ex.getMessage()) };
+        showError(msg);
+    }
+    
+    /** 
+     * Called after the given tiles of the image were changed; 
+     * updates only these tiles of the copy used for painting and repaints them. 
+     */
+    void imageChanged(List<Rectangle> tiles) {
+        BufferedImage image = catcher.getImage();
+        int version = catcher.getImageVersion();
+        if (rendered != null
+                && renderedVersion == version - 1
+                && renderedConfiguration == getGraphicsConfiguration()
+                && rendered.getWidth() == image.getWidth()
+                && rendered.getHeight() == image.getHeight()) {
+            Graphics2D gg = rendered.createGraphics();
+            try {
+                gg.setComposite(AlphaComposite.Src);
+                for (Rectangle tile : tiles) {
+                    int x2 = tile.x + tile.width;
+                    int y2 = tile.y + tile.height;
+                    gg.drawImage(image, tile.x, tile.y, x2, y2, tile.x, tile.y, x2, y2, null);
+                }
+            } finally {
+                gg.dispose();
+            }
+            renderedVersion = version;
+        }
+        int x = border ? BORDER_X : 0;
+        int y = border ? BORDER_Y : 0;
+        for (Rectangle tile : tiles) {
+            repaint(tile.x+x, tile.y+y, tile.width, tile.height);
+        }
+    }
+    
+    @Override
+    public void dispose() {
+        live.stop();
+        if (replay != null) {
+            replay.stop();
+            replay = null;
+        }
+        stopRecording();
+        super.dispose();
+    }
+    
     private void doClone(ActionEvent ev) {
         ImageCatcher clone;
         setVisible(false);
@@ -464,6 +1069,88 @@ class ImageDisplay extends JWindow {
 //
 //    }
     
+    /** Changes the tolerance and search radius of the tolerant compare. */
+    private void doCompareOptions(ActionEvent ev) {
+        JSpinner toleranceSpinner = new JSpinner(new SpinnerNumberModel(Settings.getCompareTolerance(), 0, Tolerance.MAX_TOLERANCE, 1));
+        JSpinner radiusSpinner = new JSpinner(new SpinnerNumberModel(Settings.getCompareRadius(), 0, Tolerance.MAX_RADIUS, 1));
+        Object[] message = {
+                DiffMode.TOLERANT.getName(),
+                "Tolerance of each color component:", toleranceSpinner,
+                "Search radius (pixels):", radiusSpinner
+        };
+        
+        boolean alwaysOnTop = isAlwaysOnTop();
+        setAlwaysOnTop(false);
+        try {
+            int opt = JOptionPane.showConfirmDialog(this, message, "JSnip - Compare Options", JOptionPane.OK_CANCEL_OPTION);
+            if (opt != JOptionPane.OK_OPTION)
+                return;
+            Settings.setCompareTolerance(((Number) toleranceSpinner.getValue()).intValue());
+            Settings.setCompareRadius(((Number) radiusSpinner.getValue()).intValue());
+        } finally {
+            setAlwaysOnTop(alwaysOnTop);
+        }
+    }
+    
+    /** Shows the changes found by compare, optionally saving them as JSON or CSV. */
+    private void doReport(ActionEvent ev) {
+        DiffReport report = catcher.getDiffReport();
+        if (report == null) {
+            showError("no changes report, use Compare first");
+            return;
+        }
+        List<String> message = new ArrayList<>();
+        message.add(report.mode.getName() + ": " + report.summary());
+        for (DiffReport.Region region : report.regions.subList(0, Math.min(10, report.regions.size()))) {
+            Rectangle b = region.bounds;
+            message.add(String.format("  %,d pixels at %d,%d %dx%d", region.pixels, b.x, b.y, b.width, b.height));
+        }
+        if (report.regions.size() > 10) {
+            message.add("  ...");
+        }
+        Object[] options = { "Save...", "Close" };
+        
+        boolean alwaysOnTop = isAlwaysOnTop();
+        setAlwaysOnTop(false);
+        try {
+            int opt = JOptionPane.showOptionDialog(this, message.toArray(), "JSnip - Changes", JOptionPane.DEFAULT_OPTION, 
+                    JOptionPane.INFORMATION_MESSAGE, null, options, options[1]);
+            if (opt != 0)
+                return;
+            JFileChooser chooser = new JFileChooser(preferences.get(PREF_DIR, ""));
+            chooser.setDialogTitle("Changes Report");
+            FileNameExtensionFilter jsonFilter = new FileNameExtensionFilter("JSON", "json");
+            FileNameExtensionFilter csvFilter = new FileNameExtensionFilter("CSV", "csv");
+            chooser.addChoosableFileFilter(jsonFilter);
+            chooser.addChoosableFileFilter(csvFilter);
+            String last = preferences.get(PREF_REPORT_FILE, null);
+            chooser.setFileFilter(last != null && last.toLowerCase().endsWith(".csv") ? csvFilter : jsonFilter);
+            if (last != null) {
+                chooser.setSelectedFile(new File(last));
+            }
+            if (chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION)
+                return;
+            File file = chooser.getSelectedFile();
+            if (!file.getName().contains(".")) {
+                file = new File(file.getPath() + (chooser.getFileFilter() == csvFilter ? ".csv" : ".json"));
+            }
+            if (file.exists()) {
+                if (JOptionPane.showConfirmDialog(this, "Overwrite?", "JSnip", JOptionPane.OK_CANCEL_OPTION) != JOptionPane.OK_OPTION) 
+                    return;
+            }
+            preferences.put(PREF_REPORT_FILE, file.getAbsolutePath());
+            try {
+                report.write(file);
+            } catch (IOException ex) {
+                ex.printStackTrace();
+                String[] msg = { String.valueOf(ex.getMessage()), "writing " + file };
+                showError(msg);
+            }
+        } finally {
+            setAlwaysOnTop(alwaysOnTop);
+        }
+    }
+    
     private void doClose(ActionEvent ev) {
         dispose();
     }
@@ -471,7 +1158,7 @@ class ImageDisplay extends JWindow {
     private void doPressed(MouseEvent ev) {
         debug("pressed %s, %s%n", ev, ev.getModifiersEx());
         if (ev.isPopupTrigger()) {
-            popupMenu.show(ev.getComponent(), ev.getX(), ev.getY());
+            showPopup(ev);
         } else if (ev.getModifiersEx() == MouseEvent.BUTTON1_DOWN_MASK) {
             pressed = ev.getPoint();
         }
@@ -480,10 +1167,19 @@ class ImageDisplay extends JWindow {
     private void doReleased(MouseEvent ev) {
         debug("released %s, %s%n", ev, ev.getModifiersEx());
         if (ev.isPopupTrigger()) {
-            popupMenu.show(ev.getComponent(), ev.getX(), ev.getY());
+            showPopup(ev);
         } else if (ev.getModifiersEx() == MouseEvent.BUTTON1_DOWN_MASK) {
             pressed = null;
         }
+        if (isCapturingRegion()) {
+            uncoverRegion();
+        }
+    }
+    
+    private void showPopup(MouseEvent ev) {
+        // the watch may have been stopped from the tray menu
+        watchItem.setState(watch != null && watch.isRunning());
+        popupMenu.show(ev.getComponent(), ev.getX(), ev.getY());
     }
 
     private void doDragged(MouseEvent ev) {
@@ -497,9 +1193,37 @@ class ImageDisplay extends JWindow {
     
     @Override
     public void paint(Graphics g) {
-        g.setColor(borderColor);
-        g.fillRect(0, 0, getWidth(), getHeight());
-        g.drawImage(catcher.getImage(), border ? BORDER_X : 0, border ? BORDER_Y : 0, this);
+        int width = getWidth();
+        int height = getHeight();
+        if (border) {
+            g.setColor(borderColor);
+            g.fillRect(0, 0, width, BORDER_Y);
+            g.fillRect(0, height-BORDER_Y, width, BORDER_Y);
+            g.fillRect(0, BORDER_Y, BORDER_X, height-BORDER_Y-BORDER_Y);
+            g.fillRect(width-BORDER_X, BORDER_Y, BORDER_X, height-BORDER_Y-BORDER_Y);
+        }
+        g.drawImage(rendered(), border ? BORDER_X : 0, border ? BORDER_Y : 0, this);
+        
+        DiffReport report = catcher.getDiffReport();
+        if (report != null && changesItem.getState()) {
+            int x = border ? BORDER_X : 0;
+            int y = border ? BORDER_Y : 0;
+            g.setColor(Color.RED);
+            for (DiffReport.Region region : report.regions.subList(0, Math.min(MAX_MARKED, report.regions.size()))) {
+                Rectangle bounds = region.bounds;
+                g.drawRect(x + bounds.x - 1, y + bounds.y - 1, bounds.width + 1, bounds.height + 1);
+            }
+        }
+        
+        if (saving > 0) {
+            int x = border ? BORDER_X : 0;
+            int y = border ? BORDER_Y : 0;
+            int w = width - x - x;
+            g.setColor(Color.WHITE);
+            g.fillRect(x, y, w, SAVE_BAR);
+            g.setColor(Color.BLUE);
+            g.fillRect(x, y, w * saveProgress / 100, SAVE_BAR);
+        }
         
         if (showID) {
             Graphics2D gg = (Graphics2D) g.create();
@@ -528,6 +1252,48 @@ class ImageDisplay extends JWindow {
         }
     }
     
+    /** 
+     * Returns the image in a format compatible with the device. 
+     * The copy is only recreated if the image was changed or the window moved to another device.
+     */
+    private BufferedImage rendered() {
+        BufferedImage image = catcher.getImage();
+        GraphicsConfiguration configuration = getGraphicsConfiguration();
+        if (configuration == null)
+            return image;
+        if (rendered == null
+                || renderedVersion != catcher.getImageVersion()
+                || renderedConfiguration != configuration
+                || rendered.getWidth() != image.getWidth()
+                || rendered.getHeight() != image.getHeight()) {
+            if (rendered == null 
+                    || renderedConfiguration != configuration
+                    || rendered.getWidth() != image.getWidth()
+                    || rendered.getHeight() != image.getHeight()) {
+                rendered = configuration.createCompatibleImage(image.getWidth(), image.getHeight());
+            }
+            Graphics2D gg = rendered.createGraphics();
+            try {
+                gg.setComposite(AlphaComposite.Src);
+                gg.drawImage(image, 0, 0, null);
+            } finally {
+                gg.dispose();
+            }
+            renderedVersion = catcher.getImageVersion();
+            renderedConfiguration = configuration;
+        }
+        return rendered;
+    }
+    
+    /** Shows an error message without blocking other windows. */
+    private void showError(Object message) {
+        JOptionPane pane = new JOptionPane(message, JOptionPane.ERROR_MESSAGE);
+        JDialog dialog = pane.createDialog(this, "JSnip - Error");
+        dialog.setModal(false);
+        dialog.setAlwaysOnTop(true);
+        dialog.setVisible(true);
+    }
+    
     private static final void debug(String format, Object... args) {
 //        System.out.printf(format, args);
     }
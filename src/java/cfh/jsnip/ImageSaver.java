@@ -0,0 +1,254 @@
+/*
+ * Copyright: Carlos F. Heuberger. All rights reserved.
+ *
+ */
+package cfh.jsnip;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.RenderedImage;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriter;
+import javax.imageio.event.IIOWriteProgressListener;
+import javax.imageio.stream.ImageOutputStream;
+import javax.swing.SwingUtilities;
+
+/**
+ * Writes images in background threads; PNG is written by the {@link PngEncoder}.
+ * The number of threads and of waiting saves are limited;
+ * all calls to the {@link Listener} are done on the event dispatch thread.
+ *
+ * @author Carlos F. Heuberger
+ *
+ */
+final class ImageSaver {
+
+    /** Maximal number of saves waiting for a free thread. */
+    private static final int QUEUE_SIZE = 32;
+    /** Time to wait before submitting again if too many saves are waiting, in milliseconds. */
+    private static final int RETRY_DELAY = 20;
+
+    private static final ExecutorService executor;
+    static {
+        int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(QUEUE_SIZE),
+                new ThreadFactory() {
+                    private int count = 0;
+                    @Override
+                    public synchronized Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "save-" + (++count));
+                        thread.setDaemon(true);
+                        thread.setPriority(Thread.NORM_PRIORITY - 1);
+                        return thread;
+                    }
+                });
+        pool.allowCoreThreadTimeOut(true);
+        executor = pool;
+    }
+
+    /** Returns {@code true} if there is a writer for the given format. */
+    static boolean canWrite(String format) {
+        return ImageIO.getImageWritersByFormatName(format).hasNext();
+    }
+
+    /**
+     * Starts writing the image to a file, PNG as true color.
+     *
+     * @see #save(RenderedImage, String, PngEncoder.Colors, File, Listener)
+     */
+    static void save(RenderedImage image, String format, File file, Listener listener) {
+        save(image, format, PngEncoder.Colors.TRUE_COLOR, file, listener);
+    }
+
+    /**
+     * Starts writing the image to a file.
+     * The image must not be changed until the write is completed.
+     *
+     * @param colors colors used for PNG, ignored for other formats
+     * @throws RejectedExecutionException if too many saves are waiting
+     */
+    static void save(final RenderedImage image, final String format, final PngEncoder.Colors colors, 
+            final File file, final Listener listener) {
+        Objects.requireNonNull(image);
+        Objects.requireNonNull(format);
+        Objects.requireNonNull(colors);
+        Objects.requireNonNull(file);
+        Objects.requireNonNull(listener);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    write(image, format, colors, file, listener);
+                    SwingUtilities.invokeLater(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.saved(file);
+                        }
+                    });
+                } catch (final Exception ex) {
+                    SwingUtilities.invokeLater(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.failed(file, ex);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * Starts writing the image to a file, PNG as true color, the format given by the file extension.
+     * Waits while too many saves are waiting.
+     * The image must not be changed until the write is completed.
+     *
+     * @see #write(RenderedImage, File)
+     */
+    static Future<Void> submit(final RenderedImage image, final File file) throws InterruptedException {
+        Objects.requireNonNull(image);
+        Objects.requireNonNull(file);
+        Callable<Void> task = new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                write(image, file);
+                return null;
+            }
+        };
+        while (true) {
+            try {
+                return executor.submit(task);
+            } catch (RejectedExecutionException ex) {
+                Thread.sleep(RETRY_DELAY);
+            }
+        }
+    }
+
+    /**
+     * Writes the image to a file in the calling thread, PNG as true color.
+     * The format is given by the file extension.
+     */
+    static void write(RenderedImage image, File file) throws IOException {
+        String name = file.getName();
+        int index = name.lastIndexOf('.');
+        if (index == -1)
+            throw new IOException("missing extension for image format: " + file);
+        write(image, name.substring(index+1), PngEncoder.Colors.TRUE_COLOR, file, null);
+    }
+
+    /** Writes the image; {@code listener} may be {@code null}. */
+    private static void write(RenderedImage image, String format, PngEncoder.Colors colors, final File file, final Listener listener) 
+    throws IOException {
+        if (format.equalsIgnoreCase("png") && image instanceof BufferedImage) {
+            OutputStream output = new BufferedOutputStream(new FileOutputStream(file));
+            try {
+                new PngEncoder(Settings.getPngCompression(), colors).write((BufferedImage) image, output, listener == null ? null : new PngEncoder.Progress() {
+                    @Override
+                    public void progress(final int percent) {
+                        SwingUtilities.invokeLater(new Runnable() {
+                            @Override
+                            public void run() {
+                                listener.progress(file, percent);
+                            }
+                        });
+                    }
+                });
+            } finally {
+                output.close();
+            }
+            return;
+        }
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(format);
+        if (!writers.hasNext())
+            throw new IOException("no writer for image format \"" + format + "\"");
+        ImageWriter writer = writers.next();
+        try {
+            if (listener != null) {
+                writer.addIIOWriteProgressListener(new ProgressAdapter() {
+                    private int last = -1;
+                    @Override
+                    public void imageProgress(ImageWriter source, float percentageDone) {
+                        final int percent = (int) percentageDone;
+                        if (percent != last) {
+                            last = percent;
+                            SwingUtilities.invokeLater(new Runnable() {
+                                @Override
+                                public void run() {
+                                    listener.progress(file, percent);
+                                }
+                            });
+                        }
+                    }
+                });
+            }
+            if (file.exists() && !file.delete())
+                throw new IOException("unable to delete old file");
+            ImageOutputStream output = ImageIO.createImageOutputStream(file);
+            if (output == null)
+                throw new IOException("unable to create output stream");
+            try {
+                writer.setOutput(output);
+                writer.write(image);
+            } finally {
+                output.close();
+            }
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    private ImageSaver() {
+        throw new AssertionError("static only");
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    public static interface Listener {
+
+        /** Called while writing, {@code percent} from 0 to 100. */
+        public void progress(File file, int percent);
+
+        public void saved(File file);
+
+        public void failed(File file, Exception ex);
+    }
+
+    private static class ProgressAdapter implements IIOWriteProgressListener {
+        @Override
+        public void imageStarted(ImageWriter source, int imageIndex) {
+        }
+        @Override
+        public void imageProgress(ImageWriter source, float percentageDone) {
+        }
+        @Override
+        public void imageComplete(ImageWriter source) {
+        }
+        @Override
+        public void thumbnailStarted(ImageWriter source, int imageIndex, int thumbnailIndex) {
+        }
+        @Override
+        public void thumbnailProgress(ImageWriter source, float percentageDone) {
+        }
+        @Override
+        public void thumbnailComplete(ImageWriter source) {
+        }
+        @Override
+        public void writeAborted(ImageWriter source) {
+        }
+    }
+}
@@ -4,26 +4,46 @@
  */
 package cfh.jsnip;
 
+import java.awt.Graphics2D;
 import java.awt.Image;
 import java.awt.datatransfer.Clipboard;
 import java.awt.datatransfer.ClipboardOwner;
 import java.awt.datatransfer.DataFlavor;
 import java.awt.datatransfer.Transferable;
 import java.awt.datatransfer.UnsupportedFlavorException;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
 
 /**
+ * Transfers an image as {@code Image}, as PNG data, or as a temporary PNG file.
+ * The PNG data and the file are only created when requested and kept until the ownership is lost.
+ *
  * @author Carlos F. Heuberger
  *
  */
 public class ImageSelection implements Transferable, ClipboardOwner {
-    
+
+    /** PNG data, transferred as {@code InputStream}. */
+    static final DataFlavor pngFlavor = new DataFlavor("image/png", "PNG Image");
+
     private static final DataFlavor[] flavors = {
-        DataFlavor.imageFlavor
+        DataFlavor.imageFlavor,
+        pngFlavor,
+        DataFlavor.javaFileListFlavor
     };
-    
+
     private final Image image;
-    
+
+    private byte[] png = null;
+    private File file = null;
+
     public ImageSelection(Image image) {
         this.image = image;
     }
@@ -44,10 +64,60 @@ public class ImageSelection implements Transferable, ClipboardOwner {
 
     @Override
     public Object getTransferData(DataFlavor flavor) throws UnsupportedFlavorException, IOException {
-        return image;
+        if (flavor.equals(DataFlavor.imageFlavor))
+            return image;
+        if (flavor.equals(pngFlavor))
+            return new ByteArrayInputStream(png());
+        if (flavor.equals(DataFlavor.javaFileListFlavor))
+            return Collections.singletonList(file());
+        throw new UnsupportedFlavorException(flavor);
+    }
+
+    private synchronized byte[] png() throws IOException {
+        if (png == null) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            new PngEncoder(Settings.getPngCompression()).write(bufferedImage(), output);
+            png = output.toByteArray();
+        }
+        return png;
     }
-    
+
+    private synchronized File file() throws IOException {
+        if (file == null || !file.exists()) {
+            File temp = File.createTempFile("jsnip", ".png");
+            temp.deleteOnExit();
+            OutputStream output = new BufferedOutputStream(new FileOutputStream(temp));
+            try {
+                output.write(png());
+            } finally {
+                output.close();
+            }
+            file = temp;
+        }
+        return file;
+    }
+
+    private BufferedImage bufferedImage() {
+        if (image instanceof BufferedImage)
+            return (BufferedImage) image;
+        BufferedImage buffered = new BufferedImage(image.getWidth(null), image.getHeight(null), BufferedImage.TYPE_INT_ARGB);
+        Graphics2D gg = buffered.createGraphics();
+        try {
+            gg.drawImage(image, 0, 0, null);
+        } finally {
+            gg.dispose();
+        }
+        return buffered;
+    }
+
     @Override
-    public void lostOwnership(Clipboard clipboard, Transferable contents) {
+    public synchronized void lostOwnership(Clipboard clipboard, Transferable contents) {
+        png = null;
+        if (file != null) {
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+            file = null;
+        }
     }
 }
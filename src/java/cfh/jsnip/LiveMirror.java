@@ -0,0 +1,196 @@
+/*
+ * Copyright: Carlos F. Heuberger. All rights reserved.
+ *
+ */
+package cfh.jsnip;
+
+import static java.lang.Math.*;
+
+import java.awt.AWTException;
+import java.awt.GraphicsDevice;
+import java.awt.Rectangle;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import javax.swing.SwingWorker;
+import javax.swing.Timer;
+
+/**
+ * Recaptures the region of a display periodically, see {@link Settings#getLiveInterval()}.
+ * <p>
+ * Each capture is hashed in tiles; only tiles with a changed hash are copied into the image and repainted.
+ * While nothing changes the interval is doubled, up to {@link #MAX_BACKOFF} times the set interval.
+ * Captures and hashing are done in background, never more than one at a time per display.
+ * The display is moved away from its region before live mode starts, so it is not captured.
+ *
+ * @author Carlos F. Heuberger
+ *
+ */
+final class LiveMirror {
+
+    /** Minimal interval, in milliseconds. */
+    static final int MIN_INTERVAL = 20;
+    /** Tile width and height. */
+    static final int TILE = 32;
+    /** Maximal factor the interval is increased while nothing changes. */
+    static final int MAX_BACKOFF = 16;
+
+    private final ImageDisplay display;
+    private final Timer timer;
+
+    private boolean running = false;
+    private boolean capturing = false;
+    /** Incremented on stop, to ignore captures started before. */
+    private int session = 0;
+    private int interval;
+    /** Hash of each tile of the last capture, {@code null} to copy the whole next capture. */
+    private long[] hashes = null;
+
+    LiveMirror(ImageDisplay display) {
+        this.display = display;
+        timer = new Timer(0, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent ev) {
+                tick();
+            }
+        });
+        timer.setRepeats(false);
+    }
+
+    void start() {
+        if (running)
+            return;
+        running = true;
+        hashes = null;
+        interval = Settings.getLiveInterval();
+        timer.setInitialDelay(0);
+        timer.restart();
+    }
+
+    void stop() {
+        running = false;
+        session += 1;
+        timer.stop();
+    }
+
+    boolean isRunning() {
+        return running;
+    }
+
+    private void tick() {
+        if (!running || capturing)
+            return;
+        final ImageCatcher catcher = display.getCatcher();
+        final GraphicsDevice device = catcher.getDevice();
+        final Rectangle rectangle = new Rectangle(catcher.getRectangle());
+        final long[] previous = hashes;
+        final int started = session;
+        capturing = true;
+        new SwingWorker<Frame, Void>() {
+            @Override
+            protected Frame doInBackground() throws AWTException {
+                BufferedImage capture = CaptureService.getInstance().capture(device, rectangle);
+                long[] hashes = hashTiles(capture);
+                return new Frame(capture, hashes, changedTiles(previous, hashes, capture.getWidth(), capture.getHeight()));
+            }
+            @Override
+            protected void done() {
+                capturing = false;
+                if (started != session)
+                    return;
+                Frame frame;
+                try {
+                    frame = get();
+                } catch (ExecutionException ex) {
+                    stop();
+                    display.liveFailed(ex.getCause());
+                    return;
+                } catch (InterruptedException ex) {
+                    stop();
+                    display.liveFailed(ex);
+                    return;
+                }
+                if (frame.image.getWidth() != rectangle.width || frame.image.getHeight() != rectangle.height
+                        || !rectangle.equals(catcher.getRectangle())) {
+                    hashes = null;
+                } else if (frame.tiles == null) {
+                    catcher.recapture(frame.image);
+                    display.repaint();
+                    hashes = frame.hashes;
+                } else if (!frame.tiles.isEmpty()) {
+                    catcher.update(frame.image, frame.tiles);
+                    display.imageChanged(frame.tiles);
+                    hashes = frame.hashes;
+                }
+                int base = Settings.getLiveInterval();
+                if (frame.tiles == null || !frame.tiles.isEmpty()) {
+                    interval = base;
+                } else {
+                    interval = min(interval * 2, base * MAX_BACKOFF);
+                }
+                timer.setInitialDelay(interval);
+                timer.restart();
+            }
+        }.execute();
+    }
+
+    /** Hash of each tile, row by row. */
+    static long[] hashTiles(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int columns = (width + TILE - 1) / TILE;
+        int rows = (height + TILE - 1) / TILE;
+        long[] hashes = new long[columns * rows];
+        DiffEngine.Rows access = new DiffEngine.Rows(image);
+        for (int y = 0; y < height; y += 1) {
+            int[] data = access.read(y);
+            int offset = access.offset(y);
+            int tile = (y / TILE) * columns;
+            for (int x = 0; x < width; x += TILE, tile += 1) {
+                long hash = hashes[tile];
+                int end = offset + min(x + TILE, width);
+                for (int i = offset + x; i < end; i += 1) {
+                    hash = (hash ^ (data[i] & 0xffffffffL)) * 0x100000001B3L;
+                }
+                hashes[tile] = hash;
+            }
+        }
+        return hashes;
+    }
+
+    /** Returns the rectangle of each changed tile, {@code null} if there are no previous hashes. */
+    static List<Rectangle> changedTiles(long[] previous, long[] hashes, int width, int height) {
+        if (previous == null || previous.length != hashes.length)
+            return null;
+        int columns = (width + TILE - 1) / TILE;
+        List<Rectangle> tiles = new ArrayList<>();
+        for (int i = 0; i < hashes.length; i += 1) {
+            if (hashes[i] != previous[i]) {
+                int x = (i % columns) * TILE;
+                int y = (i / columns) * TILE;
+                tiles.add(new Rectangle(x, y, min(TILE, width - x), min(TILE, height - y)));
+            }
+        }
+        return tiles;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    private static final class Frame {
+
+        final BufferedImage image;
+        final long[] hashes;
+        /** Changed tiles, {@code null} if all. */
+        final List<Rectangle> tiles;
+
+        Frame(BufferedImage image, long[] hashes, List<Rectangle> tiles) {
+            this.image = image;
+            this.hashes = hashes;
+            this.tiles = tiles;
+        }
+    }
+}
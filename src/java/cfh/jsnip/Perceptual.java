@@ -0,0 +1,237 @@
+/*
+ * Copyright: Carlos F. Heuberger. All rights reserved.
+ *
+ */
+package cfh.jsnip;
+
+import static java.lang.Math.*;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Perceptual comparison kernels for the {@link DiffEngine}.
+ * <p>
+ * <b>Delta E</b>: the CIE76 color difference, the euclidean distance in CIE L*a*b* (D65).
+ * The conversion uses tables: the linear contribution of each 8 bit sRGB component to X, Y and Z,
+ * and the cube root function of L*a*b* in {@link #F_STEPS} steps, linearly interpolated.
+ * Differences below {@link #JND} (just noticeable difference) are ignored.
+ * <p>
+ * <b>SSIM</b>: the structural similarity of the luminance in a {@link #SSIM_SIZE} square window around
+ * each pixel, with uniform weights. The sums of the window are kept per column and updated row by row,
+ * and summed over the columns with a sliding window, so each pixel takes constant time.
+ * Pixels with a similarity below {@link #SSIM_THRESHOLD} are changed.
+ *
+ * @author Carlos F. Heuberger
+ *
+ */
+final class Perceptual {
+
+    /** Just noticeable Delta E. */
+    static final double JND = 2.3;
+    /** Delta E shown black. */
+    private static final double MAX_DELTA_E = 100;
+
+    private static final int F_STEPS = 4096;
+
+    /** Contribution of each component value to X, Y, Z, already divided by the white point. */
+    private static final float[] XR = new float[256], XG = new float[256], XB = new float[256];
+    private static final float[] YR = new float[256], YG = new float[256], YB = new float[256];
+    private static final float[] ZR = new float[256], ZG = new float[256], ZB = new float[256];
+    /** The L*a*b* function f(t), for t from 0 to 1 in F_STEPS steps, one more for interpolation. */
+    private static final float[] F = new float[F_STEPS + 2];
+
+    static {
+        double xn = 0.95047, zn = 1.08883;
+        for (int v = 0; v < 256; v += 1) {
+            double c = v / 255.0;
+            double linear = c <= 0.04045 ? c / 12.92 : pow((c + 0.055) / 1.055, 2.4);
+            XR[v] = (float) (0.4124564 * linear / xn);
+            XG[v] = (float) (0.3575761 * linear / xn);
+            XB[v] = (float) (0.1804375 * linear / xn);
+            YR[v] = (float) (0.2126729 * linear);
+            YG[v] = (float) (0.7151522 * linear);
+            YB[v] = (float) (0.0721750 * linear);
+            ZR[v] = (float) (0.0193339 * linear / zn);
+            ZG[v] = (float) (0.1191920 * linear / zn);
+            ZB[v] = (float) (0.9503041 * linear / zn);
+        }
+        for (int i = 0; i < F.length; i += 1) {
+            double t = (double) i / F_STEPS;
+            F[i] = (float) (t > 216.0 / 24389 ? cbrt(t) : (24389.0 / 27 * t + 16) / 116);
+        }
+    }
+
+    /** Structural similarity window width and height. */
+    static final int SSIM_SIZE = 7;
+    /** Minimal similarity of an unchanged pixel. */
+    static final double SSIM_THRESHOLD = 0.9;
+    private static final int SSIM_RADIUS = SSIM_SIZE / 2;
+    private static final double C1 = (0.01 * 255) * (0.01 * 255);
+    private static final double C2 = (0.03 * 255) * (0.03 * 255);
+
+    /** Output for an unchanged pixel. */
+    static final int UNCHANGED = 0x00ffffff;
+    private static final int GRAY = 0x00010101;
+
+    /**
+     * Delta E kernel: white if not noticeable, otherwise gray getting darker with the difference.
+     * Arguments as for {@link DiffEngine#diffRow(ImageCatcher.DiffMode, int[], int, int, int[], int, int, int, int) diffRow}.
+     */
+    static void deltaE(int[] org, int op, int oa, int[] img, int ip, int ia, int mask, int length) {
+        int lastO = 0, lastI = 0, last = UNCHANGED;
+        for (int x = 0; x < length; x += 1) {
+            int o = org[op+x] & 0xffffff;
+            int i = img[ip+x] & 0xffffff;
+            if (o == i) {
+                img[ip+x] = UNCHANGED;
+            } else if (o == lastO && i == lastI) {
+                img[ip+x] = last;
+            } else {
+                double e = deltaE(o, i);
+                int n = e < JND ? 0 : max(1, min(255, (int) round(e * 255 / MAX_DELTA_E)));
+                last = GRAY * (255 - n);
+                lastO = o;
+                lastI = i;
+                img[ip+x] = last;
+            }
+        }
+    }
+
+    /** CIE76 color difference of two RGB values. */
+    static double deltaE(int rgb1, int rgb2) {
+        int r1 = (rgb1 >> 16) & 0xff, g1 = (rgb1 >> 8) & 0xff, b1 = rgb1 & 0xff;
+        int r2 = (rgb2 >> 16) & 0xff, g2 = (rgb2 >> 8) & 0xff, b2 = rgb2 & 0xff;
+        float fx1 = f(XR[r1] + XG[g1] + XB[b1]);
+        float fy1 = f(YR[r1] + YG[g1] + YB[b1]);
+        float fz1 = f(ZR[r1] + ZG[g1] + ZB[b1]);
+        float fx2 = f(XR[r2] + XG[g2] + XB[b2]);
+        float fy2 = f(YR[r2] + YG[g2] + YB[b2]);
+        float fz2 = f(ZR[r2] + ZG[g2] + ZB[b2]);
+        double dl = 116 * (fy1 - fy2);
+        double da = 500 * ((fx1 - fy1) - (fx2 - fy2));
+        double db = 200 * ((fy1 - fz1) - (fy2 - fz2));
+        return sqrt(dl*dl + da*da + db*db);
+    }
+
+    private static float f(float t) {
+        float position = max(0, min(1, t)) * F_STEPS;
+        int i = (int) position;
+        return F[i] + (F[i+1] - F[i]) * (position - i);
+    }
+
+    /** Luminance, 0 to 255, of each pixel, row by row. */
+    static byte[] luminance(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        byte[] luminance = new byte[width * height];
+        DiffEngine.Rows rows = new DiffEngine.Rows(image);
+        for (int y = 0; y < height; y += 1) {
+            int[] data = rows.read(y);
+            int offset = rows.offset(y);
+            for (int x = 0, pos = y * width; x < width; x += 1, pos += 1) {
+                int rgb = data[offset+x];
+                luminance[pos] = (byte) ((299 * ((rgb >> 16) & 0xff) + 587 * ((rgb >> 8) & 0xff) + 114 * (rgb & 0xff) + 500) / 1000);
+            }
+        }
+        return luminance;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Structural similarity of two images: white if similar, otherwise gray getting darker with
+     * decreasing similarity. The luminance of both images is taken when created, so the image can
+     * be overwritten by the result.
+     */
+    static final class Ssim extends DiffEngine.Window {
+
+        private final int width;
+        private final int height;
+        private final byte[] original;
+        private final byte[] image;
+
+        Ssim(BufferedImage original, BufferedImage image) {
+            super(UNCHANGED, false);
+            this.width = image.getWidth();
+            this.height = image.getHeight();
+            this.original = luminance(original);
+            this.image = luminance(image);
+        }
+
+        @Override
+        DiffEngine.Kernel band(int from) {
+            return new Band(from);
+        }
+
+        /** Sums of the window per column, for consecutive rows of one band. */
+        private final class Band implements DiffEngine.Kernel {
+
+            private final long[] sx = new long[width];
+            private final long[] sy = new long[width];
+            private final long[] sxx = new long[width];
+            private final long[] syy = new long[width];
+            private final long[] sxy = new long[width];
+            /** Row the column sums are for. */
+            private int row;
+
+            Band(int from) {
+                row = from;
+                for (int y = max(0, from - SSIM_RADIUS); y <= min(height - 1, from + SSIM_RADIUS); y += 1) {
+                    add(y, 1);
+                }
+            }
+
+            private void add(int y, int sign) {
+                for (int x = 0, pos = y * width; x < width; x += 1, pos += 1) {
+                    int a = original[pos] & 0xff;
+                    int b = image[pos] & 0xff;
+                    sx[x] += sign * a;
+                    sy[x] += sign * b;
+                    sxx[x] += sign * a * a;
+                    syy[x] += sign * b * b;
+                    sxy[x] += sign * a * b;
+                }
+            }
+
+            @Override
+            public void row(int y, int[] img, int ip, int ia, int mask, int length) {
+                while (row < y) {
+                    if (row - SSIM_RADIUS >= 0) {
+                        add(row - SSIM_RADIUS, -1);
+                    }
+                    row += 1;
+                    if (row + SSIM_RADIUS < height) {
+                        add(row + SSIM_RADIUS, 1);
+                    }
+                }
+                int rows = min(height - 1, y + SSIM_RADIUS) - max(0, y - SSIM_RADIUS) + 1;
+                long wx = 0, wy = 0, wxx = 0, wyy = 0, wxy = 0;
+                for (int x = 0; x < min(width, SSIM_RADIUS); x += 1) {
+                    wx += sx[x]; wy += sy[x]; wxx += sxx[x]; wyy += syy[x]; wxy += sxy[x];
+                }
+                for (int x = 0; x < length; x += 1) {
+                    int enter = x + SSIM_RADIUS;
+                    if (enter < width) {
+                        wx += sx[enter]; wy += sy[enter]; wxx += sxx[enter]; wyy += syy[enter]; wxy += sxy[enter];
+                    }
+                    int leave = x - SSIM_RADIUS - 1;
+                    if (leave >= 0) {
+                        wx -= sx[leave]; wy -= sy[leave]; wxx -= sxx[leave]; wyy -= syy[leave]; wxy -= sxy[leave];
+                    }
+                    double n = rows * (min(width - 1, x + SSIM_RADIUS) - max(0, x - SSIM_RADIUS) + 1);
+                    double mx = wx / n;
+                    double my = wy / n;
+                    double vx = wxx / n - mx * mx;
+                    double vy = wyy / n - my * my;
+                    double cxy = wxy / n - mx * my;
+                    double s = ((2 * mx * my + C1) * (2 * cxy + C2)) / ((mx * mx + my * my + C1) * (vx + vy + C2));
+                    img[ip+x] = s >= SSIM_THRESHOLD ? UNCHANGED : GRAY * (int) round(max(0, s) * 254);
+                }
+            }
+        }
+    }
+
+    private Perceptual() {
+        throw new AssertionError("static only");
+    }
+}
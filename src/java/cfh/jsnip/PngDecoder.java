@@ -0,0 +1,360 @@
+/*
+ * Copyright: Carlos F. Heuberger. All rights reserved.
+ *
+ */
+package cfh.jsnip;
+
+import static java.lang.Math.*;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Reads a PNG image row by row, keeping only two rows in memory; for images too large to be
+ * decoded at once, see {@link StripCompare}. The rows are returned as ARGB, 16 bit samples are
+ * rounded to 8 bit and gray is returned as equal RGB values. Interlaced images are not supported.
+ * <p>
+ * {@code ImageReader} can read a region of a PNG image, but decodes the image from the start
+ * for each region; reading a large image in strips that way takes time quadratic in its height.
+ *
+ * @author Carlos F. Heuberger
+ *
+ */
+final class PngDecoder implements Closeable {
+
+    private static final int COLOR_GRAY = 0;
+    private static final int COLOR_RGB = 2;
+    private static final int COLOR_INDEXED = 3;
+    private static final int COLOR_GRAY_ALPHA = 4;
+    private static final int COLOR_RGBA = 6;
+
+    /** Returns {@code true} if the file starts with the PNG signature. */
+    static boolean isPng(File file) throws IOException {
+        InputStream input = new FileInputStream(file);
+        try {
+            byte[] signature = new byte[PngEncoder.SIGNATURE.length];
+            int n = 0;
+            while (n < signature.length) {
+                int count = input.read(signature, n, signature.length - n);
+                if (count == -1)
+                    return false;
+                n += count;
+            }
+            return Arrays.equals(signature, PngEncoder.SIGNATURE);
+        } finally {
+            input.close();
+        }
+    }
+
+    private final DataInputStream input;
+    private final int width;
+    private final int height;
+    private final int depth;
+    private final int colorType;
+    private final boolean interlaced;
+    /** Palette as ARGB, {@code null} if not indexed. */
+    private int[] palette = null;
+    /** Transparent sample values of gray or RGB images, {@code null} if none. */
+    private int[] transparent = null;
+
+    /** Bytes per complete pixel, at least one. */
+    private final int bpp;
+    private final int rowBytes;
+    private final Inflater inflater = new Inflater();
+    private DataInputStream data = null;
+    private byte[] previous;
+    private byte[] actual;
+    private int row = 0;
+
+    /** Reads the header, up to the image data. */
+    PngDecoder(File file) throws IOException {
+        input = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+        try {
+            byte[] signature = new byte[PngEncoder.SIGNATURE.length];
+            input.readFully(signature);
+            if (!Arrays.equals(signature, PngEncoder.SIGNATURE))
+                throw new IOException("not a PNG file: " + file);
+            if (input.readInt() != 13 || !"IHDR".equals(readType()))
+                throw new IOException("missing PNG header: " + file);
+            width = input.readInt();
+            height = input.readInt();
+            depth = input.readUnsignedByte();
+            colorType = input.readUnsignedByte();
+            input.readUnsignedByte();  // compression
+            input.readUnsignedByte();  // filter
+            interlaced = input.readUnsignedByte() != 0;
+            input.readInt();  // CRC
+            int channels;
+            switch (colorType) {
+                case COLOR_GRAY: case COLOR_INDEXED: channels = 1; break;
+                case COLOR_GRAY_ALPHA: channels = 2; break;
+                case COLOR_RGB: channels = 3; break;
+                case COLOR_RGBA: channels = 4; break;
+                default: throw new IOException("invalid PNG color type " + colorType + ": " + file);
+            }
+            if (width <= 0 || height <= 0 || (depth != 1 && depth != 2 && depth != 4 && depth != 8 && depth != 16))
+                throw new IOException("invalid PNG header " + width + "x" + height + " depth " + depth + ": " + file);
+            bpp = max(1, channels * depth / 8);
+            long bytes = ((long) width * channels * depth + 7) / 8;
+            if (bytes > Integer.MAX_VALUE - 1)
+                throw new IOException("PNG row too long: " + file);
+            rowBytes = (int) bytes;
+            readChunks(file);
+        } catch (IOException | RuntimeException ex) {
+            close();
+            throw ex;
+        }
+    }
+
+    /** Reads the chunks before the first data chunk. */
+    private void readChunks(File file) throws IOException {
+        while (true) {
+            int length = input.readInt();
+            String type = readType();
+            if (type.equals("IDAT")) {
+                data = new DataInputStream(new InflaterInputStream(new DataStream(length), inflater, 64 * 1024));
+                previous = new byte[rowBytes];
+                actual = new byte[rowBytes];
+                return;
+            }
+            if (type.equals("IEND"))
+                throw new IOException("missing PNG image data: " + file);
+            byte[] chunk = new byte[length];
+            input.readFully(chunk);
+            input.readInt();  // CRC
+            if (type.equals("PLTE")) {
+                palette = new int[256];
+                Arrays.fill(palette, 0xff000000);
+                for (int i = 0; i < min(256, length / 3); i += 1) {
+                    palette[i] = 0xff000000 | (chunk[3*i] & 0xff) << 16 | (chunk[3*i+1] & 0xff) << 8 | (chunk[3*i+2] & 0xff);
+                }
+            } else if (type.equals("tRNS")) {
+                if (colorType == COLOR_INDEXED && palette != null) {
+                    for (int i = 0; i < min(256, length); i += 1) {
+                        palette[i] = (palette[i] & 0xffffff) | (chunk[i] & 0xff) << 24;
+                    }
+                } else if ((colorType == COLOR_GRAY || colorType == COLOR_RGB) && length >= 2) {
+                    transparent = new int[length / 2];
+                    for (int i = 0; i < transparent.length; i += 1) {
+                        transparent[i] = (chunk[2*i] & 0xff) << 8 | (chunk[2*i+1] & 0xff);
+                    }
+                }
+            }
+        }
+    }
+
+    private String readType() throws IOException {
+        byte[] type = new byte[4];
+        input.readFully(type);
+        return new String(type, "US-ASCII");
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    boolean isInterlaced() {
+        return interlaced;
+    }
+
+    /** Returns {@code true} if the image has an alpha channel or a transparent color. */
+    boolean hasAlpha() {
+        if (colorType == COLOR_GRAY_ALPHA || colorType == COLOR_RGBA)
+            return true;
+        if (colorType == COLOR_INDEXED) {
+            if (palette == null)
+                return false;
+            for (int argb : palette) {
+                if ((argb >>> 24) != 0xff)
+                    return true;
+            }
+            return false;
+        }
+        return transparent != null;
+    }
+
+    /** Reads the next row into {@code argb} starting at {@code offset}. */
+    void read(int[] argb, int offset) throws IOException {
+        if (interlaced)
+            throw new IOException("interlaced PNG not supported");
+        if (row >= height)
+            throw new EOFException("all " + height + " rows read");
+        if (colorType == COLOR_INDEXED && palette == null)
+            throw new IOException("missing PNG palette");
+        byte[] tmp = previous;
+        previous = actual;
+        actual = tmp;
+        int filter = data.readUnsignedByte();
+        data.readFully(actual);
+        unfilter(filter, actual, previous);
+        convert(actual, argb, offset);
+        row += 1;
+    }
+
+    private void unfilter(int filter, byte[] row, byte[] prior) throws IOException {
+        int length = row.length;
+        switch (filter) {
+            case 0:
+                break;
+            case 1:
+                for (int i = bpp; i < length; i += 1) {
+                    row[i] += row[i-bpp];
+                }
+                break;
+            case 2:
+                for (int i = 0; i < length; i += 1) {
+                    row[i] += prior[i];
+                }
+                break;
+            case 3:
+                for (int i = 0; i < length; i += 1) {
+                    int a = i >= bpp ? row[i-bpp] & 0xff : 0;
+                    row[i] += (a + (prior[i] & 0xff)) >> 1;
+                }
+                break;
+            case 4:
+                for (int i = 0; i < length; i += 1) {
+                    int a = i >= bpp ? row[i-bpp] & 0xff : 0;
+                    int b = prior[i] & 0xff;
+                    int c = i >= bpp ? prior[i-bpp] & 0xff : 0;
+                    int p = a + b - c;
+                    int pa = abs(p - a);
+                    int pb = abs(p - b);
+                    int pc = abs(p - c);
+                    row[i] += (pa <= pb && pa <= pc) ? a : (pb <= pc) ? b : c;
+                }
+                break;
+            default:
+                throw new IOException("invalid PNG filter " + filter + " in row " + this.row);
+        }
+    }
+
+    private void convert(byte[] row, int[] argb, int offset) {
+        switch (colorType) {
+            case COLOR_INDEXED:
+                for (int x = 0; x < width; x += 1) {
+                    argb[offset+x] = palette[sample(row, x)];
+                }
+                break;
+            case COLOR_GRAY:
+                for (int x = 0; x < width; x += 1) {
+                    int sample = sample(row, x);
+                    int v = scale(sample);
+                    int alpha = (transparent != null && transparent[0] == sample) ? 0 : 0xff000000;
+                    argb[offset+x] = alpha | v << 16 | v << 8 | v;
+                }
+                break;
+            case COLOR_GRAY_ALPHA:
+                for (int x = 0; x < width; x += 1) {
+                    int v = scale(sample(row, 2*x));
+                    argb[offset+x] = scale(sample(row, 2*x+1)) << 24 | v << 16 | v << 8 | v;
+                }
+                break;
+            case COLOR_RGB:
+                boolean key = transparent != null && transparent.length >= 3;
+                for (int x = 0; x < width; x += 1) {
+                    int r = sample(row, 3*x), g = sample(row, 3*x+1), b = sample(row, 3*x+2);
+                    int alpha = (key && transparent[0] == r && transparent[1] == g && transparent[2] == b) ? 0 : 0xff000000;
+                    argb[offset+x] = alpha | scale(r) << 16 | scale(g) << 8 | scale(b);
+                }
+                break;
+            case COLOR_RGBA:
+                for (int x = 0; x < width; x += 1) {
+                    argb[offset+x] = scale(sample(row, 4*x+3)) << 24 | scale(sample(row, 4*x)) << 16
+                            | scale(sample(row, 4*x+1)) << 8 | scale(sample(row, 4*x+2));
+                }
+                break;
+            default:
+                throw new AssertionError(colorType);
+        }
+    }
+
+    /** Sample number {@code i} of the row, as stored. */
+    private int sample(byte[] row, int i) {
+        switch (depth) {
+            case 8: return row[i] & 0xff;
+            case 16: return (row[2*i] & 0xff) << 8 | (row[2*i+1] & 0xff);
+            default:
+                int bit = i * depth;
+                return (row[bit >> 3] >> (8 - depth - (bit & 7))) & ((1 << depth) - 1);
+        }
+    }
+
+    /** Sample scaled to 8 bit; not for palette indices. */
+    private int scale(int sample) {
+        switch (depth) {
+            case 8: return sample;
+            case 16: return (sample * 255 + 32767) / 65535;
+            default: return sample * 255 / ((1 << depth) - 1);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (data != null) {
+                data.close();
+            }
+        } finally {
+            inflater.end();
+            input.close();
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /** Content of consecutive data chunks, starting inside the first one. */
+    private final class DataStream extends InputStream {
+
+        /** Bytes left in the actual chunk, -1 at the end of the data chunks. */
+        private int left;
+
+        DataStream(int length) {
+            left = length;
+        }
+
+        /** Skips to the next data chunk if the actual one is finished; returns {@code false} at the end. */
+        private boolean next() throws IOException {
+            while (left == 0) {
+                input.readInt();  // CRC
+                int length = input.readInt();
+                left = readType().equals("IDAT") ? length : -1;
+            }
+            return left > 0;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!next())
+                return -1;
+            left -= 1;
+            return input.readUnsignedByte();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            if (!next())
+                return -1;
+            int n = input.read(b, off, min(len, left));
+            if (n == -1)
+                throw new EOFException("truncated PNG data");
+            left -= n;
+            return n;
+        }
+    }
+}
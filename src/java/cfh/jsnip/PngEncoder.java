@@ -0,0 +1,632 @@
+/*
+ * Copyright: Carlos F. Heuberger. All rights reserved.
+ *
+ */
+package cfh.jsnip;
+
+import static java.lang.Math.*;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * PNG writer for true color images (8 bit RGB, or RGBA if the image has alpha).
+ * Optionally writes indexed images with up to 256 colors, see {@link ColorQuantizer}.
+ * <p>
+ * The image is split in chunks of rows. Chunks are filtered, choosing the filter per row,
+ * and compressed in parallel by the {@link Workers} pool. Like <i>pigz</i>, each chunk is
+ * compressed with the end of the previous chunk as dictionary and flushed to a byte boundary,
+ * so the compressed chunks concatenated form one standard zlib stream. Images too large for memory
+ * are written strip by strip the same way, see {@link #stream(OutputStream, int, int, boolean)}.
+ *
+ * @author Carlos F. Heuberger
+ *
+ */
+final class PngEncoder {
+
+    public static enum Compression {
+        FAST ("Fast", 1, false),
+        DEFAULT ("Default", 6, true),
+        SMALL ("Small", 9, true),
+        ;
+        private final String name;
+        private final int level;
+        /** Try all filters per row, otherwise only None, Sub and Up. */
+        private final boolean allFilters;
+        Compression(String name, int level, boolean allFilters) {
+            this.name = name;
+            this.level = level;
+            this.allFilters = allFilters;
+        }
+        String getName() {
+            return name;
+        }
+    }
+
+    static final byte[] SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' };
+
+    static final int COLOR_RGB = 2;
+    private static final int COLOR_INDEXED = 3;
+    private static final int COLOR_RGBA = 6;
+
+    private static final int FILTER_NONE = 0;
+    private static final int FILTER_SUB = 1;
+    private static final int FILTER_UP = 2;
+    private static final int FILTER_AVERAGE = 3;
+    private static final int FILTER_PAETH = 4;
+
+    /** Approximated number of uncompressed bytes per chunk. */
+    private static final int CHUNK_BYTES = 256 * 1024;
+    /** Size of the deflate window, used as dictionary. */
+    private static final int DICTIONARY = 32 * 1024;
+
+    public static enum Colors {
+        TRUE_COLOR ("True color"),
+        /** Indexed, quantized if more than 256 colors. */
+        INDEXED ("Indexed"),
+        /** Indexed, quantized with dithering if more than 256 colors. */
+        DITHERED ("Indexed, dithered"),
+        ;
+        private final String name;
+        Colors(String name) {
+            this.name = name;
+        }
+        String getName() {
+            return name;
+        }
+    }
+
+    private final Compression compression;
+    private final Colors colors;
+
+    PngEncoder(Compression compression) {
+        this(compression, Colors.TRUE_COLOR);
+    }
+
+    PngEncoder(Compression compression, Colors colors) {
+        this.compression = Objects.requireNonNull(compression);
+        this.colors = Objects.requireNonNull(colors);
+    }
+
+    /** Encodes the image, see {@link #write(BufferedImage, OutputStream, Progress)}. */
+    void write(BufferedImage image, OutputStream output) throws IOException {
+        write(image, output, null);
+    }
+
+    /**
+     * Encodes the image and writes it to the stream; the stream is not closed.
+     * If indexed colors were requested but the image has transparent pixels and
+     * too many colors, it is written as true color.
+     *
+     * @param progress notified after each chunk is compressed, may be {@code null}.
+     */
+    void write(final BufferedImage image, OutputStream output, Progress progress) throws IOException {
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        if (width <= 0 || height <= 0)
+            throw new IllegalArgumentException("empty image: " + width + "x" + height);
+        if (colors != Colors.TRUE_COLOR) {
+            ColorQuantizer.Indexed indexed = ColorQuantizer.index(image, ColorQuantizer.MAX_COLORS, colors == Colors.DITHERED);
+            if (indexed != null) {
+                write(indexed, output, progress);
+                return;
+            }
+        }
+        
+        boolean alpha = image.getColorModel().hasAlpha();
+        final int bpp = alpha ? 4 : 3;
+        write(output, width, height, 8, alpha ? COLOR_RGBA : COLOR_RGB, null, null, 1 + width * bpp, new ChunkFilter() {
+            @Override
+            public byte[] filter(int from, int to) {
+                return PngEncoder.this.filter(image, from, to, bpp);
+            }
+        }, progress);
+    }
+
+    /**
+     * Starts writing an image given strip by strip, as true color; only the strip being written is
+     * kept, with the last row and the deflate dictionary. The header is written at once.
+     *
+     * @param alpha write RGBA, otherwise RGB
+     */
+    Stream stream(OutputStream output, int width, int height, boolean alpha) throws IOException {
+        if (width <= 0 || height <= 0)
+            throw new IllegalArgumentException("empty image: " + width + "x" + height);
+        return new Stream(output, width, height, alpha);
+    }
+
+    /** Returns the number of bytes the encoded image will have. */
+    long size(BufferedImage image) throws IOException {
+        final long[] count = { 0 };
+        write(image, new OutputStream() {
+            @Override
+            public void write(int b) {
+                count[0] += 1;
+            }
+            @Override
+            public void write(byte[] b, int off, int len) {
+                count[0] += len;
+            }
+        });
+        return count[0];
+    }
+
+    /** Writes an indexed image, using the smallest possible bit depth; rows are not filtered. */
+    private void write(final ColorQuantizer.Indexed indexed, OutputStream output, Progress progress) throws IOException {
+        int[] colors = indexed.palette;
+        final int depth = colors.length <= 2 ? 1 : colors.length <= 4 ? 2 : colors.length <= 16 ? 4 : 8;
+        byte[] palette = new byte[3 * colors.length];
+        int opaque = 0;
+        for (int i = 0; i < colors.length; i += 1) {
+            palette[3*i] = (byte) (colors[i] >> 16);
+            palette[3*i+1] = (byte) (colors[i] >> 8);
+            palette[3*i+2] = (byte) colors[i];
+            if ((colors[i] >>> 24) != 0xff) {
+                opaque = i + 1;
+            }
+        }
+        byte[] transparency = null;
+        if (opaque > 0) {
+            transparency = new byte[opaque];
+            for (int i = 0; i < opaque; i += 1) {
+                transparency[i] = (byte) (colors[i] >>> 24);
+            }
+        }
+        final int width = indexed.width;
+        final int rowBytes = 1 + (width * depth + 7) / 8;
+        write(output, width, indexed.height, depth, COLOR_INDEXED, palette, transparency, rowBytes, new ChunkFilter() {
+            @Override
+            public byte[] filter(int from, int to) {
+                byte[] result = new byte[(to - from) * rowBytes];
+                int pixelsPerByte = 8 / depth;
+                for (int y = from; y < to; y += 1) {
+                    int pos = (y - from) * rowBytes;
+                    result[pos++] = FILTER_NONE;
+                    int index = y * width;
+                    for (int x = 0; x < width; x += pixelsPerByte) {
+                        int value = 0;
+                        for (int i = 0; i < pixelsPerByte; i += 1) {
+                            value <<= depth;
+                            if (x + i < width) {
+                                value |= indexed.indices[index + x + i] & 0xff;
+                            }
+                        }
+                        result[pos++] = (byte) value;
+                    }
+                }
+                return result;
+            }
+        }, progress);
+    }
+
+    /** Filters and compresses the image data in parallel and writes all PNG chunks. */
+    private void write(OutputStream output, int width, final int height, int depth, int colorType, 
+            byte[] palette, byte[] transparency, int rowBytes, final ChunkFilter filter, final Progress progress) 
+    throws IOException {
+        byte[][] compressed = compress(height, rowBytes, filter, progress);
+
+        DataOutputStream out = new DataOutputStream(output);
+        out.write(SIGNATURE);
+        writeChunk(out, "IHDR", header(width, height, depth, colorType));
+        if (palette != null) {
+            writeChunk(out, "PLTE", palette);
+        }
+        if (transparency != null) {
+            writeChunk(out, "tRNS", transparency);
+        }
+        for (byte[] bytes : compressed) {
+            writeChunk(out, "IDAT", bytes);
+        }
+        writeChunk(out, "IEND", new byte[0]);
+        out.flush();
+    }
+
+    /**
+     * Filters and compresses the pixels of an image as 8 bit RGB, ignoring alpha.
+     * Returns the zlib stream split in parts, each to be written as one data chunk.
+     */
+    byte[][] compressRgb(final BufferedImage image) throws IOException {
+        return compress(image.getHeight(), 1 + image.getWidth() * 3, new ChunkFilter() {
+            @Override
+            public byte[] filter(int from, int to) {
+                return PngEncoder.this.filter(image, from, to, 3);
+            }
+        }, null);
+    }
+
+    /** Filters and compresses the chunks of rows in parallel; returns the zlib stream split in parts. */
+    private byte[][] compress(int height, int rowBytes, ChunkFilter filter, Progress progress) throws IOException {
+        Deflated deflated = deflate(height, rowBytes, filter, null, true, progress);
+        byte[][] compressed = deflated.chunks;
+        long adler = deflated.adler;
+        int count = compressed.length;
+        compressed[0] = concat(zlibHeader(), compressed[0]);
+        compressed[count-1] = concat(compressed[count-1], 
+                new byte[] { (byte) (adler >>> 24), (byte) (adler >>> 16), (byte) (adler >>> 8), (byte) adler });
+        return compressed;
+    }
+
+    /**
+     * Filters and deflates the chunks of rows in parallel; each chunk uses the filtered data of
+     * the previous one as dictionary, the first one {@code dictionary} if not {@code null}.
+     *
+     * @param last terminate the deflate stream, otherwise the last chunk is flushed to a byte boundary
+     */
+    private Deflated deflate(final int height, int rowBytes, final ChunkFilter filter, final byte[] dictionary, 
+            final boolean last, final Progress progress) throws IOException {
+        final int rows = max(1, CHUNK_BYTES / rowBytes);
+        final int count = (height + rows - 1) / rows;
+
+        final byte[][] filtered = new byte[count][];
+        List<Callable<Void>> filters = new ArrayList<>();
+        for (int i = 0; i < count; i += 1) {
+            final int chunk = i;
+            filters.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    int from = chunk * rows;
+                    filtered[chunk] = filter.filter(from, min(height, from + rows));
+                    return null;
+                }
+            });
+        }
+        invokeAll(filters);
+
+        final byte[][] compressed = new byte[count][];
+        final long[] adlers = new long[count];
+        final AtomicInteger done = new AtomicInteger();
+        List<Callable<Void>> deflaters = new ArrayList<>();
+        for (int i = 0; i < count; i += 1) {
+            final int chunk = i;
+            deflaters.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    byte[] previous = chunk == 0 ? dictionary : filtered[chunk-1];
+                    compressed[chunk] = deflate(filtered[chunk], previous, last && chunk == count-1);
+                    Adler32 adler = new Adler32();
+                    adler.update(filtered[chunk]);
+                    adlers[chunk] = adler.getValue();
+                    if (progress != null) {
+                        progress.progress(100 * done.incrementAndGet() / count);
+                    }
+                    return null;
+                }
+            });
+        }
+        invokeAll(deflaters);
+
+        long adler = adlers[0];
+        long length = filtered[0].length;
+        for (int i = 1; i < count; i += 1) {
+            adler = adler32Combine(adler, adlers[i], filtered[i].length);
+            length += filtered[i].length;
+        }
+        return new Deflated(compressed, filtered[count-1], adler, length);
+    }
+
+    /** Data of the IHDR chunk, without interlace. */
+    static byte[] header(int width, int height, int depth, int colorType) throws IOException {
+        ByteArrayOutputStream header = new ByteArrayOutputStream(13);
+        DataOutputStream data = new DataOutputStream(header);
+        data.writeInt(width);
+        data.writeInt(height);
+        data.writeByte(depth);
+        data.writeByte(colorType);
+        data.writeByte(0);  // compression
+        data.writeByte(0);  // filter
+        data.writeByte(0);  // interlace
+        return header.toByteArray();
+    }
+
+    /** Filters rows {@code from} (inclusive) to {@code to} (exclusive), each row prefixed by its filter type. */
+    private byte[] filter(BufferedImage image, int from, int to, int bpp) {
+        return filter(image, from, to, bpp, null);
+    }
+
+    /**
+     * Filters rows {@code from} (inclusive) to {@code to} (exclusive), each row prefixed by its filter type.
+     *
+     * @param prior bytes of the row before {@code from}, or {@code null} to take it from the image
+     */
+    private byte[] filter(BufferedImage image, int from, int to, int bpp, byte[] prior) {
+        int width = image.getWidth();
+        int length = width * bpp;
+        byte[] result = new byte[(to - from) * (length + 1)];
+        byte[] previous = new byte[length];
+        byte[] actual = new byte[length];
+        byte[][] candidates = new byte[5][length];
+        DiffEngine.Rows rows = new DiffEngine.Rows(image);
+        if (prior != null) {
+            System.arraycopy(prior, 0, previous, 0, length);
+        } else if (from > 0) {
+            toBytes(rows.read(from-1), rows.offset(from-1), rows.alpha, width, bpp, previous);
+        }
+        int pos = 0;
+        for (int y = from; y < to; y += 1) {
+            toBytes(rows.read(y), rows.offset(y), rows.alpha, width, bpp, actual);
+            int best = chooseFilter(actual, previous, bpp, candidates);
+            result[pos++] = (byte) best;
+            System.arraycopy(candidates[best], 0, result, pos, length);
+            pos += length;
+            byte[] tmp = previous;
+            previous = actual;
+            actual = tmp;
+        }
+        return result;
+    }
+
+    /** Applies the filters to the row and returns the one with the smallest sum of absolute values. */
+    private int chooseFilter(byte[] row, byte[] prior, int bpp, byte[][] candidates) {
+        int length = row.length;
+        byte[] none = candidates[FILTER_NONE];
+        byte[] sub = candidates[FILTER_SUB];
+        byte[] up = candidates[FILTER_UP];
+        byte[] average = candidates[FILTER_AVERAGE];
+        byte[] paeth = candidates[FILTER_PAETH];
+        long sumNone = 0, sumSub = 0, sumUp = 0, sumAverage = 0, sumPaeth = 0;
+        boolean all = compression.allFilters;
+        for (int i = 0; i < length; i += 1) {
+            int x = row[i] & 0xff;
+            int a = i >= bpp ? row[i-bpp] & 0xff : 0;
+            int b = prior[i] & 0xff;
+            byte v;
+            none[i] = v = (byte) x;
+            sumNone += abs(v);
+            sub[i] = v = (byte) (x - a);
+            sumSub += abs(v);
+            up[i] = v = (byte) (x - b);
+            sumUp += abs(v);
+            if (all) {
+                int c = i >= bpp ? prior[i-bpp] & 0xff : 0;
+                average[i] = v = (byte) (x - ((a + b) >> 1));
+                sumAverage += abs(v);
+                paeth[i] = v = (byte) (x - paeth(a, b, c));
+                sumPaeth += abs(v);
+            }
+        }
+        int best = FILTER_NONE;
+        long min = sumNone;
+        if (sumSub < min) { min = sumSub; best = FILTER_SUB; }
+        if (sumUp < min) { min = sumUp; best = FILTER_UP; }
+        if (all) {
+            if (sumAverage < min) { min = sumAverage; best = FILTER_AVERAGE; }
+            if (sumPaeth < min) { min = sumPaeth; best = FILTER_PAETH; }
+        }
+        return best;
+    }
+
+    private static int paeth(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = abs(p - a);
+        int pb = abs(p - b);
+        int pc = abs(p - c);
+        if (pa <= pb && pa <= pc)
+            return a;
+        if (pb <= pc)
+            return b;
+        return c;
+    }
+
+    /** Converts ARGB values to bytes R, G, B (and A if {@code bpp} is 4). */
+    private static void toBytes(int[] data, int offset, int alpha, int width, int bpp, byte[] bytes) {
+        int pos = 0;
+        for (int x = 0; x < width; x += 1) {
+            int argb = data[offset+x] | alpha;
+            bytes[pos++] = (byte) (argb >> 16);
+            bytes[pos++] = (byte) (argb >> 8);
+            bytes[pos++] = (byte) argb;
+            if (bpp == 4) {
+                bytes[pos++] = (byte) (argb >>> 24);
+            }
+        }
+    }
+
+    /** Raw deflate of the data; not the last chunk is flushed to a byte boundary. */
+    private byte[] deflate(byte[] data, byte[] dictionary, boolean last) {
+        Deflater deflater = new Deflater(compression.level, true);
+        try {
+            if (dictionary != null) {
+                int length = min(DICTIONARY, dictionary.length);
+                deflater.setDictionary(dictionary, dictionary.length - length, length);
+            }
+            deflater.setInput(data);
+            ByteArrayOutputStream output = new ByteArrayOutputStream(data.length / 4 + 64);
+            byte[] buffer = new byte[64 * 1024];
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    int n = deflater.deflate(buffer);
+                    output.write(buffer, 0, n);
+                }
+            } else {
+                int n;
+                do {
+                    n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    output.write(buffer, 0, n);
+                } while (n == buffer.length || !deflater.needsInput());
+            }
+            return output.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private byte[] zlibHeader() {
+        int level = compression.level;
+        int flevel = level < 2 ? 0 : level < 6 ? 1 : level == 6 ? 2 : 3;
+        int cmf = 0x78;
+        int flg = flevel << 6;
+        flg += 31 - ((cmf << 8) + flg) % 31;
+        return new byte[] { (byte) cmf, (byte) flg };
+    }
+
+    /** Adler-32 of two concatenated sequences, as {@code adler32_combine} of zlib. */
+    static long adler32Combine(long adler1, long adler2, long length2) {
+        final long base = 65521;
+        long rem = length2 % base;
+        long sum1 = adler1 & 0xffff;
+        long sum2 = (rem * sum1) % base;
+        sum1 += (adler2 & 0xffff) + base - 1;
+        sum2 += ((adler1 >> 16) & 0xffff) + ((adler2 >> 16) & 0xffff) + base - rem;
+        if (sum1 >= base) sum1 -= base;
+        if (sum1 >= base) sum1 -= base;
+        if (sum2 >= (base << 1)) sum2 -= (base << 1);
+        if (sum2 >= base) sum2 -= base;
+        return (sum2 << 16) | sum1;
+    }
+
+    static void writeChunk(DataOutputStream out, String type, byte[] data) throws IOException {
+        byte[] name = type.getBytes("US-ASCII");
+        CRC32 crc = new CRC32();
+        crc.update(name);
+        crc.update(data);
+        out.writeInt(data.length);
+        out.write(name);
+        out.write(data);
+        out.writeInt((int) crc.getValue());
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] result = new byte[first.length + second.length];
+        System.arraycopy(first, 0, result, 0, first.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+
+    /** Runs the tasks on the worker pool and waits for all to complete. */
+    private static void invokeAll(List<Callable<Void>> tasks) throws IOException {
+        if (tasks.size() == 1 || Workers.parallelism() == 1) {
+            for (Callable<Void> task : tasks) {
+                try {
+                    task.call();
+                } catch (Exception ex) {
+                    throw new IOException(ex);
+                }
+            }
+        } else {
+            for (Future<Void> future : Workers.pool().invokeAll(tasks)) {
+                try {
+                    future.get();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(ex);
+                } catch (ExecutionException ex) {
+                    throw new IOException(ex.getCause());
+                }
+            }
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /** Image written strip by strip, see {@link PngEncoder#stream(OutputStream, int, int, boolean)}. */
+    final class Stream implements Closeable {
+
+        private final DataOutputStream out;
+        private final int width;
+        private final int height;
+        private final int bpp;
+        private int rows = 0;
+        /** Bytes of the last row written, zeros before the first row as for the first row of an image. */
+        private final byte[] previous;
+        /** Filtered data of the last chunk, {@code null} before the first row. */
+        private byte[] dictionary = null;
+        private long adler = 1;
+        private boolean closed = false;
+
+        private Stream(OutputStream output, int width, int height, boolean alpha) throws IOException {
+            this.out = new DataOutputStream(output);
+            this.width = width;
+            this.height = height;
+            this.bpp = alpha ? 4 : 3;
+            this.previous = new byte[width * bpp];
+            out.write(SIGNATURE);
+            writeChunk(out, "IHDR", header(width, height, 8, alpha ? COLOR_RGBA : COLOR_RGB));
+        }
+
+        /** Writes rows {@code from} (inclusive) to {@code to} (exclusive) of the strip as the next rows of the image. */
+        void write(final BufferedImage strip, final int from, int to) throws IOException {
+            if (strip.getWidth() != width)
+                throw new IllegalArgumentException("strip width " + strip.getWidth() + " <> " + width);
+            if (rows + to - from > height)
+                throw new IllegalArgumentException("more than " + height + " rows");
+            if (to <= from)
+                return;
+            final byte[] prior = previous;
+            Deflated deflated = deflate(to - from, 1 + width * bpp, new ChunkFilter() {
+                @Override
+                public byte[] filter(int first, int last) {
+                    return PngEncoder.this.filter(strip, from + first, from + last, bpp, first == 0 ? prior : null);
+                }
+            }, dictionary, false, null);
+            for (int i = 0; i < deflated.chunks.length; i += 1) {
+                writeChunk(out, "IDAT", rows == 0 && i == 0 ? concat(zlibHeader(), deflated.chunks[i]) : deflated.chunks[i]);
+            }
+            adler = rows == 0 ? deflated.adler : adler32Combine(adler, deflated.adler, deflated.length);
+            dictionary = Arrays.copyOfRange(deflated.last, max(0, deflated.last.length - DICTIONARY), deflated.last.length);
+            DiffEngine.Rows data = new DiffEngine.Rows(strip);
+            toBytes(data.read(to-1), data.offset(to-1), data.alpha, width, bpp, previous);
+            rows += to - from;
+        }
+
+        /** Ends the image, all rows must have been written; the output stream is not closed. */
+        @Override
+        public void close() throws IOException {
+            if (closed)
+                return;
+            if (rows != height)
+                throw new IOException("only " + rows + " of " + height + " rows written");
+            closed = true;
+            byte[] end = concat(deflate(new byte[0], dictionary, true),
+                    new byte[] { (byte) (adler >>> 24), (byte) (adler >>> 16), (byte) (adler >>> 8), (byte) adler });
+            writeChunk(out, "IDAT", end);
+            writeChunk(out, "IEND", new byte[0]);
+            out.flush();
+        }
+    }
+
+    /** Deflated chunks of rows. */
+    private static final class Deflated {
+
+        final byte[][] chunks;
+        /** Filtered data of the last chunk. */
+        final byte[] last;
+        /** Adler-32 and number of the filtered bytes. */
+        final long adler;
+        final long length;
+
+        Deflated(byte[][] chunks, byte[] last, long adler, long length) {
+            this.chunks = chunks;
+            this.last = last;
+            this.adler = adler;
+            this.length = length;
+        }
+    }
+
+    private static interface ChunkFilter {
+
+        /** Returns the filtered data of rows {@code from} (inclusive) to {@code to} (exclusive). */
+        byte[] filter(int from, int to);
+    }
+
+    public static interface Progress {
+
+        /** Called from worker threads, {@code percent} from 0 to 100. */
+        public void progress(int percent);
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright: Carlos F. Heuberger. All rights reserved.
+ *
+ */
+package cfh.jsnip;
+
+import static java.lang.Math.*;
+
+import java.awt.AWTException;
+import java.awt.GraphicsDevice;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records a screen region into an animated GIF or PNG file, see {@link AnimationWriter}.
+ * <p>
+ * One thread captures the region at the given rate, another one compares each frame with the
+ * previous one and passes it to the writer, limited to the changed rectangle; frames without
+ * changes are skipped. Only the previous frame and at most {@link #QUEUE} captured frames are
+ * kept, if the encoder is behind, frames are dropped. Frames are written with their capture time.
+ *
+ * @author Carlos F. Heuberger
+ *
+ */
+final class Recorder {
+
+    /** Default frames per second. */
+    static final int DEFAULT_RATE = 15;
+    static final int MAX_RATE = 60;
+    /** Captured frames waiting for the encoder. */
+    private static final int QUEUE = 2;
+    /** Marks the end of the recording in the queue. */
+    private static final Frame END = new Frame(null, 0);
+
+    private final GraphicsDevice device;
+    private final Rectangle rectangle;
+    private final File file;
+    private final int rate;
+
+    private final BlockingQueue<Frame> queue = new ArrayBlockingQueue<>(QUEUE);
+    private ScheduledExecutorService capture = null;
+    private Thread encoder = null;
+
+    /** Previous frame, RGB. */
+    private int[] previous = null;
+    private volatile int frames = 0;
+    private volatile Exception error = null;
+    private volatile long endTime;
+
+    /**
+     * @param rectangle region in screen coordinates
+     * @param file      animated GIF if ending in {@code .gif}, otherwise animated PNG
+     * @param rate      frames per second, 1 to {@link #MAX_RATE}
+     */
+    Recorder(GraphicsDevice device, Rectangle rectangle, File file, int rate) {
+        if (rate < 1 || rate > MAX_RATE)
+            throw new IllegalArgumentException("rate not in 1 to " + MAX_RATE + ": " + rate);
+        this.device = device;
+        this.rectangle = new Rectangle(rectangle);
+        this.file = file;
+        this.rate = rate;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /** Number of frames written, frames without changes are not counted. */
+    int getFrames() {
+        return frames;
+    }
+
+    synchronized boolean isRunning() {
+        return capture != null;
+    }
+
+    /** Creates the file and starts recording. */
+    synchronized void start() throws IOException {
+        if (capture != null || encoder != null)
+            throw new IllegalStateException("already started");
+        final AnimationWriter writer = AnimationWriter.create(file, rectangle.width, rectangle.height,
+                PngEncoder.Compression.FAST);
+        encoder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                encode(writer);
+            }
+        }, "record encoder");
+        encoder.setDaemon(true);
+        encoder.start();
+
+        capture = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "record");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        capture.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    BufferedImage image = CaptureService.getInstance().capture(device, rectangle);
+                    queue.offer(new Frame(image, System.currentTimeMillis()));  // dropped if encoder is behind
+                } catch (AWTException | RuntimeException ex) {
+                    error = ex;
+                    throw new RuntimeException(ex);  // cancels the capture
+                }
+            }
+        }, 0, 1000 / rate, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the recording and waits until the file is written.
+     *
+     * @throws IOException if the capture or writing the file failed
+     */
+    void stop() throws IOException, InterruptedException {
+        Thread thread;
+        synchronized (this) {
+            if (capture != null) {
+                capture.shutdownNow();
+                capture.awaitTermination(1, TimeUnit.SECONDS);
+                capture = null;
+                endTime = System.currentTimeMillis();
+                queue.put(END);
+            }
+            thread = encoder;
+        }
+        if (thread != null) {
+            thread.join();
+        }
+        Exception ex = error;
+        if (ex == null && frames == 0) {
+            file.delete();
+            throw new IOException("no frame captured");
+        }
+        if (ex instanceof IOException)
+            throw (IOException) ex;
+        if (ex != null)
+            throw new IOException(ex.getMessage(), ex);
+    }
+
+    /** Passes the changed part of each frame to the writer, run by the encoder thread. */
+    private void encode(AnimationWriter writer) {
+        try {
+            for (Frame frame = queue.take(); frame != END; frame = queue.take()) {
+                if (error != null)
+                    continue;  // just empty the queue until stopped
+                try {
+                    Rectangle changed = changed(frame.image);
+                    if (changed != null) {
+                        writer.write(frame.image, changed, frame.time);
+                        frames = writer.getFrames();
+                    }
+                } catch (IOException | RuntimeException ex) {
+                    ex.printStackTrace();
+                    error = ex;
+                }
+            }
+        } catch (InterruptedException ex) {
+            error = ex;
+        } finally {
+            try {
+                writer.finish(endTime);
+            } catch (IOException ex) {
+                ex.printStackTrace();
+                if (error == null) {
+                    error = ex;
+                }
+            }
+        }
+    }
+
+    /** Returns the rectangle containing all pixels changed since the previous frame, {@code null} if none. */
+    private Rectangle changed(BufferedImage image) {
+        int width = rectangle.width;
+        int height = rectangle.height;
+        if (image.getWidth() != width || image.getHeight() != height)
+            throw new IllegalArgumentException("capture " + image.getWidth() + "x" + image.getHeight()
+                    + " does not match " + width + "x" + height);
+        DiffEngine.Rows rows = new DiffEngine.Rows(image);
+        if (previous == null) {
+            previous = new int[width * height];
+            for (int y = 0; y < height; y += 1) {
+                System.arraycopy(rows.read(y), rows.offset(y), previous, y * width, width);
+            }
+            return new Rectangle(0, 0, width, height);
+        }
+        int minX = width, maxX = -1, minY = -1, maxY = -1;
+        for (int y = 0; y < height; y += 1) {
+            int[] data = rows.read(y);
+            int offset = rows.offset(y);
+            int pos = y * width;
+            int from = 0;
+            while (from < width && data[offset+from] == previous[pos+from]) {
+                from += 1;
+            }
+            if (from == width)
+                continue;
+            int to = width - 1;
+            while (data[offset+to] == previous[pos+to]) {
+                to -= 1;
+            }
+            System.arraycopy(data, offset + from, previous, pos + from, to - from + 1);
+            minX = min(minX, from);
+            maxX = max(maxX, to);
+            if (minY == -1) {
+                minY = y;
+            }
+            maxY = y;
+        }
+        return maxY == -1 ? null : new Rectangle(minX, minY, maxX - minX + 1, maxY - minY + 1);
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    private static final class Frame {
+
+        final BufferedImage image;
+        final long time;
+
+        Frame(BufferedImage image, long time) {
+            this.image = image;
+            this.time = time;
+        }
+    }
+}
@@ -0,0 +1,476 @@
+/*
+ * Copyright: Carlos F. Heuberger. All rights reserved.
+ *
+ */
+package cfh.jsnip;
+
+import static java.lang.Math.*;
+
+import java.awt.GraphicsDevice;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Keeps the last frames of a screen region, captured every {@link #INTERVAL} milliseconds.
+ * <p>
+ * The oldest frame is kept complete, every following frame as the tiles changed against its
+ * predecessor, deflated. When the memory limit is reached, the oldest change is applied to the
+ * oldest frame and discarded. The newest frame is also kept complete, to find the changed tiles.
+ * <p>
+ * All buffers share one capture thread.
+ *
+ * @author Carlos F. Heuberger
+ *
+ */
+final class ReplayBuffer {
+
+    /** Time between captures, in milliseconds. */
+    static final int INTERVAL = 100;
+    /** Tile width and height. */
+    private static final int TILE = LiveMirror.TILE;
+    /** Bytes counted for each stored change besides its data. */
+    private static final int OVERHEAD = 64;
+
+    private static ScheduledExecutorService scheduler = null;
+    private static int buffers = 0;
+
+    private static synchronized ScheduledExecutorService scheduler() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "replay");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.NORM_PRIORITY - 1);
+                    return thread;
+                }
+            });
+        }
+        buffers += 1;
+        return scheduler;
+    }
+
+    private static synchronized void release() {
+        buffers -= 1;
+        if (buffers == 0 && scheduler != null) {
+            scheduler.shutdown();
+            scheduler = null;
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    private final GraphicsDevice device;
+    private final Rectangle rectangle;
+    private final long maxBytes;
+    private final int width;
+    private final int height;
+    private final int columns;
+
+    private ScheduledFuture<?> task = null;
+    /** Incremented on stop; a capture of an earlier run may still be running and is then discarded. */
+    private int generation = 0;
+
+    /** Oldest frame, RGB. */
+    private int[] first = null;
+    private long firstTime;
+    /** Newest frame, RGB. */
+    private int[] last = null;
+    private final ArrayDeque<Delta> deltas = new ArrayDeque<>();
+    private long deltaBytes = 0;
+    private Exception error = null;
+
+    /**
+     * @param rectangle region in screen coordinates
+     * @param maxBytes  maximal memory used for the frames
+     * @throws IllegalArgumentException if less than three complete frames fit in the memory limit
+     */
+    ReplayBuffer(GraphicsDevice device, Rectangle rectangle, long maxBytes) {
+        this.device = device;
+        this.rectangle = new Rectangle(rectangle);
+        this.width = rectangle.width;
+        this.height = rectangle.height;
+        this.columns = (width + TILE - 1) / TILE;
+        this.maxBytes = maxBytes;
+        if (frameBytes() * 3 > maxBytes)
+            throw new IllegalArgumentException(String.format("replay memory of %,d KiB too small for %dx%d, needs %,d KiB",
+                    maxBytes / 1024, width, height, frameBytes() * 3 / 1024));
+    }
+
+    private long frameBytes() {
+        return 4L * width * height;
+    }
+
+    synchronized void start() {
+        if (task != null)
+            return;
+        error = null;
+        final int started = generation;
+        task = scheduler().scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    BufferedImage image = CaptureService.getInstance().capture(device, rectangle);
+                    add(image, System.currentTimeMillis(), started);
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                    synchronized (ReplayBuffer.this) {
+                        if (started == generation) {
+                            error = ex;
+                            stop();
+                        }
+                    }
+                }
+            }
+        }, 0, INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    synchronized void stop() {
+        if (task != null) {
+            task.cancel(false);
+            task = null;
+            generation += 1;
+            release();
+        }
+    }
+
+    synchronized boolean isRunning() {
+        return task != null;
+    }
+
+    /** Error that stopped the capture, {@code null} if none. */
+    synchronized Exception getError() {
+        return error;
+    }
+
+    synchronized long getMemorySize() {
+        return (first == null ? 0 : 2 * frameBytes()) + deltaBytes;
+    }
+
+    /** Time covered by the stored frames, in milliseconds. */
+    synchronized long getDuration() {
+        return deltas.isEmpty() ? 0 : deltas.getLast().time - firstTime;
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    GraphicsDevice getDevice() {
+        return device;
+    }
+
+    /** Region in screen coordinates. */
+    Rectangle getRectangle() {
+        return new Rectangle(rectangle);
+    }
+
+    long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /** Adds a frame, called by the capture thread; ignored if the run {@code started} was stopped meanwhile. */
+    private void add(BufferedImage image, long time, int started) throws IOException {
+        if (image.getWidth() != width || image.getHeight() != height)
+            throw new IOException("capture " + image.getWidth() + "x" + image.getHeight()
+                    + " does not match region " + width + "x" + height);
+        int[] pixels = new int[width * height];
+        DiffEngine.Rows rows = new DiffEngine.Rows(image);
+        for (int y = 0; y < height; y += 1) {
+            System.arraycopy(rows.read(y), rows.offset(y), pixels, y * width, width);
+        }
+        for (int i = 0; i < pixels.length; i += 1) {
+            pixels[i] &= 0x00ffffff;
+        }
+        int[] previous;
+        synchronized (this) {
+            if (started != generation)
+                return;
+            if (first == null) {
+                first = pixels;
+                firstTime = time;
+                last = pixels.clone();
+                return;
+            }
+            previous = last;
+        }
+        // only the capture of the actual run changes last, compare outside the lock
+        Delta delta = encode(previous, pixels, time);
+        synchronized (this) {
+            if (started != generation)
+                return;
+            last = pixels;
+            deltas.addLast(delta);
+            deltaBytes += delta.bytes();
+            while (2 * frameBytes() + deltaBytes > maxBytes && deltas.size() > 1) {
+                Delta oldest = deltas.removeFirst();
+                deltaBytes -= oldest.bytes();
+                oldest.apply(first, width, height, columns);
+                firstTime = oldest.time;
+            }
+        }
+    }
+
+    /** Compresses the tiles of {@code actual} that differ from {@code previous}. */
+    private Delta encode(int[] previous, int[] actual, long time) {
+        int rows = (height + TILE - 1) / TILE;
+        int[] tiles = new int[columns * rows];
+        int count = 0;
+        for (int ty = 0; ty < rows; ty += 1) {
+            for (int tx = 0; tx < columns; tx += 1) {
+                if (changed(previous, actual, tx, ty)) {
+                    tiles[count++] = ty * columns + tx;
+                }
+            }
+        }
+        if (count == 0)
+            return new Delta(time, new int[0], new byte[0], 0);
+        tiles = Arrays.copyOf(tiles, count);
+
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[16 * 1024];
+            byte[] row = new byte[3 * TILE];
+            int length = 0;
+            for (int tile : tiles) {
+                Rectangle r = bounds(tile, width, height, columns);
+                for (int y = r.y; y < r.y + r.height; y += 1) {
+                    int pos = y * width + r.x;
+                    int n = 0;
+                    for (int x = 0; x < r.width; x += 1) {
+                        int rgb = actual[pos+x];
+                        row[n++] = (byte) (rgb >> 16);
+                        row[n++] = (byte) (rgb >> 8);
+                        row[n++] = (byte) rgb;
+                    }
+                    deflater.setInput(row, 0, n);
+                    length += n;
+                    while (!deflater.needsInput()) {
+                        output.write(buffer, 0, deflater.deflate(buffer));
+                    }
+                }
+            }
+            deflater.finish();
+            while (!deflater.finished()) {
+                output.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return new Delta(time, tiles, output.toByteArray(), length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private boolean changed(int[] previous, int[] actual, int tx, int ty) {
+        int x0 = tx * TILE;
+        int x1 = min(x0 + TILE, width);
+        int y1 = min(ty * TILE + TILE, height);
+        for (int y = ty * TILE; y < y1; y += 1) {
+            int pos = y * width;
+            for (int x = x0; x < x1; x += 1) {
+                if (previous[pos+x] != actual[pos+x])
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    private static Rectangle bounds(int tile, int width, int height, int columns) {
+        int x = (tile % columns) * TILE;
+        int y = (tile / columns) * TILE;
+        return new Rectangle(x, y, min(TILE, width - x), min(TILE, height - y));
+    }
+
+    /**
+     * Replays the frames of the last {@code millis} milliseconds, oldest first.
+     * Frames without changes are skipped. The capture continues meanwhile.
+     */
+    void replay(long millis, Consumer consumer) throws IOException {
+        int[] pixels;
+        long time;
+        List<Delta> list;
+        synchronized (this) {
+            if (first == null)
+                return;
+            pixels = first.clone();
+            time = firstTime;
+            list = new ArrayList<>(deltas);
+        }
+        long end = list.isEmpty() ? time : list.get(list.size()-1).time;
+        long start = end - millis;
+
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] data = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        boolean started = false;
+        Rectangle changed = null;
+        for (int i = -1; i < list.size(); i += 1) {
+            if (i >= 0) {
+                Delta delta = list.get(i);
+                Rectangle bounds = delta.apply(pixels, width, height, columns);
+                time = delta.time;
+                if (bounds != null) {
+                    changed = changed == null ? bounds : changed.union(bounds);
+                }
+            }
+            if (time < start)
+                continue;
+            if (!started) {
+                System.arraycopy(pixels, 0, data, 0, pixels.length);
+                consumer.frame(image, null, time);
+                started = true;
+                changed = null;
+            } else if (changed != null) {
+                for (int y = changed.y; y < changed.y + changed.height; y += 1) {
+                    System.arraycopy(pixels, y * width + changed.x, data, y * width + changed.x, changed.width);
+                }
+                consumer.frame(image, changed, time);
+                changed = null;
+            }
+        }
+        consumer.end(end);
+    }
+
+    /** 
+     * Saves the frames of the last {@code millis} milliseconds as PNG files named 
+     * <code>frame-00000.png</code> and so on; returns the number of frames. 
+     */
+    int saveFrames(long millis, final File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("unable to create directory " + directory);
+        final PngEncoder encoder = new PngEncoder(Settings.getPngCompression());
+        final int[] count = { 0 };
+        replay(millis, new Consumer() {
+            @Override
+            public void frame(BufferedImage image, Rectangle changed, long time) throws IOException {
+                File file = new File(directory, String.format("frame-%05d.png", count[0]++));
+                OutputStream output = new BufferedOutputStream(new FileOutputStream(file));
+                try {
+                    encoder.write(image, output);
+                } finally {
+                    output.close();
+                }
+            }
+            @Override
+            public void end(long time) {
+            }
+        });
+        return count[0];
+    }
+
+    /** 
+     * Saves the frames of the last {@code millis} milliseconds as animated GIF or PNG, 
+     * depending on the file extension; returns the number of frames. 
+     */
+    int saveAnimation(long millis, File file) throws IOException {
+        final AnimationWriter writer = AnimationWriter.create(file, width, height, Settings.getPngCompression());
+        try {
+            replay(millis, new Consumer() {
+                @Override
+                public void frame(BufferedImage image, Rectangle changed, long time) throws IOException {
+                    writer.write(image, changed, time);
+                }
+                @Override
+                public void end(long time) {
+                }
+            });
+        } finally {
+            writer.close();
+        }
+        return writer.getFrames();
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /** Receives the replayed frames. */
+    static interface Consumer {
+
+        /**
+         * Called for each frame; the image is reused for the next frame.
+         *
+         * @param changed changed part in relation to the previous frame, {@code null} for the first frame
+         */
+        void frame(BufferedImage image, Rectangle changed, long time) throws IOException;
+
+        /** Called after the last frame with the time of the last capture. */
+        void end(long time) throws IOException;
+    }
+
+    /** Tiles changed in relation to the previous frame, deflated RGB row by row. */
+    private static final class Delta {
+
+        final long time;
+        final int[] tiles;
+        final byte[] data;
+        /** Uncompressed length of data. */
+        final int length;
+
+        Delta(long time, int[] tiles, byte[] data, int length) {
+            this.time = time;
+            this.tiles = tiles;
+            this.data = data;
+            this.length = length;
+        }
+
+        long bytes() {
+            return OVERHEAD + 4L * tiles.length + data.length;
+        }
+
+        /** Applies the changed tiles to the frame, returns their bounding box, {@code null} if none. */
+        Rectangle apply(int[] pixels, int width, int height, int columns) throws IOException {
+            if (tiles.length == 0)
+                return null;
+            byte[] rgb = new byte[length];
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(data);
+                int n = 0;
+                while (n < length && !inflater.finished()) {
+                    n += inflater.inflate(rgb, n, length - n);
+                }
+                if (n != length)
+                    throw new IOException("corrupt replay data");
+            } catch (DataFormatException ex) {
+                throw new IOException(ex);
+            } finally {
+                inflater.end();
+            }
+            Rectangle changed = null;
+            int i = 0;
+            for (int tile : tiles) {
+                Rectangle r = bounds(tile, width, height, columns);
+                for (int y = r.y; y < r.y + r.height; y += 1) {
+                    int pos = y * width + r.x;
+                    for (int x = 0; x < r.width; x += 1) {
+                        pixels[pos+x] = (rgb[i] & 0xff) << 16 | (rgb[i+1] & 0xff) << 8 | (rgb[i+2] & 0xff);
+                        i += 3;
+                    }
+                }
+                changed = changed == null ? r : changed.union(r);
+            }
+            return changed;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright: Carlos F. Heuberger. All rights reserved.
+ *
+ */
+package cfh.jsnip;
+
+import java.util.prefs.Preferences;
+
+/**
+ * User settings, stored in the preferences of the package.
+ *
+ * @author Carlos F. Heuberger
+ *
+ */
+final class Settings {
+
+    private static final String PREF_PARALLELISM = "parallelism";
+    private static final String PREF_LAZY_CAPTURE = "lazy capture";
+    private static final String PREF_PNG_COMPRESSION = "png compression";
+    private static final String PREF_COPY_ON_SNIP = "copy on snip";
+    private static final String PREF_LIVE_INTERVAL = "live interval";
+    private static final String PREF_REPLAY_MEMORY = "replay memory";
+    private static final String PREF_COMPARE_TOLERANCE = "compare tolerance";
+    private static final String PREF_COMPARE_RADIUS = "compare radius";
+
+    /** Maximal number of threads of a {@code ForkJoinPool}. */
+    private static final int MAX_POOL_THREADS = 0x7fff;
+    /** Maximal number of threads per processor. */
+    private static final int THREADS_PER_PROCESSOR = 4;
+
+    private static final Preferences preferences = Preferences.userNodeForPackage(Settings.class);
+
+    /** Number of threads used for parallel work, <code>0</code> to use all processors. */
+    static int getParallelism() {
+        return Math.max(0, Math.min(getMaxParallelism(), preferences.getInt(PREF_PARALLELISM, 0)));
+    }
+
+    static void setParallelism(int parallelism) {
+        int max = getMaxParallelism();
+        if (parallelism < 0 || parallelism > max)
+            throw new IllegalArgumentException("parallelism not in 0 to " + max + ": " + parallelism);
+        preferences.putInt(PREF_PARALLELISM, parallelism);
+    }
+
+    /** Maximal parallelism: a few threads per processor, at most what a {@code ForkJoinPool} supports. */
+    static int getMaxParallelism() {
+        return (int) Math.min(MAX_POOL_THREADS, (long) THREADS_PER_PROCESSOR * Runtime.getRuntime().availableProcessors());
+    }
+
+    /** Capture only the screen under the pointer when starting a snip, other screens on demand. */
+    static boolean isLazyCapture() {
+        return preferences.getBoolean(PREF_LAZY_CAPTURE, false);
+    }
+
+    static void setLazyCapture(boolean lazy) {
+        preferences.putBoolean(PREF_LAZY_CAPTURE, lazy);
+    }
+
+    /** Compression used to write PNG files. */
+    static PngEncoder.Compression getPngCompression() {
+        String name = preferences.get(PREF_PNG_COMPRESSION, PngEncoder.Compression.DEFAULT.name());
+        try {
+            return PngEncoder.Compression.valueOf(name);
+        } catch (IllegalArgumentException ex) {
+            return PngEncoder.Compression.DEFAULT;
+        }
+    }
+
+    static void setPngCompression(PngEncoder.Compression compression) {
+        preferences.put(PREF_PNG_COMPRESSION, compression.name());
+    }
+
+    /** Copy new snips, and recaptured images, to the clipboard. */
+    static boolean isCopyOnSnip() {
+        return preferences.getBoolean(PREF_COPY_ON_SNIP, true);
+    }
+
+    static void setCopyOnSnip(boolean copy) {
+        preferences.putBoolean(PREF_COPY_ON_SNIP, copy);
+    }
+
+    /** Time, in milliseconds, between captures of a live display while the region changes. */
+    static int getLiveInterval() {
+        return Math.max(LiveMirror.MIN_INTERVAL, preferences.getInt(PREF_LIVE_INTERVAL, 200));
+    }
+
+    static void setLiveInterval(int millis) {
+        if (millis < LiveMirror.MIN_INTERVAL)
+            throw new IllegalArgumentException("live interval below " + LiveMirror.MIN_INTERVAL + " ms: " + millis);
+        preferences.putInt(PREF_LIVE_INTERVAL, millis);
+    }
+
+    /** Maximal memory, in MiB, used by the replay buffer of each display. */
+    static int getReplayMemory() {
+        return Math.max(1, preferences.getInt(PREF_REPLAY_MEMORY, 64));
+    }
+
+    static void setReplayMemory(int mebibytes) {
+        if (mebibytes < 1)
+            throw new IllegalArgumentException("replay memory below 1 MiB: " + mebibytes);
+        preferences.putInt(PREF_REPLAY_MEMORY, mebibytes);
+    }
+
+    /** Maximal difference of each RGB component of an unchanged pixel, tolerant compare. */
+    static int getCompareTolerance() {
+        return Math.max(0, Math.min(Tolerance.MAX_TOLERANCE, 
+                preferences.getInt(PREF_COMPARE_TOLERANCE, Tolerance.DEFAULT_TOLERANCE)));
+    }
+
+    static void setCompareTolerance(int tolerance) {
+        if (tolerance < 0 || tolerance > Tolerance.MAX_TOLERANCE)
+            throw new IllegalArgumentException("tolerance not in 0 to " + Tolerance.MAX_TOLERANCE + ": " + tolerance);
+        preferences.putInt(PREF_COMPARE_TOLERANCE, tolerance);
+    }
+
+    /** Distance, in pixels, searched for a matching pixel, tolerant compare. */
+    static int getCompareRadius() {
+        return Math.max(0, Math.min(Tolerance.MAX_RADIUS, 
+                preferences.getInt(PREF_COMPARE_RADIUS, Tolerance.DEFAULT_RADIUS)));
+    }
+
+    static void setCompareRadius(int radius) {
+        if (radius < 0 || radius > Tolerance.MAX_RADIUS)
+            throw new IllegalArgumentException("radius not in 0 to " + Tolerance.MAX_RADIUS + ": " + radius);
+        preferences.putInt(PREF_COMPARE_RADIUS, radius);
+    }
+
+    private Settings() {
+        throw new AssertionError("static only");
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright: Carlos F. Heuberger. All rights reserved.
+ *
+ */
+package cfh.jsnip;
+
+import java.awt.GraphicsDevice;
+import java.awt.GraphicsEnvironment;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * List of regions to capture and the files to save them to, used to regenerate screenshots.
+ * <p>
+ * The list is saved as text, one shot per line: the device ID, the region in screen coordinates
+ * as <code>x,y,width,height</code> and the file, separated by tabs. Empty lines and lines starting
+ * with '#' are ignored; relative files are relative to the directory of the list.
+ * <p>
+ * Running a list grabs each device only once, covering all its regions, and cuts the regions
+ * from that grab. The images are saved in parallel by the {@link ImageSaver}.
+ *
+ * @author Carlos F. Heuberger
+ *
+ */
+final class ShotList {
+
+    static final String EXTENSION = "shots";
+
+    static void write(File file, List<Shot> shots) throws IOException {
+        PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8));
+        try {
+            writer.println("# " + Snipper.VERSION + " shot list: device, x,y,width,height, file");
+            for (Shot shot : shots) {
+                Rectangle r = shot.rectangle;
+                writer.printf("%s\t%d,%d,%d,%d\t%s%n",
+                        shot.device.getIDstring(), r.x, r.y, r.width, r.height, shot.file.getAbsolutePath());
+            }
+        } finally {
+            writer.close();
+        }
+        if (writer.checkError())
+            throw new IOException("error writing " + file);
+    }
+
+    /**
+     * Reads a shot list. Devices are found by their ID or, if not available,
+     * by the largest intersection with the region.
+     */
+    static List<Shot> read(File file) throws IOException {
+        GraphicsDevice[] devices = GraphicsEnvironment.getLocalGraphicsEnvironment().getScreenDevices();
+        File directory = file.getAbsoluteFile().getParentFile();
+        List<Shot> shots = new ArrayList<>();
+        int number = 0;
+        for (String line : CommandLine.readLines(file)) {
+            number += 1;
+            String[] fields = line.split("\t");
+            if (fields.length != 3)
+                throw new IOException(file + ", shot " + number + ": expected device, region and file separated by tabs");
+            Rectangle rectangle;
+            try {
+                rectangle = CommandLine.parseRectangle(fields[1], line);
+            } catch (IllegalArgumentException ex) {
+                throw new IOException(file + ", shot " + number + ": " + ex.getMessage());
+            }
+            GraphicsDevice device = null;
+            for (GraphicsDevice test : devices) {
+                if (test.getIDstring().equals(fields[0].trim())) {
+                    device = test;
+                    break;
+                }
+            }
+            if (device == null) {
+                device = device(rectangle, devices);
+            }
+            if (device == null)
+                throw new IOException(file + ", shot " + number + ": region not on any device");
+            rectangle = rectangle.intersection(device.getDefaultConfiguration().getBounds());
+            if (rectangle.isEmpty())
+                throw new IOException(file + ", shot " + number + ": region outside device " + device.getIDstring());
+            File target = new File(fields[2].trim());
+            if (!target.isAbsolute()) {
+                target = new File(directory, target.getPath());
+            }
+            shots.add(new Shot(device, rectangle, target));
+        }
+        return shots;
+    }
+
+    /** Returns the device with the largest intersection with the rectangle, {@code null} if none. */
+    static GraphicsDevice device(Rectangle rectangle, GraphicsDevice[] devices) {
+        GraphicsDevice device = null;
+        long best = 0;
+        for (GraphicsDevice test : devices) {
+            Rectangle intersection = test.getDefaultConfiguration().getBounds().intersection(rectangle);
+            long area = intersection.isEmpty() ? 0 : (long) intersection.width * intersection.height;
+            if (area > best) {
+                best = area;
+                device = test;
+            }
+        }
+        return device;
+    }
+
+    /**
+     * Captures all shots, with one capture per device covering all its shots.
+     * Devices are captured in parallel. Failed shots are reported and missing in the result.
+     */
+    static Map<Shot, BufferedImage> capture(List<Shot> shots) throws InterruptedException {
+        Map<GraphicsDevice, List<Shot>> byDevice = new LinkedHashMap<>();
+        for (Shot shot : shots) {
+            List<Shot> list = byDevice.get(shot.device);
+            if (list == null) {
+                list = new ArrayList<>();
+                byDevice.put(shot.device, list);
+            }
+            list.add(shot);
+        }
+
+        Map<GraphicsDevice, Rectangle> areas = new LinkedHashMap<>();
+        Map<GraphicsDevice, Future<BufferedImage>> captures = new LinkedHashMap<>();
+        for (Map.Entry<GraphicsDevice, List<Shot>> entry : byDevice.entrySet()) {
+            Rectangle area = null;
+            for (Shot shot : entry.getValue()) {
+                area = area == null ? new Rectangle(shot.rectangle) : area.union(shot.rectangle);
+            }
+            areas.put(entry.getKey(), area);
+            captures.put(entry.getKey(), CaptureService.getInstance().submit(entry.getKey(), area));
+        }
+
+        Map<Shot, BufferedImage> images = new LinkedHashMap<>();
+        for (Map.Entry<GraphicsDevice, List<Shot>> entry : byDevice.entrySet()) {
+            GraphicsDevice device = entry.getKey();
+            BufferedImage capture;
+            try {
+                capture = captures.get(device).get();
+            } catch (ExecutionException ex) {
+                System.err.println("capturing " + device.getIDstring() + ": " + ex.getCause());
+                continue;
+            }
+            Rectangle area = areas.get(device);
+            for (Shot shot : entry.getValue()) {
+                Rectangle r = shot.rectangle;
+                images.put(shot, capture.getSubimage(r.x-area.x, r.y-area.y, r.width, r.height));
+            }
+        }
+        return images;
+    }
+
+    /**
+     * Saves the images in parallel on the threads of the {@link ImageSaver}, the format given by the file extension.
+     * Returns the exception of each shot that could not be saved.
+     */
+    static Map<Shot, Exception> save(Map<Shot, BufferedImage> images) throws InterruptedException {
+        Map<Shot, Future<Void>> futures = new LinkedHashMap<>();
+        try {
+            for (Map.Entry<Shot, BufferedImage> entry : images.entrySet()) {
+                futures.put(entry.getKey(), ImageSaver.submit(entry.getValue(), entry.getKey().file));
+            }
+            Map<Shot, Exception> failed = new LinkedHashMap<>();
+            for (Map.Entry<Shot, Future<Void>> entry : futures.entrySet()) {
+                try {
+                    entry.getValue().get();
+                } catch (ExecutionException ex) {
+                    Throwable cause = ex.getCause();
+                    failed.put(entry.getKey(), cause instanceof Exception ? (Exception) cause : ex);
+                }
+            }
+            return failed;
+        } catch (InterruptedException ex) {
+            for (Future<Void> future : futures.values()) {
+                future.cancel(true);
+            }
+            throw ex;
+        }
+    }
+
+    private ShotList() {
+        throw new AssertionError("static only");
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /** Region to capture, in screen coordinates, and the file to write to ({@code null} if not written to a file). */
+    static final class Shot {
+
+        final GraphicsDevice device;
+        final Rectangle rectangle;
+        final File file;
+
+        Shot(GraphicsDevice device, Rectangle rectangle, File file) {
+            this.device = device;
+            this.rectangle = rectangle;
+            this.file = file;
+        }
+    }
+}
@@ -11,7 +11,10 @@ import java.awt.CheckboxMenuItem;
 import java.awt.Color;
 import java.awt.GraphicsDevice;
 import java.awt.GraphicsEnvironment;
+import java.awt.Menu;
 import java.awt.MenuItem;
+import java.awt.MouseInfo;
+import java.awt.PointerInfo;
 import java.awt.PopupMenu;
 import java.awt.Rectangle;
 import java.awt.SplashScreen;
@@ -30,15 +33,24 @@ import java.io.File;
 import java.io.IOException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import javax.imageio.ImageIO;
 import javax.swing.JColorChooser;
 import javax.swing.JComponent;
 import javax.swing.JEditorPane;
+import javax.swing.JFileChooser;
 import javax.swing.JOptionPane;
 import javax.swing.JScrollPane;
+import javax.swing.SwingWorker;
 import javax.swing.Timer;
+import javax.swing.filechooser.FileNameExtensionFilter;
 
 
 /**
@@ -52,12 +64,26 @@ public class Snipper {
     private static final String ICON_FILE = "tray.png";
     private static final String TIMER_FILE = "trayTimer.png";
     
+    /** Delay, in milliseconds, to check the pointer position for lazy capture. */
+    private static final int LAZY_DELAY = 100;
+    /** Delay, in milliseconds, between changes of the tray icon when flashing. */
+    private static final int FLASH_DELAY = 250;
+    /** Number of changes of the tray icon when flashing. */
+    private static final int FLASH_COUNT = 8;
+    
     private static final int ALL_MODIFIERS = ALT_DOWN_MASK 
                                            | ALT_GRAPH_DOWN_MASK 
                                            | CTRL_DOWN_MASK 
                                            | SHIFT_DOWN_MASK;
 
     public static void main(String[] args) {
+        if (args.length > 0) {
+            SplashScreen splash = GraphicsEnvironment.isHeadless() ? null : SplashScreen.getSplashScreen();
+            if (splash != null) {
+                splash.close();
+            }
+            System.exit(CommandLine.run(args));
+        }
         Snipper main = new Snipper();
         main.init(args);
         SplashScreen splash = SplashScreen.getSplashScreen();
@@ -77,7 +103,17 @@ public class Snipper {
     private CheckboxMenuItem hideMenuItem;
     private MenuItem chooseRedColorMenuItem;
     private MenuItem chooseColorMenuItem;
+    private MenuItem parallelismMenuItem;
+    private MenuItem liveIntervalMenuItem;
+    private MenuItem replayMemoryMenuItem;
+    private CheckboxMenuItem lazyMenuItem;
+    private CheckboxMenuItem copyMenuItem;
+    private final List<CheckboxMenuItem> compressionMenuItems = new ArrayList<>();
     private MenuItem clearMenuItem;
+    private MenuItem recaptureMenuItem;
+    private MenuItem stopWatchesMenuItem;
+    private MenuItem saveShotsMenuItem;
+    private MenuItem runShotsMenuItem;
     private MenuItem helpMenuItem;
     private MenuItem quitMenuItem;
     
@@ -87,8 +123,19 @@ public class Snipper {
     
     private Color borderColor = Color.BLACK;
     
+    private File shotListDirectory = null;
+    
     private final List<ImageCatcher> catchers = new ArrayList<>();
+    /** Devices captured, or being captured, for the actual catchers. */
+    private final Set<GraphicsDevice> capturedDevices = new HashSet<>();
+    /** Incremented when catchers are closed, to ignore captures started before. */
+    private int snipSession = 0;
+    /** Polls the pointer to capture other devices on demand (lazy capture). */
+    private final Timer lazyTimer = new Timer(LAZY_DELAY, this::doLazyCapture);
     private final List<ImageDisplay> displays = new ArrayList<>();
+    /** Flashes the tray icon after a watched region changed. */
+    private final Timer flashTimer = new Timer(FLASH_DELAY, this::doFlash);
+    private int flashes = 0;
     
     private final ImageCatcher.Listener catchListener = new ImageCatcher.Listener() {
         @Override
@@ -187,6 +234,38 @@ public class Snipper {
             }
         });
         
+        recaptureMenuItem = new MenuItem("Recapture All");
+        recaptureMenuItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent ev) {
+                doRecaptureAll(ev);
+            }
+        });
+        
+        stopWatchesMenuItem = new MenuItem("Stop Watches");
+        stopWatchesMenuItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent ev) {
+                doStopWatches(ev);
+            }
+        });
+        
+        saveShotsMenuItem = new MenuItem("Save Shot List...");
+        saveShotsMenuItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent ev) {
+                doSaveShots(ev);
+            }
+        });
+        
+        runShotsMenuItem = new MenuItem("Run Shot List...");
+        runShotsMenuItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent ev) {
+                doRunShots(ev);
+            }
+        });
+        
         chooseColorMenuItem = new MenuItem("Choose Color");
         chooseColorMenuItem.addActionListener(new ActionListener() {
             @Override
@@ -203,6 +282,70 @@ public class Snipper {
             }
         });
         
+        parallelismMenuItem = new MenuItem("Threads");
+        parallelismMenuItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent ev) {
+                doParallelism(ev);
+            }
+        });
+        
+        liveIntervalMenuItem = new MenuItem("Live Interval");
+        liveIntervalMenuItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent ev) {
+                doLiveInterval(ev);
+            }
+        });
+        
+        replayMemoryMenuItem = new MenuItem("Replay Memory");
+        replayMemoryMenuItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent ev) {
+                doReplayMemory(ev);
+            }
+        });
+        
+        lazyMenuItem = new CheckboxMenuItem("Lazy Capture");
+        lazyMenuItem.setState(Settings.isLazyCapture());
+        lazyMenuItem.addItemListener(new ItemListener() {
+            @Override
+            public void itemStateChanged(ItemEvent ev) {
+                Settings.setLazyCapture(lazyMenuItem.getState());
+            }
+        });
+        
+        copyMenuItem = new CheckboxMenuItem("Copy on Snip");
+        copyMenuItem.setState(Settings.isCopyOnSnip());
+        copyMenuItem.addItemListener(new ItemListener() {
+            @Override
+            public void itemStateChanged(ItemEvent ev) {
+                Settings.setCopyOnSnip(copyMenuItem.getState());
+            }
+        });
+        
+        Menu pngMenu = new Menu("PNG Compression");
+        for (final PngEncoder.Compression compression : PngEncoder.Compression.values()) {
+            final CheckboxMenuItem item = new CheckboxMenuItem(compression.getName());
+            item.setState(compression == Settings.getPngCompression());
+            item.addItemListener(new ItemListener() {
+                @Override
+                public void itemStateChanged(ItemEvent ev) {
+                    doPngCompression(compression);
+                }
+            });
+            compressionMenuItems.add(item);
+            pngMenu.add(item);
+        }
+        
+        Menu settingsMenu = new Menu("Settings");
+        settingsMenu.add(parallelismMenuItem);
+        settingsMenu.add(liveIntervalMenuItem);
+        settingsMenu.add(replayMemoryMenuItem);
+        settingsMenu.add(lazyMenuItem);
+        settingsMenu.add(copyMenuItem);
+        settingsMenu.add(pngMenu);
+        
         helpMenuItem = new MenuItem("Help");
         helpMenuItem.addActionListener(new ActionListener() {
             @Override
@@ -225,9 +368,15 @@ public class Snipper {
         popup.add(ontopMenuItem);
         popup.add(hideMenuItem);
         popup.add(clearMenuItem);
+        popup.add(recaptureMenuItem);
+        popup.add(stopWatchesMenuItem);
+        popup.addSeparator();
+        popup.add(saveShotsMenuItem);
+        popup.add(runShotsMenuItem);
         popup.addSeparator();
         popup.add(chooseColorMenuItem);
         popup.add(chooseRedColorMenuItem);
+        popup.add(settingsMenu);
         popup.addSeparator();
         popup.add(helpMenuItem);
         popup.add(quitMenuItem);
@@ -251,6 +400,26 @@ public class Snipper {
             error("Tray Icon", ex);
             return;
         }
+        
+        ChangeWatch.addListener(new ChangeWatch.Listener() {
+            @Override
+            public void changed(ChangeWatch.Entry entry) {
+                flashes = FLASH_COUNT;
+                flashTimer.start();
+            }
+        });
+    }
+    
+    private void doFlash(ActionEvent ev) {
+        if (!catchers.isEmpty()) {
+            flashTimer.stop();
+        } else if (flashes <= 0) {
+            flashTimer.stop();
+            trayIcon.setImage(trayImage);
+        } else {
+            flashes -= 1;
+            trayIcon.setImage(flashes % 2 == 0 ? trayImage : trayTimerImage);
+        }
     }
 
     private void doDefault(MouseEvent ev) {
@@ -279,13 +448,79 @@ public class Snipper {
     
     private void snip(ActionEvent ignored) {
         trayIcon.setImage(trayTimerImage);
+        long start = System.nanoTime();
         GraphicsEnvironment environment = GraphicsEnvironment.getLocalGraphicsEnvironment();
-        for (GraphicsDevice device : environment.getScreenDevices()) {
-            try {
-                ImageCatcher catcher = new ImageCatcher(device, catchListener);
-                catchers.add(catcher);
-            } catch (AWTException ex) {
-                error("creating catcher for " + device, ex);
+        GraphicsDevice[] devices = environment.getScreenDevices();
+        GraphicsDevice pointer = null;
+        if (Settings.isLazyCapture() && devices.length > 1) {
+            PointerInfo info = MouseInfo.getPointerInfo();
+            if (info != null) {
+                pointer = info.getDevice();
+            }
+        }
+        if (pointer == null) {
+            capture(devices, start);
+        } else {
+            capture(new GraphicsDevice[] { pointer }, start);
+            lazyTimer.restart();
+        }
+    }
+    
+    /**
+     * Captures the devices in parallel and, once all are captured, shows their catchers.
+     * Results are discarded if the catchers were closed in the meantime.
+     */
+    private void capture(final GraphicsDevice[] devices, final long start) {
+        final int session = snipSession;
+        final List<Future<BufferedImage>> captures = new ArrayList<>();
+        for (GraphicsDevice device : devices) {
+            capturedDevices.add(device);
+            captures.add(CaptureService.getInstance().submit(device));
+        }
+        new SwingWorker<Void, Void>() {
+            @Override
+            protected Void doInBackground() throws Exception {
+                for (Future<BufferedImage> capture : captures) {
+                    try {
+                        capture.get();
+                    } catch (ExecutionException ex) {
+                        // reported in done
+                    }
+                }
+                return null;
+            }
+            @Override
+            protected void done() {
+                if (session != snipSession)
+                    return;
+                boolean first = catchers.isEmpty();
+                for (int i = 0; i < devices.length; i += 1) {
+                    try {
+                        ImageCatcher catcher = new ImageCatcher(devices[i], captures.get(i).get(), catchListener);
+                        catchers.add(catcher);
+                    } catch (ExecutionException ex) {
+                        error("creating catcher for " + devices[i], ex.getCause());
+                    } catch (InterruptedException ex) {
+                        error("creating catcher for " + devices[i], ex);
+                    }
+                }
+                if (catchers.isEmpty()) {
+                    lazyTimer.stop();
+                    trayIcon.setImage(trayImage);
+                } else if (first) {
+                    CaptureService.getInstance().recordOverlay(System.nanoTime() - start);
+                }
+            }
+        }.execute();
+    }
+    
+    /** Lazy capture: captures the device the pointer was moved to, if not already done. */
+    private void doLazyCapture(ActionEvent ev) {
+        PointerInfo info = MouseInfo.getPointerInfo();
+        if (info != null && !capturedDevices.contains(info.getDevice())) {
+            capture(new GraphicsDevice[] { info.getDevice() }, System.nanoTime());
+            if (capturedDevices.size() >= GraphicsEnvironment.getLocalGraphicsEnvironment().getScreenDevices().length) {
+                lazyTimer.stop();
             }
         }
     }
@@ -317,6 +552,182 @@ public class Snipper {
         }
     }
     
+    /**
+     * Recaptures all displays: hides them once, captures each device once,
+     * covering all its snips, and updates all displays together.
+     */
+    private void doRecaptureAll(ActionEvent ev) {
+        if (displays.isEmpty())
+            return;
+        final Map<ShotList.Shot, ImageDisplay> shots = new LinkedHashMap<>();
+        final List<ImageDisplay> hidden = new ArrayList<>();
+        for (ImageDisplay display : displays) {
+            ImageCatcher catcher = display.getCatcher();
+            Rectangle bounds = catcher.getDevice().getDefaultConfiguration().getBounds();
+            if (catcher.getRectangle().intersects(bounds)) {
+                shots.put(new ShotList.Shot(catcher.getDevice(), catcher.getRectangle().intersection(bounds), null), display);
+            }
+            if (display.isVisible()) {
+                display.setVisible(false);
+                hidden.add(display);
+            }
+        }
+        trayIcon.setImage(trayTimerImage);
+        new SwingWorker<Map<ShotList.Shot, BufferedImage>, Void>() {
+            @Override
+            protected Map<ShotList.Shot, BufferedImage> doInBackground() throws Exception {
+                return ShotList.capture(new ArrayList<>(shots.keySet()));
+            }
+            @Override
+            protected void done() {
+                trayIcon.setImage(trayImage);
+                int failed = displays.size() - shots.size();
+                try {
+                    Map<ShotList.Shot, BufferedImage> images = get();
+                    for (Map.Entry<ShotList.Shot, ImageDisplay> entry : shots.entrySet()) {
+                        BufferedImage image = images.get(entry.getKey());
+                        ImageCatcher catcher = entry.getValue().getCatcher();
+                        if (image != null && image.getWidth() == catcher.getRectangle().width
+                                && image.getHeight() == catcher.getRectangle().height) {
+                            catcher.recapture(image);
+                        } else {
+                            failed += 1;
+                        }
+                    }
+                } catch (ExecutionException ex) {
+                    error("recapture failed", ex.getCause());
+                } catch (InterruptedException ex) {
+                    error("recapture failed", ex);
+                } finally {
+                    for (ImageDisplay display : hidden) {
+                        display.setVisible(true);
+                        display.repaint();
+                    }
+                }
+                if (failed > 0) {
+                    error(failed + " of " + displays.size() + " snips could not be recaptured");
+                }
+            }
+        }.execute();
+    }
+    
+    /** Stops all watches, also those of closed screenshots. */
+    private void doStopWatches(ActionEvent ev) {
+        ChangeWatch.stopAll();
+    }
+    
+    /** Saves the region, device and file of all saved displays as shot list. */
+    private void doSaveShots(ActionEvent ev) {
+        List<ShotList.Shot> shots = new ArrayList<>();
+        for (ImageDisplay display : displays) {
+            if (display.getSavedAs() != null) {
+                ImageCatcher catcher = display.getCatcher();
+                shots.add(new ShotList.Shot(catcher.getDevice(), catcher.getRectangle(), display.getSavedAs()));
+            }
+        }
+        if (shots.isEmpty()) {
+            error("no saved images for a shot list");
+            return;
+        }
+        File file = chooseShotList(true);
+        if (file == null)
+            return;
+        try {
+            ShotList.write(file, shots);
+        } catch (IOException ex) {
+            error("writing " + file, ex);
+        }
+    }
+    
+    /** 
+     * Runs a shot list: hides the displays while capturing, 
+     * then saves all images in background. 
+     */
+    private void doRunShots(ActionEvent ev) {
+        File file = chooseShotList(false);
+        if (file == null)
+            return;
+        final List<ShotList.Shot> shots;
+        try {
+            shots = ShotList.read(file);
+        } catch (IOException ex) {
+            error("reading " + file, ex);
+            return;
+        }
+        final List<ImageDisplay> hidden = new ArrayList<>();
+        for (ImageDisplay display : displays) {
+            if (display.isVisible()) {
+                display.setVisible(false);
+                hidden.add(display);
+            }
+        }
+        trayIcon.setImage(trayTimerImage);
+        new SwingWorker<Map<ShotList.Shot, Exception>, Void>() {
+            private int count;
+            @Override
+            protected Map<ShotList.Shot, Exception> doInBackground() throws Exception {
+                Map<ShotList.Shot, BufferedImage> images;
+                try {
+                    images = ShotList.capture(shots);
+                } finally {
+                    publish();
+                }
+                count = images.size();
+                return ShotList.save(images);
+            }
+            @Override
+            protected void process(List<Void> chunks) {
+                for (ImageDisplay display : hidden) {
+                    display.setVisible(true);
+                }
+                hidden.clear();
+            }
+            @Override
+            protected void done() {
+                trayIcon.setImage(trayImage);
+                try {
+                    Map<ShotList.Shot, Exception> failed = get();
+                    List<String> msg = new ArrayList<>();
+                    msg.add(String.format("%d of %d shots saved", count - failed.size(), shots.size()));
+                    for (Map.Entry<ShotList.Shot, Exception> entry : failed.entrySet()) {
+                        entry.getValue().printStackTrace();
+                        msg.add(entry.getKey().file + ": " + entry.getValue().getMessage());
+                    }
+                    int type = count == shots.size() && failed.isEmpty() ? JOptionPane.INFORMATION_MESSAGE : JOptionPane.ERROR_MESSAGE;
+                    JOptionPane.showMessageDialog(null, msg.toArray(), VERSION, type);
+                } catch (ExecutionException ex) {
+                    error("running shot list", ex.getCause());
+                } catch (InterruptedException ex) {
+                    error("running shot list", ex);
+                }
+            }
+        }.execute();
+    }
+    
+    private File chooseShotList(boolean save) {
+        JFileChooser chooser = new JFileChooser(shotListDirectory);
+        chooser.setFileFilter(new FileNameExtensionFilter("Shot List", ShotList.EXTENSION));
+        setAlwaysOnTop(false);
+        try {
+            int opt = save ? chooser.showSaveDialog(null) : chooser.showOpenDialog(null);
+            if (opt != JFileChooser.APPROVE_OPTION)
+                return null;
+        } finally {
+            setAlwaysOnTop(ontopMenuItem.getState());
+        }
+        File file = chooser.getSelectedFile();
+        shotListDirectory = file.getParentFile();
+        if (save && !file.getName().contains(".")) {
+            file = new File(file.getPath() + "." + ShotList.EXTENSION);
+        }
+        if (save && file.exists()) {
+            int opt = JOptionPane.showConfirmDialog(null, "Overwrite " + file + "?", VERSION, JOptionPane.YES_NO_OPTION);
+            if (opt != JOptionPane.YES_OPTION)
+                return null;
+        }
+        return file;
+    }
+    
     private void doChooseColor(ActionEvent ev) {
         JColorChooser colorChooser = new JColorChooser(borderColor);
         int opt = JOptionPane.showConfirmDialog(null, colorChooser, "Border Color", JOptionPane.OK_CANCEL_OPTION);
@@ -329,6 +740,65 @@ public class Snipper {
         borderColor = Color.RED;
     }
     
+    private void doParallelism(ActionEvent ev) {
+        String message = "Number of threads used for Compare (0 = all " + Runtime.getRuntime().availableProcessors()
+                + " processors, at most " + Settings.getMaxParallelism() + "):";
+        setAlwaysOnTop(false);
+        try {
+            Object input = JOptionPane.showInputDialog(null, message, VERSION, JOptionPane.QUESTION_MESSAGE, null, null, Settings.getParallelism());
+            if (input != null) {
+                try {
+                    Settings.setParallelism(Integer.parseInt(input.toString().trim()));
+                } catch (IllegalArgumentException ex) {
+                    error("invalid number of threads: " + input, ex);
+                }
+            }
+        } finally {
+            setAlwaysOnTop(ontopMenuItem.getState());
+        }
+    }
+    
+    private void doLiveInterval(ActionEvent ev) {
+        String message = "Milliseconds between captures of live screenshots (minimum " + LiveMirror.MIN_INTERVAL + "):";
+        setAlwaysOnTop(false);
+        try {
+            Object input = JOptionPane.showInputDialog(null, message, VERSION, JOptionPane.QUESTION_MESSAGE, null, null, Settings.getLiveInterval());
+            if (input != null) {
+                try {
+                    Settings.setLiveInterval(Integer.parseInt(input.toString().trim()));
+                } catch (IllegalArgumentException ex) {
+                    error("invalid interval: " + input, ex);
+                }
+            }
+        } finally {
+            setAlwaysOnTop(ontopMenuItem.getState());
+        }
+    }
+    
+    private void doReplayMemory(ActionEvent ev) {
+        String message = "Maximal memory, in MiB, used by the replay buffer of each screenshot:";
+        setAlwaysOnTop(false);
+        try {
+            Object input = JOptionPane.showInputDialog(null, message, VERSION, JOptionPane.QUESTION_MESSAGE, null, null, Settings.getReplayMemory());
+            if (input != null) {
+                try {
+                    Settings.setReplayMemory(Integer.parseInt(input.toString().trim()));
+                } catch (IllegalArgumentException ex) {
+                    error("invalid memory: " + input, ex);
+                }
+            }
+        } finally {
+            setAlwaysOnTop(ontopMenuItem.getState());
+        }
+    }
+    
+    private void doPngCompression(PngEncoder.Compression compression) {
+        Settings.setPngCompression(compression);
+        for (CheckboxMenuItem item : compressionMenuItems) {
+            item.setState(item.getLabel().equals(compression.getName()));
+        }
+    }
+    
     private void doHelp(ActionEvent ev) {
         String text = "<html><body>\n"
                 + "<h1><center>" + VERSION + "</center></h1>\n"
@@ -339,6 +809,8 @@ public class Snipper {
                 + "additionally hold:<br/>\n"
                 + "<tt>CTRL</tt> to delay about 3 seconds, <br/>\n"
                 + "<tt>CTRL-SHIFT</tt> for 10 seconds delay<p>\n"
+                + "With <tt>Settings - Lazy Capture</tt> only the screen under the pointer is captured at start, "
+                + "other screens when the pointer is moved onto them.<p>\n"
                 + "Select region:<br/>"
                 + "Start: <tt>Left-press</tt> and <tt>drag</tt> to select the screen region.<br>\n"
                 + "Adjust: <tt>Left-press</tt> and <tt>drag</tt> borders to adjust the region if needed.<p>\n"
@@ -346,6 +818,27 @@ public class Snipper {
                 + "<h2>Screenshot Window</h2>\n"
                 + "<tt>Left-press</tt> and <tt>drag</tt> to move the image.<br>\n"
                 + "<tt>Right-click</tt> for menu.<br>\n"
+                + "<tt>Live</tt> recaptures the region continuously (<tt>Settings - Live Interval</tt>), "
+                + "slower while nothing changes; the window is moved away from the region.<br>\n"
+                + "<tt>Watch...</tt> compares the region to the actual image every second and logs each change "
+                + "above the threshold (time, changed pixels and bounding box); the tray icon flashes. "
+                + "The window is moved away from the region; the watch continues after the window is closed, "
+                + "until stopped with <tt>Stop Watches</tt> in the tray menu.<br>\n"
+                + "<tt>Compare</tt> captures the region again showing the differences, changed regions are marked in red; "
+                + "<tt>Compare - Changes Report...</tt> shows and saves them as JSON or CSV. "
+                + "<tt>Delta E</tt> ignores color differences not noticeable by the eye, "
+                + "<tt>SSIM</tt> compares the structure around each pixel instead of single pixels, "
+                + "<tt>Tolerant</tt> accepts a similar pixel (<tt>Compare - Options...</tt>) a few pixels away.<br>\n"
+                + "<tt>Record...</tt> records the region into an animated GIF or PNG file until unchecked, the window is moved away from the region.<br>\n"
+                + "<tt>Replay - Record</tt> keeps the last frames of the region, up to <tt>Settings - Replay Memory</tt>, the window is moved away from the region; "
+                + "<tt>Replay - Save</tt> saves the last seconds as animated PNG, GIF or as PNG frames.<br>\n"
+                + "<tt>Recapture All</tt> in the tray menu recaptures all screenshots with one capture per screen.<br>\n"
+                + "<h2>Shot List</h2>\n"
+                + "<tt>Save Shot List</tt> saves region, screen and file of all saved screenshots; "
+                + "<tt>Run Shot List</tt> captures all these regions again and saves them to the same files.<br>\n"
+                + "Also run from the command line: <tt>java -jar jsnip.jar shots &lt;shot list&gt;</tt><br>\n"
+                + "Saved screenshots are compared with <tt>java -jar jsnip.jar compare &lt;baseline dir&gt; &lt;candidate dir&gt; &lt;output dir&gt;</tt>; "
+                + "with image files instead of directories, large images are compared in strips.\n"
                 + "<h2>Images</h2>\n";
         if (displays.isEmpty()) {
             text += "Screenshot data will be displayed here, if some screenshot is open.\n";
@@ -359,7 +852,9 @@ public class Snipper {
                 + "  <th>Snip<br>to</th>\n"
                 + "  <th>Saved as</th>\n"
                 + "  <th>Original</th>\n"
+                + "  <th>Memory<br>KiB</th>\n"
                 + "</tr>\n";
+            long memory = 0;
             for (ImageDisplay display : displays) {
                 Rectangle r = display.getCatcher().getRectangle();
                 File saved = display.getSavedAs();
@@ -381,6 +876,7 @@ public class Snipper {
                         + "  <td>%d,%d</td>\n"
                         + "  <td>%s</td>\n"
                         + "  <td>%s</td>\n"
+                        + "  <td align=\"right\">%,d</td>\n"
                         + "</tr>\n",
                         display.getId(),
                         display.getLocationOnScreen().x, display.getLocationOnScreen().y,
@@ -388,10 +884,15 @@ public class Snipper {
                         r.x, r.y, 
                         r.x + r.width, r.y + r.height,
                         saved == null ? "" : saved.getAbsolutePath(),
-                        copy == null ? "" : copy.getId());
+                        copy == null ? "" : copy.getId(),
+                        (display.getMemorySize() + 1023) / 1024);
+                memory += display.getMemorySize();
             }
             text += "</table>\n";
+            text += String.format("Total memory used by images: %,d KiB\n", (memory + 1023) / 1024);
         }
+        text += "<h2>Capture</h2>\n"
+                + CaptureService.getInstance().getStatistics() + "\n";
         text += "</body></html>";
         JComponent message = new JScrollPane(new JEditorPane("text/html", text));
         setAlwaysOnTop(false);
@@ -428,6 +929,9 @@ public class Snipper {
     }
     
     private void closeCatchers() {
+        snipSession += 1;
+        lazyTimer.stop();
+        capturedDevices.clear();
         for (ImageCatcher ic : catchers) {
             ic.dispose();
         }
@@ -0,0 +1,273 @@
+/*
+ * Copyright: Carlos F. Heuberger. All rights reserved.
+ *
+ */
+package cfh.jsnip;
+
+import static java.lang.Math.*;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import cfh.jsnip.ImageCatcher.DiffMode;
+
+/**
+ * Compares two image files too large to be loaded, as {@link ImageCatcher#diff(BufferedImage, DiffMode) Compare}
+ * does, and writes the differences as PNG. Both images are read in strips of rows, top to bottom; each strip
+ * is compared by the {@link DiffEngine} and written by a {@link PngEncoder.Stream}, so the memory used is
+ * proportional to the strip height, not to the image height. Only the {@link DiffReport} grows with the
+ * number of changed regions.
+ * <p>
+ * PNG files are read row by row by the {@link PngDecoder}; other formats and interlaced PNG by the
+ * {@code ImageReader} of the format, one source region per strip. Modes depending on neighbouring pixels
+ * get {@link DiffEngine#halo(DiffMode, Tolerance.Limits) halo} additional rows above and below each strip; these rows are kept
+ * from one strip to the next, not read twice.
+ *
+ * @author Carlos F. Heuberger
+ *
+ */
+final class StripCompare {
+
+    /** Pixels per strip if the strip height is not given. */
+    static final int STRIP_PIXELS = 1 << 22;
+
+    /**
+     * Compares the images and writes the differences to {@code output} as PNG.
+     *
+     * @param stripRows rows per strip, {@code 0} for about {@link #STRIP_PIXELS} pixels per strip
+     * @throws IOException if reading or writing failed, the images have different sizes, or
+     *         {@code output} is one of the images
+     */
+    static DiffReport compare(File originalFile, File imageFile, File output, DiffMode mode, Tolerance.Limits limits,
+            int stripRows, PngEncoder.Compression compression) throws IOException {
+        if (stripRows < 0)
+            throw new IllegalArgumentException("negative strip rows: " + stripRows);
+        if (sameFile(output, originalFile) || sameFile(output, imageFile))
+            throw new IOException("output is an input file: " + output);
+        Source original = Source.open(originalFile);
+        try {
+            Source image = Source.open(imageFile);
+            try {
+                if (original.width != image.width || original.height != image.height)
+                    throw new IOException("size mismatch: " + original.width + "x" + original.height
+                                          + " <> " + image.width + "x" + image.height);
+                OutputStream stream = new BufferedOutputStream(new FileOutputStream(output), 64 * 1024);
+                try {
+                    PngEncoder.Stream writer = new PngEncoder(compression).stream(stream, image.width, image.height, image.alpha);
+                    DiffReport report = compare(original, image, mode, limits, stripRows, writer);
+                    writer.close();
+                    return report;
+                } finally {
+                    stream.close();
+                }
+            } finally {
+                image.close();
+            }
+        } finally {
+            original.close();
+        }
+    }
+
+    private static DiffReport compare(final Source original, final Source image, DiffMode mode,
+            Tolerance.Limits limits, int stripRows, PngEncoder.Stream writer) throws IOException {
+        int width = image.width;
+        int height = image.height;
+        int halo = DiffEngine.halo(mode, limits);
+        int rows = min(height, stripRows > 0 ? stripRows : max(1, STRIP_PIXELS / width));
+        int bufferRows = min(height, rows + 2 * halo);
+        BufferedImage originalBuffer = buffer(width, bufferRows, original.alpha);
+        BufferedImage imageBuffer = buffer(width, bufferRows, image.alpha);
+        final int[] originalData = ((DataBufferInt) originalBuffer.getRaster().getDataBuffer()).getData();
+        final int[] imageData = ((DataBufferInt) imageBuffer.getRaster().getDataBuffer()).getData();
+        // rows of the image kept for the next strip, before being replaced by the differences
+        int[] kept = new int[2 * halo * width];
+        DiffReport.Collector collector = new DiffReport.Collector(mode, width, height);
+
+        int top = 0;     // first row in the buffers
+        int filled = 0;  // rows in the buffers
+        for (int from = 0; from < height; ) {
+            int to = min(height, from + rows);
+            int bottom = min(height, to + halo);
+            final int offset = filled * width;
+            final int count = bottom - top - filled;
+            invokeAll(Arrays.<Callable<Void>>asList(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    original.read(originalData, offset, count);
+                    return null;
+                }
+            }, new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    image.read(imageData, offset, count);
+                    return null;
+                }
+            }));
+            filled = bottom - top;
+
+            int next = max(0, to - halo);  // first row of the next strip
+            int keep = bottom - next;
+            if (to < height) {
+                System.arraycopy(imageData, (next - top) * width, kept, 0, keep * width);
+            }
+            BufferedImage originalStrip = originalBuffer.getSubimage(0, 0, width, filled);
+            BufferedImage imageStrip = imageBuffer.getSubimage(0, 0, width, filled);
+            DiffEngine.diff(originalStrip, imageStrip, mode, limits, from - top, to - top, top, collector);
+            writer.write(imageStrip, from - top, to - top);
+
+            if (to < height) {
+                System.arraycopy(originalData, (next - top) * width, originalData, 0, keep * width);
+                System.arraycopy(kept, 0, imageData, 0, keep * width);
+                top = next;
+                filled = keep;
+            }
+            from = to;
+        }
+        return collector.report();
+    }
+
+    /** Returns {@code true} if both denote the same file, comparing canonical paths. */
+    static boolean sameFile(File file1, File file2) throws IOException {
+        return file1.getCanonicalFile().equals(file2.getCanonicalFile());
+    }
+
+    private static BufferedImage buffer(int width, int height, boolean alpha) {
+        return new BufferedImage(width, height, alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+    }
+
+    /** Runs the tasks in parallel on the worker pool. */
+    private static void invokeAll(List<Callable<Void>> tasks) throws IOException {
+        for (Future<Void> future : Workers.pool().invokeAll(tasks)) {
+            try {
+                future.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException(ex);
+            } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                if (cause instanceof IOException)
+                    throw (IOException) cause;
+                throw new IOException(cause);
+            }
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /** Image read row by row, top to bottom. */
+    private abstract static class Source implements Closeable {
+
+        final int width;
+        final int height;
+        final boolean alpha;
+
+        Source(int width, int height, boolean alpha) {
+            this.width = width;
+            this.height = height;
+            this.alpha = alpha;
+        }
+
+        /** Opens the file, row by row if not interlaced PNG. */
+        static Source open(File file) throws IOException {
+            if (PngDecoder.isPng(file)) {
+                PngDecoder decoder = new PngDecoder(file);
+                if (!decoder.isInterlaced())
+                    return new PngSource(decoder);
+                decoder.close();
+            }
+            return ReaderSource.open(file);
+        }
+
+        /** Reads the next {@code rows} rows as ARGB into {@code data}, starting at {@code offset}. */
+        abstract void read(int[] data, int offset, int rows) throws IOException;
+    }
+
+    private static final class PngSource extends Source {
+
+        private final PngDecoder decoder;
+
+        PngSource(PngDecoder decoder) {
+            super(decoder.getWidth(), decoder.getHeight(), decoder.hasAlpha());
+            this.decoder = decoder;
+        }
+
+        @Override
+        void read(int[] data, int offset, int rows) throws IOException {
+            for (int i = 0; i < rows; i += 1) {
+                decoder.read(data, offset + i * width);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            decoder.close();
+        }
+    }
+
+    /** Reads a source region per strip. */
+    private static final class ReaderSource extends Source {
+
+        private final ImageInputStream input;
+        private final ImageReader reader;
+        private int row = 0;
+
+        static ReaderSource open(File file) throws IOException {
+            ImageInputStream input = ImageIO.createImageInputStream(file);
+            if (input == null)
+                throw new IOException("unable to open " + file);
+            try {
+                Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+                if (!readers.hasNext())
+                    throw new IOException("no reader for " + file);
+                ImageReader reader = readers.next();
+                reader.setInput(input, true, true);
+                boolean alpha = reader.getImageTypes(0).next().getColorModel().hasAlpha();
+                return new ReaderSource(input, reader, reader.getWidth(0), reader.getHeight(0), alpha);
+            } catch (IOException | RuntimeException ex) {
+                input.close();
+                throw ex;
+            }
+        }
+
+        private ReaderSource(ImageInputStream input, ImageReader reader, int width, int height, boolean alpha) {
+            super(width, height, alpha);
+            this.input = input;
+            this.reader = reader;
+        }
+
+        @Override
+        void read(int[] data, int offset, int rows) throws IOException {
+            if (rows == 0)
+                return;
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceRegion(new Rectangle(0, row, width, rows));
+            BufferedImage strip = reader.read(0, param);
+            strip.getRGB(0, 0, width, rows, data, offset, width);
+            row += rows;
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.dispose();
+            input.close();
+        }
+    }
+}
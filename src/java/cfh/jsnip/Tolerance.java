@@ -0,0 +1,219 @@
+/*
+ * Copyright: Carlos F. Heuberger. All rights reserved.
+ *
+ */
+package cfh.jsnip;
+
+import static java.lang.Math.*;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Tolerant comparison for the {@link DiffEngine}: a pixel is unchanged if any pixel of the original
+ * at most {@code radius} pixels away, horizontally and vertically, has each RGB component within
+ * {@code tolerance} of it. This ignores anti-aliasing noise and content shifted by a few pixels.
+ * <p>
+ * Pixels within tolerance of the same position in the original are decided at once. For the others the
+ * minimum and maximum of each component in the original's window bound the search: a pixel outside
+ * them (plus tolerance) is changed without looking at the single neighbours; the direct neighbours,
+ * matching most shifted pixels, are searched before. The minimum and maximum
+ * of each row are computed with the van Herk/Gil-Werman sliding window, constant time per pixel,
+ * only for rows needed by such pixels; the window is then combined over its {@code 2*radius+1} rows.
+ * Only pixels inside the bounds search their neighbours.
+ *
+ * @author Carlos F. Heuberger
+ *
+ */
+final class Tolerance extends DiffEngine.Window {
+
+    static final int DEFAULT_TOLERANCE = 16;
+    static final int MAX_TOLERANCE = 255;
+    static final int DEFAULT_RADIUS = 1;
+    static final int MAX_RADIUS = 10;
+
+    /** Output for an unchanged pixel. */
+    static final int UNCHANGED = 0x00ffffff;
+    private static final int GRAY = 0x00010101;
+    /** Greater than any component, padding for the minimum. */
+    private static final int NEUTRAL = 256;
+    /** Red, green, blue, inverted red, green and blue: the minimum of the inverted is the maximum. */
+    private static final int CHANNELS = 6;
+
+    private final BufferedImage original;
+    private final int width;
+    private final int height;
+    private final int tolerance;
+    private final int radius;
+
+    /** The original is only read, it must not be the image overwritten by the result. */
+    Tolerance(BufferedImage original, Limits limits) {
+        super(UNCHANGED, true);
+        this.original = original;
+        this.width = original.getWidth();
+        this.height = original.getHeight();
+        this.tolerance = limits.tolerance;
+        this.radius = limits.radius;
+    }
+
+    @Override
+    DiffEngine.Kernel band(int from) {
+        return new Band(from);
+    }
+
+    /** Returns {@code true} if each component of both RGB values differs at most by the tolerance. */
+    private boolean within(int rgb1, int rgb2) {
+        return abs(((rgb1 >> 16) & 0xff) - ((rgb2 >> 16) & 0xff)) <= tolerance
+            && abs(((rgb1 >> 8) & 0xff) - ((rgb2 >> 8) & 0xff)) <= tolerance
+            && abs((rgb1 & 0xff) - (rgb2 & 0xff)) <= tolerance;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /** Tolerance and radius of a comparison. */
+    static final class Limits {
+
+        /** {@link #DEFAULT_TOLERANCE} and {@link #DEFAULT_RADIUS}. */
+        static final Limits DEFAULT = new Limits(DEFAULT_TOLERANCE, DEFAULT_RADIUS);
+
+        /** Limits set by the user, see {@link Settings}. */
+        static Limits settings() {
+            return new Limits(Settings.getCompareTolerance(), Settings.getCompareRadius());
+        }
+
+        final int tolerance;
+        final int radius;
+
+        Limits(int tolerance, int radius) {
+            if (tolerance < 0 || tolerance > MAX_TOLERANCE)
+                throw new IllegalArgumentException("tolerance not in 0 to " + MAX_TOLERANCE + ": " + tolerance);
+            if (radius < 0 || radius > MAX_RADIUS)
+                throw new IllegalArgumentException("radius not in 0 to " + MAX_RADIUS + ": " + radius);
+            this.tolerance = tolerance;
+            this.radius = radius;
+        }
+    }
+
+    /** Rows of the original around the current row, for consecutive rows of one band. */
+    private final class Band implements DiffEngine.Kernel {
+
+        private final int size = 2 * radius + 1;
+        private final DiffEngine.Rows rows = new DiffEngine.Rows(original);
+        /** RGB of the original, row {@code y} at {@code y % size}. */
+        private final int[][] ring = new int[size][width];
+        /** Minimum of each channel over the row window, same index as the ring; allocated when first needed. */
+        private int[][][] minimum = null;
+        private final boolean[] computed = new boolean[size];
+        private final int[] padded = new int[width + 2 * radius];
+        private final int[] prefix = new int[padded.length];
+        private final int[] suffix = new int[padded.length];
+        /** Next row to read. */
+        private int next;
+
+        Band(int from) {
+            next = max(0, from - radius);
+        }
+
+        @Override
+        public void row(int y, int[] img, int ip, int ia, int mask, int length) {
+            int bottom = min(height - 1, y + radius);
+            for ( ; next <= bottom; next += 1) {
+                int slot = next % size;
+                int[] data = rows.read(next);
+                System.arraycopy(data, rows.offset(next), ring[slot], 0, width);
+                computed[slot] = false;
+            }
+            int top = max(0, y - radius);
+            int[] center = ring[y % size];
+            for (int x = 0; x < length; x += 1) {
+                int i = img[ip+x];
+                int o = center[x];
+                if (((i ^ o) & 0xffffff) == 0 || within(i, o) || search(i, x, y, 1)
+                        || (radius > 1 && inBounds(i, x, top, bottom) && search(i, x, y, radius))) {
+                    img[ip+x] = UNCHANGED;
+                } else {
+                    int dr = ((i >> 16) & 0xff) - ((o >> 16) & 0xff);
+                    int dg = ((i >> 8) & 0xff) - ((o >> 8) & 0xff);
+                    int db = (i & 0xff) - (o & 0xff);
+                    int n = max(1, min(255, (int) sqrt((double) (dr*dr + dg*dg + db*db))));
+                    img[ip+x] = (GRAY * (255 - n)) & mask;
+                }
+            }
+        }
+
+        /** Returns {@code false} if a component is outside the minimum to maximum of the window, plus tolerance. */
+        private boolean inBounds(int rgb, int x, int top, int bottom) {
+            int r = (rgb >> 16) & 0xff, g = (rgb >> 8) & 0xff, b = rgb & 0xff;
+            int minR = NEUTRAL, minG = NEUTRAL, minB = NEUTRAL, minInvR = NEUTRAL, minInvG = NEUTRAL, minInvB = NEUTRAL;
+            for (int y = top; y <= bottom; y += 1) {
+                int[][] m = minimum(y % size);
+                minR = min(minR, m[0][x]);
+                minG = min(minG, m[1][x]);
+                minB = min(minB, m[2][x]);
+                minInvR = min(minInvR, m[3][x]);
+                minInvG = min(minInvG, m[4][x]);
+                minInvB = min(minInvB, m[5][x]);
+            }
+            return r >= minR - tolerance && r <= 255 - minInvR + tolerance
+                && g >= minG - tolerance && g <= 255 - minInvG + tolerance
+                && b >= minB - tolerance && b <= 255 - minInvB + tolerance;
+        }
+
+        /** Returns {@code true} if any pixel at most {@code distance} away is within tolerance. */
+        private boolean search(int rgb, int x, int y, int distance) {
+            distance = min(distance, radius);
+            int left = max(0, x - distance);
+            int right = min(width - 1, x + distance);
+            for (int yy = max(0, y - distance); yy <= min(height - 1, y + distance); yy += 1) {
+                int[] data = ring[yy % size];
+                for (int xx = left; xx <= right; xx += 1) {
+                    if (within(rgb, data[xx]))
+                        return true;
+                }
+            }
+            return false;
+        }
+
+        /** Minimum of each channel over the row window of the row in the ring, computed if needed. */
+        private int[][] minimum(int slot) {
+            if (minimum == null) {
+                minimum = new int[size][CHANNELS][width];
+            }
+            int[][] m = minimum[slot];
+            if (!computed[slot]) {
+                int[] data = ring[slot];
+                for (int c = 0; c < CHANNELS; c += 1) {
+                    int shift = 16 - 8 * (c % 3);
+                    int invert = c < 3 ? 0 : 0xff;
+                    for (int x = 0; x < width; x += 1) {
+                        padded[radius+x] = ((data[x] >> shift) & 0xff) ^ invert;
+                    }
+                    for (int x = 0; x < radius; x += 1) {
+                        padded[x] = NEUTRAL;
+                        padded[radius+width+x] = NEUTRAL;
+                    }
+                    slidingMinimum(m[c]);
+                }
+                computed[slot] = true;
+            }
+            return m;
+        }
+
+        /**
+         * Minimum of each window of {@code size} values of {@code padded}, van Herk/Gil-Werman:
+         * the minimum from the start of each block of {@code size} values and up to its end; each window
+         * covers the end of one block and the start of the next.
+         */
+        private void slidingMinimum(int[] result) {
+            int n = padded.length;
+            for (int i = 0; i < n; i += 1) {
+                prefix[i] = (i % size == 0) ? padded[i] : min(prefix[i-1], padded[i]);
+            }
+            for (int i = n - 1; i >= 0; i -= 1) {
+                suffix[i] = (i % size == size - 1 || i == n - 1) ? padded[i] : min(suffix[i+1], padded[i]);
+            }
+            for (int x = 0; x < width; x += 1) {
+                result[x] = min(suffix[x], prefix[x+size-1]);
+            }
+        }
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright: Carlos F. Heuberger. All rights reserved.
+ *
+ */
+package cfh.jsnip;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Shared pool for parallel image processing.
+ * A new pool is created if the parallelism setting was changed;
+ * work already started keeps using the old pool.
+ *
+ * @author Carlos F. Heuberger
+ *
+ */
+final class Workers {
+
+    private static ForkJoinPool pool = null;
+
+    /** Returns the number of threads to use, as set in {@link Settings#getParallelism()}. */
+    static int parallelism() {
+        int parallelism = Settings.getParallelism();
+        return parallelism == 0 ? Runtime.getRuntime().availableProcessors() : parallelism;
+    }
+
+    static synchronized ForkJoinPool pool() {
+        int parallelism = parallelism();
+        if (pool == null || pool.getParallelism() != parallelism) {
+            // the old pool is not shut down, it may still be used by running tasks; its idle threads end by themselves
+            pool = new ForkJoinPool(parallelism);
+        }
+        return pool;
+    }
+
+    private Workers() {
+        throw new AssertionError("static only");
+    }
+}